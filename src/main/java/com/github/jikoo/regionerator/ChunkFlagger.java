@@ -11,24 +11,30 @@
 package com.github.jikoo.regionerator;
 
 import com.github.jikoo.regionerator.database.DatabaseAdapter;
-import com.github.jikoo.regionerator.util.BatchExpirationLoadingCache;
+import com.github.jikoo.regionerator.database.FlagArchive;
+import com.github.jikoo.regionerator.database.FlagGarbageCollector;
+import com.github.jikoo.regionerator.database.FlagSnapshotTask;
+import com.github.jikoo.regionerator.database.LegacyFlagImporter;
+import com.github.jikoo.regionerator.database.SQLeadenAdapter;
+import com.github.jikoo.regionerator.util.ChunkFlagCache;
+import com.github.jikoo.regionerator.util.ChunkKey;
+import com.github.jikoo.regionerator.util.FlagCache;
+import com.github.jikoo.regionerator.util.RegionFlagCache;
 import com.github.jikoo.regionerator.util.yaml.Config;
+import com.github.jikoo.regionerator.world.RegionInfo;
 import org.bukkit.World;
-import org.bukkit.configuration.ConfigurationSection;
-import org.bukkit.configuration.file.YamlConfiguration;
-import org.jetbrains.annotations.Contract;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
-import java.io.File;
-import java.util.Collection;
-import java.util.Map;
-import java.util.Objects;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
-import java.util.regex.Pattern;
 
 /**
  * Utility for storing and loading chunk visit timestamps.
@@ -37,7 +43,12 @@ public class ChunkFlagger {
 
 	private final @NotNull Regionerator plugin;
 	private final @NotNull DatabaseAdapter adapter;
-	private final @NotNull BatchExpirationLoadingCache<String, FlagData> flagCache;
+	private final @NotNull ThreadPoolExecutor loader;
+	private final @NotNull FlagCache flagCache;
+	private final @Nullable FlagGarbageCollector garbageCollector;
+	private final @Nullable FlagSnapshotTask snapshotTask;
+	private final @Nullable LegacyFlagImporter legacyImporter;
+	private final @NotNull AtomicBoolean transferring = new AtomicBoolean();
 
 	ChunkFlagger(@NotNull Regionerator plugin) {
 		this.plugin = plugin;
@@ -50,163 +61,225 @@ public class ChunkFlagger {
 		}
 
 		Config config = plugin.config();
-		this.flagCache = new BatchExpirationLoadingCache.Builder<String, FlagData>()
-				.setRetention(config.getCacheRetention())
-				.setCacheMax(config.getCacheMaxSize())
-				.setFrequency(config.getCacheExpirationFrequency())
-				.setBatchMax(config.getCacheBatchMax())
-				.setBatchDelay(config.getCacheBatchDelay())
-				.build(this::loadFlag, this::expireBatch);
-
-		convertOldFlagsFile();
-		convertOldPerWorldFlagFiles();
+		int loaderThreads = config.getCacheLoaderThreads();
+		AtomicInteger loaderId = new AtomicInteger();
+		// Bounded queue runs excess loads on the requesting thread rather than queueing indefinitely.
+		this.loader = new ThreadPoolExecutor(loaderThreads, loaderThreads, 30, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<>(1_024), runnable -> {
+					Thread thread = new Thread(runnable, "FlagLoader-" + loaderId.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}, (runnable, executor) -> runnable.run());
+		this.loader.allowCoreThreadTimeOut(true);
+		// Adapters holding every flag in memory need no cache in front of them.
+		FlagCache adapterCache = adapter.getFlagCache();
+		this.flagCache = adapterCache != null ? adapterCache : switch (config.getCacheMode()) {
+			case REGION -> new RegionFlagCache.Builder()
+					.setRetention(config.getCacheRetention())
+					.setCacheMax(config.getCacheMaxSize())
+					.setFrequency(config.getCacheExpirationFrequency())
+					.setBatchMax(config.getCacheBatchMax())
+					.setQueueMax(config.getCacheQueueSize())
+					.setLoader(loader)
+					.build(this::loadRegionFlags, this::expireBatch);
+			case CHUNK -> new ChunkFlagCache.Builder()
+					.setRetention(config.getCacheRetention())
+					.setCacheMax(config.getCacheMaxSize())
+					.setFrequency(config.getCacheExpirationFrequency())
+					.setBatchMax(config.getCacheBatchMax())
+					.setMaxLatency(config.getCacheBatchDelay())
+					.setQueueMax(config.getCacheQueueSize())
+					.setLoader(loader)
+					.setLoadBatchMax(config.getCacheLoadBatchMax())
+					.setLoadBatchDelay(config.getCacheLoadBatchDelay())
+					.build(this::loadFlags, this::expireBatch);
+		};
+
+		if (LegacyFlagImporter.hasLegacyFlags(plugin)) {
+			legacyImporter = new LegacyFlagImporter(plugin, adapter, this::importBatch, config.getCacheBatchMax());
+			// Conversion can take minutes on large data sets, so it does not hold up startup.
+			plugin.getScheduler().runAsync(task -> legacyImporter.run());
+		} else {
+			legacyImporter = null;
+		}
 		flagCache.lazyExpireAll();
 
 		// Even if cache is stagnant, save every 10 minutes
 		plugin.getScheduler().runTimerAsync(flagCache::lazyExpireAll, 10 * 60 * 20, 10 * 60 * 20);
+
+		long cleanupTicks = config.getFlagCleanupInterval() / 50;
+		if (adapter instanceof SQLeadenAdapter sqlAdapter && cleanupTicks > 0) {
+			garbageCollector = new FlagGarbageCollector(plugin, sqlAdapter);
+			// First cleanup is delayed so that it does not compete with startup.
+			plugin.getScheduler().runTimerAsync(garbageCollector, Math.min(cleanupTicks, 60 * 60 * 20), cleanupTicks);
+		} else {
+			garbageCollector = null;
+		}
+
+		if (adapter instanceof SQLeadenAdapter sqlAdapter) {
+			snapshotTask = new FlagSnapshotTask(plugin, sqlAdapter, flagCache);
+			long snapshotTicks = config.getFlagSnapshotInterval() / 50;
+			if (snapshotTicks > 0) {
+				plugin.getScheduler().runTimerAsync(snapshotTask, Math.min(snapshotTicks, 60 * 60 * 20), snapshotTicks);
+			}
+		} else {
+			snapshotTask = null;
+		}
 	}
 
 	/**
 	 * For use in cache. Don't call manually.
 	 *
-	 * @param key the key of the FlagData
-	 * @return the FlagData
+	 * @param chunkKeys the packed chunk keys
+	 * @param length the number of chunk keys
+	 * @return the flag timestamps
 	 */
-	private @NotNull FlagData loadFlag(@NotNull String key) {
+	private long @NotNull [] loadFlags(long @NotNull [] chunkKeys, int length) {
 		try {
-			return new FlagData(key, adapter.get(key));
+			return adapter.getAll(chunkKeys, length);
 		} catch (Exception e) {
 			plugin.getLogger().log(Level.WARNING, "Exception fetching chunk flags", e);
-			return new FlagData(key, Config.FLAG_OH_NO);
+			long[] flags = new long[length];
+			Arrays.fill(flags, Config.FLAG_OH_NO);
+			return flags;
 		}
 	}
 
 	/**
 	 * For use in cache. Don't call manually.
 	 *
-	 * @param expiredData the batch of expired FlagData
+	 * @param lowestChunkKey the packed chunk key of the lowest chunk in the region
+	 * @return the flag timestamps of the region's chunks
 	 */
-	private void expireBatch(@NotNull Collection<FlagData> expiredData) {
-		// Only attempt to save if dirty to minimize write time
-		expiredData.removeIf(next -> !next.isDirty() || next.getLastVisit() == Config.FLAG_OH_NO);
-
-		if (expiredData.isEmpty()) {
-			return;
-		}
-
+	private long @NotNull [] loadRegionFlags(long lowestChunkKey) {
 		try {
-			adapter.update(expiredData);
-
-			// Flag as no longer dirty to reduce saves if data is still in use
-			expiredData.forEach(FlagData::wash);
+			return adapter.getRegion(ChunkKey.getWorldId(lowestChunkKey), ChunkKey.getChunkX(lowestChunkKey), ChunkKey.getChunkZ(lowestChunkKey));
 		} catch (Exception e) {
-			plugin.getLogger().log(Level.SEVERE, "Exception updating chunk flags", e);
+			plugin.getLogger().log(Level.WARNING, "Exception fetching region flags", e);
+			long[] flags = new long[RegionInfo.TOTAL_CHUNKS];
+			Arrays.fill(flags, Config.FLAG_OH_NO);
+			return flags;
 		}
 	}
 
 	/**
-	 * Converts old flags file.
+	 * For use in cache. Don't call manually.
+	 *
+	 * @param chunkKeys the packed chunk keys of modified flags
+	 * @param flags the modified flag timestamps
+	 * @param length the number of modified flags
+	 * @return true if the flags were saved
 	 */
-	private void convertOldFlagsFile() {
-		File oldFlagsFile = new File(this.plugin.getDataFolder(), "flags.yml");
-		if (!oldFlagsFile.exists()) {
-			return;
-		}
-		this.plugin.getLogger().info("Beginning converting flags.yml");
-		YamlConfiguration oldFlags = YamlConfiguration.loadConfiguration(oldFlagsFile);
-		for (String world : oldFlags.getKeys(false)) {
-			if (!oldFlags.isConfigurationSection(world)) {
-				continue;
-			}
-
-			ConfigurationSection worldSection = oldFlags.getConfigurationSection(world);
-			if (worldSection == null) {
-				continue;
+	private boolean expireBatch(long @NotNull [] chunkKeys, long @NotNull [] flags, int length) {
+		// Never save values that failed to load
+		int saved = 0;
+		for (int i = 0; i < length; ++i) {
+			if (flags[i] != Config.FLAG_OH_NO) {
+				chunkKeys[saved] = chunkKeys[i];
+				flags[saved] = flags[i];
+				++saved;
 			}
+		}
 
-			for (String chunkPath : worldSection.getKeys(false)) {
-				if (!worldSection.isLong(chunkPath)) {
-					continue;
-				}
-
-				String[] chunk = chunkPath.split("_");
-				if (chunk.length != 2) {
-					// Invalid data, skip
-					continue;
-				}
-
-				int chunkX;
-				int chunkZ;
-
-				try {
-					chunkX = Integer.parseInt(chunk[0]);
-					chunkZ = Integer.parseInt(chunk[1]);
-				} catch (NumberFormatException e) {
-					// Invalid data, skip
-					continue;
-				}
-
-				flagCache.get(this.getFlagDbId(world, chunkX, chunkZ))
-						.thenAccept(flagData -> flagData.importOldValue(worldSection.getLong(chunkPath)));
-			}
+		if (saved == 0) {
+			return true;
 		}
-		// Rename old flag file
-		if (oldFlagsFile.renameTo(new File(oldFlagsFile.getParentFile(), "flags.yml.bak"))) {
-			this.plugin.getLogger().info("Finished converting flags.yml, renamed to flags.yml.bak. Delete at convenience if all appears well.");
-		} else {
-			this.plugin.getLogger().warning("Finished converting flags.yml but could not rename! Conversion will run again on startup.");
+
+		try {
+			adapter.update(chunkKeys, flags, saved);
+			return true;
+		} catch (Exception e) {
+			plugin.getLogger().log(Level.SEVERE, "Exception updating chunk flags", e);
+			return false;
 		}
 	}
 
 	/**
-	 * Converts old per-region flag files.
+	 * For use in legacy flag conversion. Don't call manually.
+	 *
+	 * @param chunkKeys the packed chunk keys
+	 * @param values the legacy flag timestamps
+	 * @param length the number of chunk keys
+	 * @return true if the flags were imported successfully
 	 */
-	private void convertOldPerWorldFlagFiles() {
-		File oldFlagsFolder = new File(this.plugin.getDataFolder(), "flags");
-		if (!oldFlagsFolder.exists() || !oldFlagsFolder.isDirectory()) {
-			return;
+	private boolean importBatch(long @NotNull [] chunkKeys, long @NotNull [] values, int length) {
+		long[] current;
+		try {
+			current = adapter.getAll(chunkKeys, length);
+		} catch (Exception e) {
+			plugin.getLogger().log(Level.WARNING, "Exception fetching chunk flags", e);
+			return false;
 		}
-		this.plugin.getLogger().info("Beginning converting flags folder.");
 
-		Pattern chunkCoordsSplitter = Pattern.compile("_");
+		boolean changed = false;
+		for (int i = 0; i < length; ++i) {
+			long chunkKey = chunkKeys[i];
+			long oldValue = values[i];
+			long merged = importOldValue(current[i], oldValue);
+			if (merged == current[i] && flagCache.getIfPresent(chunkKey) == FlagCache.ABSENT) {
+				continue;
+			}
 
-		File[] worldDirectories = oldFlagsFolder.listFiles();
-		if (worldDirectories == null) {
-			return;
+			// Changes go through the cache so that a value loaded concurrently cannot hide or overwrite them.
+			flagCache.merge(chunkKey, merged, (value, ignored) -> importOldValue(value, oldValue));
+			changed = true;
 		}
 
-		for (File worldFlagsFolder : worldDirectories) {
-			if (!worldFlagsFolder.isDirectory()) continue;
-
-			String worldName = worldFlagsFolder.getName();
+		plugin.getRegionIndex().invalidateAll();
+		return !changed || flagCache.flush();
+	}
 
-			File[] regionFlagsFiles = worldFlagsFolder.listFiles();
-			if (regionFlagsFiles == null) {
-				continue;
+	/**
+	 * For use in flag archive import. Don't call manually.
+	 *
+	 * @param chunkKeys the packed chunk keys
+	 * @param flags the archived flag timestamps
+	 * @param lastDeleteTimes the archived flag timestamps as of last deletion
+	 * @param length the number of chunk keys
+	 * @throws Exception if the flags cannot be imported
+	 */
+	private void importArchiveBatch(long @NotNull [] chunkKeys, long @NotNull [] flags,
+			long @NotNull [] lastDeleteTimes, int length) throws Exception {
+		long[] current = adapter.getAll(chunkKeys, length);
+
+		for (int i = 0; i < length; ++i) {
+			long chunkKey = chunkKeys[i];
+			long archived = flags[i];
+			long cached = flagCache.getIfPresent(chunkKey);
+			if (cached != FlagCache.ABSENT) {
+				// Loaded values are saved by the cache.
+				flagCache.update(chunkKey, value -> importOldValue(value, archived));
 			}
 
-			for (File regionFlagsFile : regionFlagsFiles) {
-				YamlConfiguration regionConfig = YamlConfiguration.loadConfiguration(regionFlagsFile);
-
-				Map<String, Object> values = regionConfig.getValues(false);
-
-				for (Map.Entry<String, Object> entry : values.entrySet()) {
-					String[] args = chunkCoordsSplitter.split(entry.getKey());
+			long base = cached != FlagCache.ABSENT ? cached : current[i];
+			long merged = importOldValue(base, archived);
+			// Storage keeps the later value, so only pass on flags that actually change it.
+			flags[i] = merged == base ? Config.FLAG_DEFAULT : merged;
+		}
 
-					int chunkX = Integer.parseInt(args[0]);
-					int chunkZ = Integer.parseInt(args[1]);
+		adapter.importFlags(chunkKeys, flags, lastDeleteTimes, length);
+		plugin.getRegionIndex().invalidateAll();
+	}
 
-					flagCache.get(this.getFlagDbId(worldName, chunkX, chunkZ))
-							.thenAccept(flagData -> flagData.importOldValue((long) entry.getValue()));
-				}
-			}
+	/**
+	 * Merges an old value into a current value. For use in data conversion.
+	 *
+	 * @param currentValue the current value
+	 * @param oldValue the imported old value
+	 * @return the merged value
+	 */
+	private static long importOldValue(long currentValue, long oldValue) {
+		// Ignore default values.
+		if (oldValue == Config.FLAG_DEFAULT) {
+			return currentValue;
 		}
-		// Rename old flag file
-		if (oldFlagsFolder.renameTo(new File(oldFlagsFolder.getParentFile(), "flags.bak"))) {
-			this.plugin.getLogger().info("Finished converting flags folder, renamed to flags.bak. Delete at convenience if all appears well.");
-		} else {
-			this.plugin.getLogger().warning("Finished converting flags folder but could not rename! Conversion will run again on startup.");
+
+		if (oldValue == Long.MAX_VALUE) {
+			// Only set fresh generated flag if current value is default.
+			return currentValue == Config.FLAG_DEFAULT ? oldValue : currentValue;
 		}
+
+		return Math.max(currentValue, oldValue);
 	}
 
 	/**
@@ -237,18 +310,22 @@ public class ChunkFlagger {
 	 * @param flagTil the flag timestamp
 	 */
 	public void flagChunk(@NotNull String world, int chunkX, int chunkZ, long flagTil) {
-		String flagDbId = this.getFlagDbId(world, chunkX, chunkZ);
-		FlagData flagData = this.flagCache.getIfPresent(flagDbId);
-		if (flagData != null) {
-			long current = flagData.getLastVisit();
-			if (current == Config.FLAG_ETERNAL) {
-				return;
-			}
-			flagData.setLastVisit(flagTil);
-		} else {
-			flagData = new FlagData(flagDbId, flagTil, true);
-			flagCache.put(flagDbId, flagData);
-		}
+		long granularity = plugin.config().getFlagGranularity();
+		this.flagCache.merge(this.getChunkKey(world, chunkX, chunkZ), flagTil,
+				(current, flag) -> current == Config.FLAG_ETERNAL || isMinorExtension(current, flag, granularity) ? current : flag);
+		plugin.getRegionIndex().invalidate(world, chunkX, chunkZ);
+	}
+
+	/**
+	 * Checks whether a new flag only extends an existing flag by less than the flag granularity.
+	 *
+	 * @param current the existing flag timestamp
+	 * @param flag the new flag timestamp
+	 * @param granularity the flag granularity in milliseconds
+	 * @return true if the existing flag should be kept
+	 */
+	private static boolean isMinorExtension(long current, long flag, long granularity) {
+		return current != Config.FLAG_DEFAULT && flag >= current && flag - current < granularity;
 	}
 
 	/**
@@ -259,14 +336,108 @@ public class ChunkFlagger {
 	 * @param chunkZ the chunk Z coordinate
 	 */
 	public void unflagChunk(@NotNull String world, int chunkX, int chunkZ) {
-		flagCache.computeIfAbsent(getFlagDbId(world, chunkX, chunkZ), key -> new FlagData(key, Config.FLAG_DEFAULT, true))
-				.setLastVisit(Config.FLAG_DEFAULT);
+		flagCache.merge(getChunkKey(world, chunkX, chunkZ), Config.FLAG_DEFAULT, (current, flag) -> flag);
+		plugin.getRegionIndex().invalidate(world, chunkX, chunkZ);
+	}
+
+	/**
+	 * Removes flags from every chunk in a deleted region.
+	 *
+	 * @param world the world name
+	 * @param lowestChunkX the lowest chunk X coordinate contained within the region
+	 * @param lowestChunkZ the lowest chunk Z coordinate contained within the region
+	 */
+	public void unflagRegion(@NotNull String world, int lowestChunkX, int lowestChunkZ) {
+		int worldId = getWorldId(world);
+		try {
+			adapter.deleteRegion(worldId, lowestChunkX, lowestChunkZ);
+		} catch (Exception e) {
+			plugin.getLogger().log(Level.WARNING, "Exception deleting region flags", e);
+		}
+
+		for (int localZ = 0; localZ < RegionInfo.CHUNKS_PER_AXIS; ++localZ) {
+			for (int localX = 0; localX < RegionInfo.CHUNKS_PER_AXIS; ++localX) {
+				long chunkKey = ChunkKey.of(worldId, lowestChunkX + localX, lowestChunkZ + localZ);
+				flagCache.merge(chunkKey, Config.FLAG_DEFAULT, (current, flag) -> flag);
+			}
+		}
+		plugin.getRegionIndex().invalidate(world, lowestChunkX, lowestChunkZ);
+	}
+
+	/**
+	 * Exports all stored flags to an archive. Blocks until complete, so must not be called on the main thread.
+	 *
+	 * <p>A save of cached flags is requested first, but flags still queued for saving may be missing from the
+	 * archive.
+	 *
+	 * @param file the archive file
+	 * @return the number of chunks exported
+	 * @throws IllegalStateException if another export or import is running
+	 * @throws Exception if the export fails
+	 */
+	public long exportFlags(@NotNull Path file) throws Exception {
+		if (!transferring.compareAndSet(false, true)) {
+			throw new IllegalStateException("A flag export or import is already running!");
+		}
+
+		try {
+			flagCache.lazyExpireAll();
+			return FlagArchive.write(adapter, file);
+		} finally {
+			transferring.set(false);
+		}
+	}
+
+	/**
+	 * Imports flags from an archive, keeping the later of current and archived values. Blocks until complete, so must
+	 * not be called on the main thread.
+	 *
+	 * @param file the archive file
+	 * @return the number of chunks imported
+	 * @throws IllegalStateException if another export or import is running
+	 * @throws Exception if the import fails
+	 */
+	public long importFlags(@NotNull Path file) throws Exception {
+		if (!transferring.compareAndSet(false, true)) {
+			throw new IllegalStateException("A flag export or import is already running!");
+		}
+
+		try {
+			return FlagArchive.read(file, adapter, this::importArchiveBatch, plugin.config().getCacheBatchMax());
+		} finally {
+			transferring.set(false);
+		}
+	}
+
+	/**
+	 * Writes a consistent snapshot of the flag database. Blocks until complete, so must not be called on the main
+	 * thread.
+	 *
+	 * @return the snapshot file
+	 * @throws IllegalStateException if flag storage does not support snapshots or a snapshot is already being written
+	 * @throws Exception if the snapshot fails
+	 */
+	public @NotNull Path snapshotFlags() throws Exception {
+		if (snapshotTask == null) {
+			throw new IllegalStateException("Snapshots are only supported with SQLITE flag storage!");
+		}
+		return snapshotTask.snapshot();
 	}
 
 	/**
 	 * Force a save of all flags and close the connection.
 	 */
 	void shutdown() {
+		if (legacyImporter != null) {
+			legacyImporter.cancel();
+		}
+		if (garbageCollector != null) {
+			garbageCollector.cancel();
+		}
+		if (snapshotTask != null) {
+			snapshotTask.cancel();
+		}
+		loader.shutdown();
 		flagCache.expireAll();
 		adapter.close();
 	}
@@ -281,14 +452,23 @@ public class ChunkFlagger {
 	}
 
 	/**
-	 * Gets the number of entries queued to be removed from the flag cache.
+	 * Gets the number of entries queued to be saved from the flag cache.
 	 *
-	 * @return the flag cache deletion queue size
+	 * @return the flag cache save queue size
 	 */
 	public int getQueued() {
 		return flagCache.getQueued();
 	}
 
+	/**
+	 * Gets the maximum number of entries that may be queued to be saved from the flag cache.
+	 *
+	 * @return the flag cache save queue capacity
+	 */
+	public int getQueueCapacity() {
+		return flagCache.getQueueCapacity();
+	}
+
 	/**
 	 * Gets a {@link CompletableFuture} providing a chunk's {@link FlagData} from the database.
 	 *
@@ -298,13 +478,48 @@ public class ChunkFlagger {
 	 * @return a CompletableFuture supplying a FlagData
 	 */
 	public CompletableFuture<FlagData> getChunkFlag(@NotNull World world, int chunkX, int chunkZ) {
-		return this.flagCache.get(getFlagDbId(world.getName(), chunkX, chunkZ)).thenApply(flagData -> {
-			// Ensure changing config value allows deleting fresh chunks.
-			if (flagData.getLastVisit() == Long.MAX_VALUE && plugin.config().isDeleteFreshChunks(world)) {
-				flagData.setLastVisit(Config.FLAG_DEFAULT);
+		long chunkKey = getChunkKey(world.getName(), chunkX, chunkZ);
+		return flagCache.getAsync(chunkKey).thenApply(lastVisit -> getFlagData(world, chunkKey, lastVisit));
+	}
+
+	private @NotNull FlagData getFlagData(@NotNull World world, long chunkKey, long lastVisit) {
+		// Ensure changing config value allows deleting fresh chunks.
+		if (lastVisit == Long.MAX_VALUE && plugin.config().isDeleteFreshChunks(world)) {
+			flagCache.replace(chunkKey, Long.MAX_VALUE, Config.FLAG_DEFAULT);
+			lastVisit = Config.FLAG_DEFAULT;
+		}
+		return new FlagData(chunkKey, lastVisit);
+	}
+
+	/**
+	 * Loads the flags of every chunk in a region into the cache in a single database operation.
+	 * Chunks that are already cached are not modified.
+	 *
+	 * @param world the world name
+	 * @param lowestChunkX the lowest chunk X coordinate contained within the region
+	 * @param lowestChunkZ the lowest chunk Z coordinate contained within the region
+	 */
+	public void loadRegion(@NotNull String world, int lowestChunkX, int lowestChunkZ) {
+		int worldId = getWorldId(world);
+		if (flagCache.loadRegion(ChunkKey.of(worldId, lowestChunkX, lowestChunkZ))) {
+			return;
+		}
+
+		long[] flags;
+		try {
+			flags = adapter.getRegion(worldId, lowestChunkX, lowestChunkZ);
+		} catch (Exception e) {
+			// Chunks will be loaded individually as requested.
+			plugin.getLogger().log(Level.WARNING, "Exception fetching region flags", e);
+			return;
+		}
+
+		for (int localZ = 0; localZ < RegionInfo.CHUNKS_PER_AXIS; ++localZ) {
+			for (int localX = 0; localX < RegionInfo.CHUNKS_PER_AXIS; ++localX) {
+				long chunkKey = ChunkKey.of(worldId, lowestChunkX + localX, lowestChunkZ + localZ);
+				flagCache.putIfAbsent(chunkKey, flags[localZ << 5 | localX]);
 			}
-			return flagData;
-		});
+		}
 	}
 
 	/**
@@ -316,20 +531,41 @@ public class ChunkFlagger {
 	 * @return a {@link CompletableFuture<FlagData>}
 	 */
 	public @NotNull CompletableFuture<FlagData> getChunkFlagOnDelete(@NotNull World world, int chunkX, int chunkZ) {
-		return this.flagCache.get(getFlagDbId(world.getName(), chunkX, chunkZ) + "_old");
+		long chunkKey = getChunkKey(world.getName(), chunkX, chunkZ);
+		return CompletableFuture.supplyAsync(() -> {
+			try {
+				return new FlagData(chunkKey, adapter.getPrevious(chunkKey));
+			} catch (Exception e) {
+				plugin.getLogger().log(Level.WARNING, "Exception fetching chunk flags", e);
+				return new FlagData(chunkKey, Config.FLAG_OH_NO);
+			}
+		}, loader);
 	}
 
-	 /**
-	 * Gets a unique identifier for a chunk for use in the database.
+	/**
+	 * Gets a unique key for a chunk for use in the database.
 	 *
 	 * @param worldName the world name
 	 * @param chunkX the chunk X coordinate
 	 * @param chunkZ the chunk Z coordinate
-	 * @return the ID of the chunk for database use
+	 * @return the key of the chunk for database use
 	 */
-	@Contract(pure = true)
-	private @NotNull String getFlagDbId(@NotNull String worldName, int chunkX, int chunkZ) {
-		return worldName + "_" + chunkX + '_' + chunkZ;
+	private long getChunkKey(@NotNull String worldName, int chunkX, int chunkZ) {
+		return ChunkKey.of(getWorldId(worldName), chunkX, chunkZ);
+	}
+
+	/**
+	 * Gets the identifier of a world for use in the database.
+	 *
+	 * @param worldName the world name
+	 * @return the world identifier
+	 */
+	private int getWorldId(@NotNull String worldName) {
+		try {
+			return adapter.getWorldId(worldName);
+		} catch (Exception e) {
+			throw new RuntimeException("An error occurred while registering world " + worldName, e);
+		}
 	}
 
 	/**
@@ -337,28 +573,22 @@ public class ChunkFlagger {
 	 */
 	public static class FlagData {
 
-		private final @NotNull String chunkId;
-		private final @NotNull AtomicLong lastVisit;
-		private final @NotNull AtomicBoolean dirty;
+		private final long chunkKey;
+		private final long lastVisit;
 
-		private FlagData(@NotNull String chunkId, long lastVisit) {
-			this(chunkId, lastVisit, false);
-		}
-
-		private FlagData(@NotNull String chunkId, long lastVisit, boolean dirty) {
-			this.chunkId = chunkId;
-			this.lastVisit = new AtomicLong(lastVisit);
-			this.dirty = new AtomicBoolean(dirty);
+		private FlagData(long chunkKey, long lastVisit) {
+			this.chunkKey = chunkKey;
+			this.lastVisit = lastVisit;
 		}
 
 		/**
-		 * Gets the chunk's database identifier.
+		 * Gets the chunk's database key.
 		 *
-		 * @return the chunk's database identifier
+		 * @return the chunk's packed database key
+		 * @see ChunkKey
 		 */
-		@NotNull
-		public String getChunkId() {
-			return chunkId;
+		public long getChunkKey() {
+			return chunkKey;
 		}
 
 		/**
@@ -367,63 +597,12 @@ public class ChunkFlagger {
 		 * @return the chunk's last visit timestamp
 		 */
 		public long getLastVisit() {
-			return lastVisit.get();
-		}
-
-		/**
-		 * Sets the chunk's last visit timestamp.
-		 *
-		 * @param lastVisit the chunk's last visit timestamp
-		 */
-		private void setLastVisit(long lastVisit) {
-			if (this.lastVisit.getAndSet(lastVisit) != lastVisit) {
-				this.dirty.set(true);
-			}
-		}
-
-		/**
-		 * Imports an old value. For use in data conversion.
-		 *
-		 * @param oldValue the imported old value
-		 */
-		private void importOldValue(long oldValue) {
-			// Ignore default values.
-			if (oldValue == Config.FLAG_DEFAULT) {
-				return;
-			}
-
-			if (oldValue == Long.MAX_VALUE) {
-				// Only set fresh generated flag if current value is default.
-				if (this.lastVisit.compareAndSet(Config.FLAG_DEFAULT, oldValue)) {
-					this.dirty.set(true);
-				}
-				return;
-			}
-
-			if (this.lastVisit.updateAndGet(currentValue -> Math.max(currentValue, oldValue)) == oldValue) {
-				this.dirty.set(true);
-			}
-		}
-
-		/**
-		 * Gets whether the chunk data needs to be saved to the database.
-		 *
-		 * @return true if the chunk data has not been saved
-		 */
-		private boolean isDirty() {
-			return dirty.get();
-		}
-
-		/**
-		 * Hello yes this is Joseph King how can I help you?
-		 */
-		private void wash() {
-			dirty.set(false);
+			return lastVisit;
 		}
 
 		@Override
 		public int hashCode() {
-			return Objects.hash(chunkId, lastVisit, dirty);
+			return Long.hashCode(chunkKey) * 31 + Long.hashCode(lastVisit);
 		}
 
 		@Override
@@ -431,9 +610,8 @@ public class ChunkFlagger {
 			if (this == obj) return true;
 			if (obj == null || getClass() != obj.getClass()) return false;
 			FlagData other = (FlagData) obj;
-			return lastVisit.get() == other.lastVisit.get() && dirty.get() == other.dirty.get() && chunkId.equals(other.chunkId);
+			return lastVisit == other.lastVisit && chunkKey == other.chunkKey;
 		}
 	}
 
 }
-
@@ -0,0 +1,279 @@
+/*
+ * Copyright (c) 2015-2021 by Jikoo.
+ *
+ * Regionerator is licensed under a Creative Commons
+ * Attribution-ShareAlike 4.0 International License.
+ *
+ * You should have received a copy of the license along with this
+ * work. If not, see <http://creativecommons.org/licenses/by-sa/4.0/>.
+ */
+
+package com.github.jikoo.regionerator;
+
+import com.github.jikoo.regionerator.world.WorldInfo;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Persisted progress of a world's deletion cycle.
+ *
+ * <p>The journal records the order regions are visited in and a bitmap of regions that have been handled. The file
+ * starts with a magic number, version and region count, followed by the region file names in order and ends with the
+ * bitmap. Completing a region rewrites only the byte of the bitmap containing its bit, so progress is cheap to record
+ * and survives a restart. Regions created after the journal are left for the next cycle.
+ */
+class CycleJournal {
+
+	private static final int MAGIC = 0x52474358;
+	private static final int VERSION = 1;
+
+	private final @NotNull Logger logger;
+	private final @NotNull Path file;
+	private final @NotNull List<String> fileNames;
+	private final @NotNull BitSet completed;
+	private long bitmapOffset;
+	private @Nullable FileChannel channel;
+
+	private CycleJournal(
+			@NotNull Logger logger,
+			@NotNull Path file,
+			@NotNull List<String> fileNames,
+			@NotNull BitSet completed) {
+		this.logger = logger;
+		this.file = file;
+		this.fileNames = fileNames;
+		this.completed = completed;
+	}
+
+	/**
+	 * Gets the journal file for a world.
+	 *
+	 * @param plugin the Regionerator instance
+	 * @param worldName the name of the world
+	 * @return the journal file
+	 */
+	static @NotNull File getFile(@NotNull Regionerator plugin, @NotNull String worldName) {
+		return new File(new File(plugin.getDataFolder(), "cycles"), worldName + ".cycle");
+	}
+
+	/**
+	 * Resumes the unfinished cycle of a world or starts a new one with regions in random order.
+	 *
+	 * <p>Some servers may use settings that cause runs to never complete prior to server restarts. Randomizing the
+	 * order of new cycles improves eventual-correctness should the journal be lost.
+	 *
+	 * @param plugin the Regionerator instance
+	 * @param world the world
+	 * @return the journal
+	 */
+	static @NotNull CycleJournal open(@NotNull Regionerator plugin, @NotNull WorldInfo world) {
+		String worldName = world.getWorld().getName();
+		return open(plugin.getLogger(), getFile(plugin, worldName).toPath(), worldName, world.getRegionFileNames());
+	}
+
+	/**
+	 * Resumes the unfinished cycle stored in a file or starts a new one with regions in random order.
+	 *
+	 * @param logger the logger for progress and errors
+	 * @param file the journal file
+	 * @param worldName the name of the world
+	 * @param regionFileNames the names of the world's region files, used if a new cycle is started
+	 * @return the journal
+	 */
+	static @NotNull CycleJournal open(
+			@NotNull Logger logger,
+			@NotNull Path file,
+			@NotNull String worldName,
+			@NotNull Collection<String> regionFileNames) {
+		if (Files.isRegularFile(file)) {
+			try {
+				CycleJournal journal = read(logger, file);
+				logger.info(String.format("Resuming deletion cycle for %s: %s of %s regions complete.",
+						worldName, journal.completed.cardinality(), journal.fileNames.size()));
+				return journal;
+			} catch (IOException e) {
+				logger.log(Level.WARNING, "Unable to read deletion cycle progress for " + worldName + ", starting over", e);
+			}
+		}
+
+		List<String> fileNames = new ArrayList<>(regionFileNames);
+		Collections.shuffle(fileNames, ThreadLocalRandom.current());
+		// Regions may be stored in several files sharing a name.
+		fileNames = new ArrayList<>(new LinkedHashSet<>(fileNames));
+
+		CycleJournal journal = new CycleJournal(logger, file, fileNames, new BitSet());
+		try {
+			journal.write();
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "Unable to save deletion cycle progress for " + worldName, e);
+		}
+		return journal;
+	}
+
+	private static @NotNull CycleJournal read(@NotNull Logger logger, @NotNull Path file) throws IOException {
+		byte[] content = Files.readAllBytes(file);
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(content));
+		if (in.readInt() != MAGIC) {
+			throw new IOException("Not a deletion cycle journal");
+		}
+		int version = in.readInt();
+		if (version != VERSION) {
+			throw new IOException("Unsupported deletion cycle journal version " + version);
+		}
+		int count = in.readInt();
+		if (count < 0) {
+			throw new IOException("Invalid region count " + count);
+		}
+		List<String> fileNames = new ArrayList<>(Math.min(count, content.length));
+		for (int i = 0; i < count; ++i) {
+			fileNames.add(in.readUTF());
+		}
+
+		// The bitmap must directly follow the names, otherwise progress would be read from the wrong bytes.
+		int bitmapLength = getBitmapLength(count);
+		if (in.available() != bitmapLength) {
+			throw new IOException("Deletion cycle journal has unexpected length");
+		}
+		int bitmapOffset = content.length - bitmapLength;
+
+		BitSet completed = BitSet.valueOf(ByteBuffer.wrap(content, bitmapOffset, bitmapLength));
+		CycleJournal journal = new CycleJournal(logger, file, fileNames, completed);
+		journal.bitmapOffset = bitmapOffset;
+		journal.channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		return journal;
+	}
+
+	private void write() throws IOException {
+		Files.createDirectories(file.getParent());
+		Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(fileNames.size());
+			for (String fileName : fileNames) {
+				out.writeUTF(fileName);
+			}
+			bitmapOffset = out.size();
+			out.write(new byte[getBitmapLength(fileNames.size())]);
+		} catch (IOException e) {
+			Files.deleteIfExists(temp);
+			throw e;
+		}
+
+		Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+	}
+
+	private static int getBitmapLength(int count) {
+		return (count + 7) >> 3;
+	}
+
+	/**
+	 * Gets the number of regions in the cycle.
+	 *
+	 * @return the number of regions
+	 */
+	int size() {
+		return fileNames.size();
+	}
+
+	/**
+	 * Gets the file name of a region in the cycle.
+	 *
+	 * @param index the position of the region in the cycle
+	 * @return the region file name
+	 */
+	@NotNull String getFileName(int index) {
+		return fileNames.get(index);
+	}
+
+	/**
+	 * Gets whether a region has been handled.
+	 *
+	 * @param index the position of the region in the cycle
+	 * @return true if the region has been handled
+	 */
+	synchronized boolean isComplete(int index) {
+		return completed.get(index);
+	}
+
+	/**
+	 * Records that a region has been handled. Failure to save progress only costs repeated work after a restart, so
+	 * errors are logged and the journal is no longer saved.
+	 *
+	 * @param index the position of the region in the cycle
+	 */
+	synchronized void complete(int index) {
+		completed.set(index);
+		if (channel == null) {
+			return;
+		}
+
+		int byteIndex = index >> 3;
+		byte value = 0;
+		for (int bit = 0; bit < 8; ++bit) {
+			if (completed.get(byteIndex << 3 | bit)) {
+				value |= (byte) (1 << bit);
+			}
+		}
+		try {
+			ByteBuffer buffer = ByteBuffer.wrap(new byte[] { value });
+			while (buffer.hasRemaining()) {
+				channel.write(buffer, bitmapOffset + byteIndex);
+			}
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "Unable to save deletion cycle progress", e);
+			close();
+		}
+	}
+
+	/**
+	 * Closes the journal, keeping the file so that the cycle can be resumed.
+	 */
+	synchronized void close() {
+		if (channel == null) {
+			return;
+		}
+		try {
+			channel.close();
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "Unable to close deletion cycle progress", e);
+		}
+		channel = null;
+	}
+
+	/**
+	 * Closes the journal and deletes the file once the cycle is complete.
+	 */
+	synchronized void delete() {
+		close();
+		try {
+			Files.deleteIfExists(file);
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "Unable to delete deletion cycle progress", e);
+		}
+	}
+
+}
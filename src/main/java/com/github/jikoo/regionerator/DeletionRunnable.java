@@ -10,6 +10,7 @@
 
 package com.github.jikoo.regionerator;
 
+import com.github.jikoo.regionerator.util.yaml.Config;
 import com.github.jikoo.regionerator.world.ChunkInfo;
 import com.github.jikoo.regionerator.world.RegionInfo;
 import com.github.jikoo.regionerator.world.WorldInfo;
@@ -24,28 +25,45 @@ import java.io.IOException;
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Phaser;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.stream.Collectors;
-import java.util.stream.Stream;
 
 /**
  * Runnable for checking and deleting chunks and regions.
+ *
+ * <p>Regions pass through a {@link Pipeline} of reading, checking and writing stages running in parallel. Only the
+ * runnable's own thread hands out regions and waits on the phaser, so pausing stops new regions from being started
+ * while regions already in progress finish.
+ *
+ * <p>Progress is recorded in a {@link CycleJournal}, so a cycle interrupted by a restart resumes with the regions it
+ * had not yet handled.
  */
 public class DeletionRunnable implements Consumer<WrappedTask> {
 
-	private static final String STATS_FORMAT = "%s: checked %s, deleted %s regions & %s chunks";
+	private static final String STATS_FORMAT = "%s: checked %s (%s unchanged), deleted %s regions & %s chunks";
 
 	private final @NotNull Regionerator plugin;
 	private final @NotNull Phaser phaser;
 	private final AtomicLong nextRun = new AtomicLong(Long.MAX_VALUE);
 	private final AtomicInteger regionCount = new AtomicInteger();
-	private final AtomicInteger heavyChecks = new AtomicInteger();
+	private final AtomicInteger regionsUnchanged = new AtomicInteger();
+	// Each worker spends its own budget of heavy checks between recoveries.
+	private final ThreadLocal<AtomicInteger> heavyChecks = ThreadLocal.withInitial(AtomicInteger::new);
 	private final AtomicInteger regionsDeleted = new AtomicInteger();
 	private final AtomicInteger chunksDeleted = new AtomicInteger();
+	private final Set<Long> activeRegions = ConcurrentHashMap.newKeySet();
+	private final @NotNull DeletionThrottle throttle;
 	private final String worldName;
 	private @Nullable WorldInfo world;
 	private long nextLogSecond = Instant.now().getEpochSecond() + 5;
@@ -53,10 +71,12 @@ public class DeletionRunnable implements Consumer<WrappedTask> {
 
 	private WrappedTask taskInstance;
 	private List<Chunk> lessInteractChunks = new ArrayList<>();
+	private Set<Long> lessInteractRegions = Set.of();
 
 	DeletionRunnable(@NotNull Regionerator plugin, @NotNull World world) {
 		this.plugin = plugin;
 		this.phaser = new Phaser(1);
+		this.throttle = new DeletionThrottle(plugin);
 		this.world = plugin.getWorldManager().getWorld(world);
 		this.worldName = world.getName();
 	}
@@ -69,20 +89,30 @@ public class DeletionRunnable implements Consumer<WrappedTask> {
 
 		taskInstance = task;
 
-		Stream<RegionInfo> regions = null;
+		WorldInfo worldInfo = world;
+		CycleJournal journal = null;
 		try {
-			// Fetch region info on the main thread. Getting data folder may throw a CME otherwise.
-			regions = world.getRegions();
+			// Resume the unfinished cycle if there is one, otherwise record the order regions will be visited in.
+			journal = CycleJournal.open(plugin, worldInfo);
 		} catch (Exception e) {
 			plugin.getLogger().severe("Unable to access world data!");
-			plugin.getLogger().log(Level.SEVERE, "Error accessing world data on main thread", e);
+			plugin.getLogger().log(Level.SEVERE, "Error accessing world data", e);
 		}
 
-		int days = plugin.config().getExpiredDaysInWorld(world.getWorld());
-		lessInteractChunks = plugin.getTracker().pollExpiredChunks(world.getWorld(), days);
-
-		if (regions != null) {
-			regions.forEach(this::handleRegion);
+		int days = plugin.config().getExpiredDaysInWorld(worldInfo.getWorld());
+		lessInteractChunks = plugin.getTracker().pollExpiredChunks(worldInfo.getWorld(), days);
+		lessInteractRegions = lessInteractChunks.stream()
+				.map(chunk -> getRegionKey(chunk.getX() >> 5 << 5, chunk.getZ() >> 5 << 5))
+				.collect(Collectors.toSet());
+
+		if (journal != null) {
+			handleRegions(worldInfo, journal);
+			if (isCancelled()) {
+				// Keep progress so that the cycle resumes where it stopped.
+				journal.close();
+			} else {
+				journal.delete();
+			}
 		}
 
 		// Release world reference.
@@ -114,40 +144,139 @@ public class DeletionRunnable implements Consumer<WrappedTask> {
 		return taskInstance == null || taskInstance.isCancelled();
 	}
 
-	private void handleRegion(@NotNull RegionInfo region) {
-		plugin.getLogger().info("Cancelled: " + isCancelled());
+	private void handleRegions(@NotNull WorldInfo worldInfo, @NotNull CycleJournal journal) {
+		Pipeline pipeline = new Pipeline(journal);
 
+		try {
+			for (int i = 0; !isCancelled() && i < journal.size(); ++i) {
+				if (journal.isComplete(i)) {
+					continue;
+				}
+
+				RegionInfo region = worldInfo.getRegion(journal.getFileName(i));
+				if (region == null) {
+					journal.complete(i);
+					continue;
+				}
+
+				// Check phaser for paused state.
+				phaser.arriveAndAwaitAdvance();
+
+				// Only start a region once the pipeline has room so that pausing takes effect promptly.
+				pipeline.submit(new RegionTask(region, i));
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			// Wait for regions in progress to finish.
+			pipeline.shutdown();
+		}
+	}
+
+	/**
+	 * Reads a region and loads its flags. Regions that cannot have changed since they were last checked are skipped.
+	 *
+	 * @param task the region task
+	 * @return true if the region should be checked
+	 */
+	private boolean readRegion(@NotNull RegionTask task) {
 		if (isCancelled()) {
-			return;
+			return false;
 		}
 
-		// Check phaser for paused state.
-		phaser.arriveAndAwaitAdvance();
+		RegionInfo region = task.region;
 
-		int regionsChecked = regionCount.incrementAndGet();
+		// Regions sharing coordinates share flags and may share files, never handle them at the same time.
+		if (!activeRegions.add(task.regionKey)) {
+			plugin.debug(DebugLevel.HIGH, () -> String.format("Skipping %s: %s - in use by another worker.",
+					worldName, region.getIdentifier()));
+			return false;
+		}
+		task.active = true;
+
+		task.regionsChecked = regionCount.incrementAndGet();
 		plugin.debug(DebugLevel.HIGH, () -> String.format("Checking %s: %s (%s)",
 				worldName, region.getIdentifier(), regionCount.get()));
 
+		// Skip regions that cannot have changed state since they were last checked.
+		task.check = plugin.getRegionIndex().getWorld(region.getWorld(), plugin.config()).begin(region);
+		if (task.check.isUnchanged() && !lessInteractRegions.contains(task.regionKey)) {
+			regionsUnchanged.incrementAndGet();
+			plugin.debug(DebugLevel.HIGH, () -> "Skipping region - unchanged since last check.");
+			task.handled = true;
+			return false;
+		}
+
 		// Read the region's data from disk.
+		long ioStart = System.nanoTime();
 		if (!readRegion(region)) {
-			return;
+			task.check.abandon();
+			return false;
 		}
+		task.ioNanos = System.nanoTime() - ioStart;
+
+		// Load all flags for the region at once rather than querying each chunk individually.
+		plugin.getFlagger().loadRegion(worldName, region.getLowestChunkX(), region.getLowestChunkZ());
+
+		return true;
+	}
+
+	/**
+	 * Checks a region that has been read. Regions without chunks to delete are done, otherwise eligible chunks are
+	 * orphaned for writing.
+	 *
+	 * @param task the region task
+	 * @return true if the region should be written
+	 */
+	private boolean checkRegion(@NotNull RegionTask task) {
+		RegionInfo region = task.region;
+		RegionIndex.Check check = Objects.requireNonNull(task.check);
 
 		// Get a list of eligible chunks.
-		List<ChunkInfo> chunks = getEligibleChunks(region);
+		List<ChunkInfo> chunks = getEligibleChunks(region, check);
 
 		// If there are no eligible chunks, do post-region recovery and move on.
 		if (chunks == null) {
+			// Nothing was deleted, so the region's state holds until a chunk may become eligible.
+			if (isCancelled()) {
+				check.abandon();
+			} else {
+				check.complete();
+				task.handled = true;
+			}
+			throttle.sample(region.getWorld(), region.getLowestChunkX(), region.getLowestChunkZ(), task.ioNanos);
 			recover();
-			return;
+			return false;
 		}
 
+		// Writing changes the region's files, so it will be checked again regardless.
+		check.abandon();
+
 		// Orphan chunks. N.B. Changes do not take effect until RegionInfo#write is called.
 		chunks.forEach(ChunkInfo::setOrphaned);
+		task.chunks = chunks;
+		return true;
+	}
+
+	/**
+	 * Writes a checked region to disk.
+	 *
+	 * @param task the region task
+	 */
+	private void writeRegion(@NotNull RegionTask task) {
+		RegionInfo region = task.region;
 
 		// Write modified region to disk.
-		writeRegion(region, chunks);
+		long ioStart = System.nanoTime();
+		task.handled = writeRegion(region, Objects.requireNonNull(task.chunks));
+		task.ioNanos += System.nanoTime() - ioStart;
+
+		logRunStats(task.regionsChecked);
 
+		throttle.sample(region.getWorld(), region.getLowestChunkX(), region.getLowestChunkZ(), task.ioNanos);
+	}
+
+	private synchronized void logRunStats(int regionsChecked) {
 		// If 5 seconds have elapsed since last log and 20 or more regions have been checked, log run stats.
 		long now = Instant.now().getEpochSecond();
 		if (nextLogSecond <= now && regionsChecked >= nextLogCount) {
@@ -155,9 +284,6 @@ public class DeletionRunnable implements Consumer<WrappedTask> {
 			nextLogCount = regionsChecked + 20;
 			plugin.debug(DebugLevel.LOW, this::getRunStats);
 		}
-
-		// Do post-region recovery.
-		recover();
 	}
 
 	private boolean readRegion(@NotNull RegionInfo region) {
@@ -174,17 +300,17 @@ public class DeletionRunnable implements Consumer<WrappedTask> {
 		return true;
 	}
 
-	private @Nullable List<ChunkInfo> getEligibleChunks(@NotNull RegionInfo region) {
+	private @Nullable List<ChunkInfo> getEligibleChunks(@NotNull RegionInfo region, @NotNull RegionIndex.Check check) {
 		// Collect potentially eligible chunks
 		List<ChunkInfo> chunks = region.getChunks()
-				.filter(this::isDeleteEligible)
+				.filter(chunk -> isDeleteEligible(chunk, check))
 				.collect(Collectors.toCollection(ArrayList::new));
 
 		if (chunks.size() != region.getChunksPerRegion()) {
 			plugin.debug(DebugLevel.HIGH, () ->
 					String.format("Not all chunks are delete-eligible (%s) - removing unnecessary chunks", chunks.size()));
 			// If entire region is not being deleted, filter out chunks that are already orphaned or freshly generated
-			chunks.removeIf(this::isPartialDeletionIgnored);
+			chunks.removeIf(chunk -> isPartialDeletionIgnored(chunk, check));
 		} else if (!plugin.config().isDeleteFreshChunks(region.getWorld())
 				&& chunks.stream().noneMatch(chunk -> chunk.getVisitStatus() == VisitStatus.UNVISITED)) {
 			// If we're configured to not delete fresh chunks and the whole region is likely fresh, do nothing.
@@ -201,7 +327,7 @@ public class DeletionRunnable implements Consumer<WrappedTask> {
 		return chunks;
 	}
 
-	private boolean isPartialDeletionIgnored(ChunkInfo chunkInfo) {
+	private boolean isPartialDeletionIgnored(ChunkInfo chunkInfo, @NotNull RegionIndex.Check check) {
 		// Always ignore chunks if plugin is disabling.
 		if (isCancelled()) {
 			return true;
@@ -212,6 +338,7 @@ public class DeletionRunnable implements Consumer<WrappedTask> {
 			// The status should be cached here, but if enough time has elapsed it theoretically might not be.
 			visitStatus = chunkInfo.getVisitStatus();
 		} catch (RuntimeException e) {
+			check.eligibleAnytime();
 			return true;
 		}
 
@@ -224,7 +351,7 @@ public class DeletionRunnable implements Consumer<WrappedTask> {
 			return;
 		}
 
-		long recoveryTime = plugin.config().getDeletionRecoveryMillis();
+		long recoveryTime = throttle.getRecoveryMillis(plugin.config().getDeletionRecoveryMillis());
 		if (recoveryTime > 0) {
 			try {
 				// Allow server to recover for configured time.
@@ -234,10 +361,10 @@ public class DeletionRunnable implements Consumer<WrappedTask> {
 		}
 
 		// Reset chunk count after sleep.
-		heavyChecks.set(0);
+		heavyChecks.get().set(0);
 	}
 
-	private boolean isDeleteEligible(@NotNull ChunkInfo chunkInfo) {
+	private boolean isDeleteEligible(@NotNull ChunkInfo chunkInfo, @NotNull RegionIndex.Check check) {
 		World world = chunkInfo.getWorld();
 
 		if (isCancelled()) {
@@ -258,12 +385,15 @@ public class DeletionRunnable implements Consumer<WrappedTask> {
 		boolean isFresh = !plugin.config().isDeleteFreshChunks(world) && lastVisit == plugin.config().getFlagGenerated(world);
 
 		if (lessInteractChunks.contains(chunkInfo.getBukkitChunk())) {
+			check.eligibleAnytime();
 			plugin.debug(DebugLevel.HIGH, () -> String.format("Chunk %s_%s_%s is marked as delete because of less interactions",
 					chunkInfo.getWorld().getName(), chunkInfo.getChunkX(), chunkInfo.getChunkZ()));
 			return true;
 		}
 
 		if (!isFresh && now <= lastVisit) {
+			// Magic values never expire, they have to be replaced.
+			check.eligibleAt(lastVisit >= Config.FLAG_OH_NO ? Long.MAX_VALUE : lastVisit + 1);
 			// Chunk is visited
 			plugin.debug(DebugLevel.HIGH, () -> String.format("Chunk %s_%s_%s is visited until %s",
 					chunkInfo.getWorld().getName(), chunkInfo.getChunkX(), chunkInfo.getChunkZ(), lastVisit));
@@ -271,13 +401,14 @@ public class DeletionRunnable implements Consumer<WrappedTask> {
 		}
 
 		if (!isFresh && now - plugin.config().getFlagDuration(chunkInfo.getWorld()) <= chunkInfo.getLastModified()) {
+			check.eligibleAt(chunkInfo.getLastModified() + plugin.config().getFlagDuration(chunkInfo.getWorld()) + 1);
 			plugin.debug(DebugLevel.HIGH, () -> String.format("Chunk %s_%s_%s is modified until %s",
 					chunkInfo.getWorld().getName(), chunkInfo.getChunkX(), chunkInfo.getChunkZ(), chunkInfo.getLastModified()));
 			return false;
 		}
 
 		// Do recovery for heavy checks as required.
-		if (heavyChecks.incrementAndGet() >= plugin.config().getDeletionChunkCount()) {
+		if (heavyChecks.get().incrementAndGet() >= plugin.config().getDeletionChunkCount()) {
 			recover();
 		}
 
@@ -303,32 +434,53 @@ public class DeletionRunnable implements Consumer<WrappedTask> {
 			plugin.getDebugListener().ignoreChunk(chunkInfo.getChunkX(), chunkInfo.getChunkZ());
 		}
 
-		return visitStatus.ordinal() < VisitStatus.VISITED.ordinal();
+		if (visitStatus.ordinal() >= VisitStatus.VISITED.ordinal()) {
+			// Protections and unknown states may change at any time.
+			check.eligibleAnytime();
+			return false;
+		}
+
+		return true;
 
 	}
 
-	private void writeRegion(@NotNull RegionInfo region, List<ChunkInfo> chunks) {
+	private boolean writeRegion(@NotNull RegionInfo region, List<ChunkInfo> chunks) {
 		try {
 			if (!region.write()) {
 				plugin.debug(DebugLevel.HIGH, () -> "Skipping region - in use by server.");
-				return;
+				return false;
 			}
 
-			chunks.forEach(chunk -> plugin.getFlagger().unflagChunk(chunk.getWorld().getName(), chunk.getChunkX(), chunk.getChunkZ()));
-
 			if (chunks.size() == region.getChunksPerRegion()) {
+				plugin.getFlagger().unflagRegion(worldName, region.getLowestChunkX(), region.getLowestChunkZ());
 				regionsDeleted.incrementAndGet();
 			} else {
+				chunks.forEach(chunk -> plugin.getFlagger().unflagChunk(chunk.getWorld().getName(), chunk.getChunkX(), chunk.getChunkZ()));
 				chunksDeleted.addAndGet(chunks.size());
 			}
+			return true;
 		} catch (IOException e) {
 			plugin.debug(() -> String.format(
 					"Caught an IOException attempting to populate chunk data: %s", e.getMessage()), e);
+			return false;
 		}
 	}
 
 	public String getRunStats() {
-		return String.format(STATS_FORMAT, worldName, regionCount, regionsDeleted, chunksDeleted);
+		return String.format(STATS_FORMAT, worldName, regionCount, regionsUnchanged, regionsDeleted, chunksDeleted);
+	}
+
+	private static long getRegionKey(int lowestChunkX, int lowestChunkZ) {
+		return (long) lowestChunkX << 32 | lowestChunkZ & 0xFFFFFFFFL;
+	}
+
+	/**
+	 * Gets the current deletion rate relative to the configured recovery time.
+	 *
+	 * @return the deletion rate
+	 */
+	public double getDeletionRate() {
+		return throttle.getRate();
 	}
 
 	public @NotNull String getWorld() {
@@ -342,4 +494,151 @@ public class DeletionRunnable implements Consumer<WrappedTask> {
 	@NotNull Phaser getPhaser() {
 		return phaser;
 	}
+
+	/**
+	 * Stages regions pass through during a cycle.
+	 *
+	 * <p>A single reader reads region headers and loads their flags ahead of the workers checking regions, so the disk
+	 * does not sit idle during checks. Regions with chunks to delete are handed to a single writer, so the workers do
+	 * not wait on writes. The number of regions between reading and the end of their check and the number waiting to
+	 * be written are both bounded, limiting memory use and keeping the reader from running far ahead of a paused or
+	 * throttled cycle.
+	 */
+	private class Pipeline {
+
+		private final @NotNull CycleJournal journal;
+		private final @NotNull Semaphore readSlots;
+		private final @NotNull Semaphore writeSlots;
+		private final @NotNull ExecutorService reader;
+		private final @NotNull ExecutorService workers;
+		private final @NotNull ExecutorService writer;
+
+		private Pipeline(@NotNull CycleJournal journal) {
+			this.journal = journal;
+			Config config = plugin.config();
+			int parallelism = config.getDeletionParallelism();
+			readSlots = new Semaphore(parallelism + config.getDeletionPrefetch());
+			writeSlots = new Semaphore(config.getDeletionWriteQueue());
+			reader = createStage("RegionRead", 1);
+			workers = createStage("RegionDeletion", parallelism);
+			writer = createStage("RegionWrite", 1);
+		}
+
+		private @NotNull ExecutorService createStage(@NotNull String name, int threads) {
+			AtomicInteger threadId = new AtomicInteger();
+			return Executors.newFixedThreadPool(threads, runnable -> {
+				Thread thread = new Thread(runnable, name + "-" + worldName + "-" + threadId.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+
+		private void submit(@NotNull RegionTask task) throws InterruptedException {
+			readSlots.acquire();
+			reader.execute(() -> read(task));
+		}
+
+		private void read(@NotNull RegionTask task) {
+			boolean check = false;
+			try {
+				check = readRegion(task);
+			} finally {
+				if (check) {
+					workers.execute(() -> check(task));
+				} else {
+					readSlots.release();
+					finish(task);
+				}
+			}
+		}
+
+		private void check(@NotNull RegionTask task) {
+			boolean write = false;
+			try {
+				write = !isCancelled() && checkRegion(task);
+			} finally {
+				if (!write) {
+					task.check.abandon();
+				}
+				readSlots.release();
+				if (write) {
+					// Wait for the writer to catch up rather than holding more regions in memory.
+					writeSlots.acquireUninterruptibly();
+					writer.execute(() -> write(task));
+				} else {
+					finish(task);
+				}
+			}
+
+			if (write) {
+				// Do post-region recovery while the region is written.
+				recover();
+			}
+		}
+
+		private void write(@NotNull RegionTask task) {
+			try {
+				writeRegion(task);
+			} finally {
+				writeSlots.release();
+				finish(task);
+			}
+		}
+
+		private void finish(@NotNull RegionTask task) {
+			if (task.active) {
+				activeRegions.remove(task.regionKey);
+			}
+			// Regions in use, unreadable or interrupted by cancellation are checked again when the cycle resumes.
+			if (task.handled) {
+				journal.complete(task.index);
+			}
+		}
+
+		private void shutdown() {
+			// Stages hand regions on to the next, so each must finish before the next is shut down.
+			boolean interrupted = false;
+			for (ExecutorService stage : List.of(reader, workers, writer)) {
+				stage.shutdown();
+				while (true) {
+					try {
+						if (stage.awaitTermination(1, TimeUnit.MINUTES)) {
+							break;
+						}
+						plugin.debug(DebugLevel.LOW, () -> "Waiting for region checks in " + worldName + " to finish.");
+					} catch (InterruptedException e) {
+						interrupted = true;
+					}
+				}
+			}
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+	}
+
+	/**
+	 * A region passing through the {@link Pipeline}.
+	 */
+	private static class RegionTask {
+
+		private final @NotNull RegionInfo region;
+		private final int index;
+		private final long regionKey;
+		private boolean active;
+		private boolean handled;
+		private int regionsChecked;
+		private long ioNanos;
+		private RegionIndex.Check check;
+		private @Nullable List<ChunkInfo> chunks;
+
+		private RegionTask(@NotNull RegionInfo region, int index) {
+			this.region = region;
+			this.index = index;
+			this.regionKey = getRegionKey(region.getLowestChunkX(), region.getLowestChunkZ());
+		}
+
+	}
+
 }
@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2015-2021 by Jikoo.
+ *
+ * Regionerator is licensed under a Creative Commons
+ * Attribution-ShareAlike 4.0 International License.
+ *
+ * You should have received a copy of the license along with this
+ * work. If not, see <http://creativecommons.org/licenses/by-sa/4.0/>.
+ */
+
+package com.github.jikoo.regionerator;
+
+import com.github.jikoo.regionerator.util.yaml.Config;
+import org.bukkit.World;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Feedback controller scaling deletion speed to server load.
+ *
+ * <p>After each region, load is sampled from the server's average tick duration, the tick rate of the Folia region
+ * owning the checked area and the time spent reading and writing the region file. Load above a target lowers the
+ * deletion rate in proportion to the excess, while load below every target raises it gradually. The rate divides the
+ * configured recovery time.
+ */
+class DeletionThrottle {
+
+	// Weight of a new sample in the average region file access time.
+	private static final double IO_SMOOTHING = 0.2;
+	// Maximum relative rate increase per region while under target.
+	private static final double MAX_INCREASE = 0.1;
+
+	private final @NotNull Regionerator plugin;
+	private volatile boolean tickTimeSupported = true;
+	private volatile boolean regionTpsSupported = true;
+	private double ioMillis = 0;
+	private double rate = 1;
+
+	DeletionThrottle(@NotNull Regionerator plugin) {
+		this.plugin = plugin;
+	}
+
+	/**
+	 * Samples server load after a region has been handled and adjusts the deletion rate.
+	 *
+	 * @param world the world containing the region
+	 * @param chunkX the X coordinate of a chunk in the region
+	 * @param chunkZ the Z coordinate of a chunk in the region
+	 * @param ioNanos the time spent reading and writing the region file
+	 */
+	void sample(@NotNull World world, int chunkX, int chunkZ, long ioNanos) {
+		Config config = plugin.config();
+		if (!config.isDeletionThrottled()) {
+			return;
+		}
+
+		// Server is sampled outside the lock, workers may sample at the same time.
+		double tickMillis = getAverageTickTime();
+		double regionTps = getRegionTps(world, chunkX, chunkZ);
+
+		synchronized (this) {
+			ioMillis += IO_SMOOTHING * (ioNanos / 1_000_000D - ioMillis);
+
+			double pressure = ioMillis / config.getThrottleIoMillis();
+			if (tickMillis > 0) {
+				pressure = Math.max(pressure, tickMillis / config.getThrottleTickMillis());
+			}
+			if (regionTps > 0) {
+				pressure = Math.max(pressure, config.getThrottleRegionTps() / regionTps);
+			}
+
+			if (pressure > 1) {
+				rate /= pressure;
+			} else {
+				rate *= 1 + MAX_INCREASE * (1 - pressure);
+			}
+			rate = Math.max(config.getThrottleMinRate(), Math.min(config.getThrottleMaxRate(), rate));
+		}
+	}
+
+	/**
+	 * Gets the time to wait for the server to recover.
+	 *
+	 * @param recoveryMillis the configured recovery time
+	 * @return the recovery time scaled by the deletion rate
+	 */
+	long getRecoveryMillis(long recoveryMillis) {
+		if (!plugin.config().isDeletionThrottled()) {
+			return recoveryMillis;
+		}
+		return Math.round(recoveryMillis / getRate());
+	}
+
+	/**
+	 * Gets the current deletion rate relative to the configured recovery time.
+	 *
+	 * @return the deletion rate
+	 */
+	synchronized double getRate() {
+		return rate;
+	}
+
+	private double getAverageTickTime() {
+		if (!tickTimeSupported) {
+			return 0;
+		}
+
+		try {
+			return plugin.getServer().getAverageTickTime();
+		} catch (UnsupportedOperationException e) {
+			// Folia has no global tick.
+			tickTimeSupported = false;
+			return 0;
+		}
+	}
+
+	private double getRegionTps(@NotNull World world, int chunkX, int chunkZ) {
+		if (!regionTpsSupported) {
+			return 0;
+		}
+
+		try {
+			// 5 second average, null if no region owns the chunk.
+			double[] tps = plugin.getServer().getRegionTPS(world, chunkX, chunkZ);
+			return tps == null || tps.length == 0 ? 0 : tps[0];
+		} catch (UnsupportedOperationException e) {
+			regionTpsSupported = false;
+			return 0;
+		}
+	}
+
+}
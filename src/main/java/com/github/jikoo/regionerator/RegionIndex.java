@@ -0,0 +1,348 @@
+/*
+ * Copyright (c) 2015-2021 by Jikoo.
+ *
+ * Regionerator is licensed under a Creative Commons
+ * Attribution-ShareAlike 4.0 International License.
+ *
+ * You should have received a copy of the license along with this
+ * work. If not, see <http://creativecommons.org/licenses/by-sa/4.0/>.
+ */
+
+package com.github.jikoo.regionerator;
+
+import com.github.jikoo.regionerator.util.yaml.Config;
+import com.github.jikoo.regionerator.world.RegionInfo;
+import org.bukkit.World;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Index of regions whose deletion verdict cannot change until their files or flags do.
+ *
+ * <p>After a region is checked without any chunks being deleted, the index records a fingerprint of the size and
+ * modification time of the region's files along with the earliest time any chunk of the region could become eligible
+ * for deletion. Until then, the region is skipped as long as its files are unchanged, so a cycle over a stable world
+ * costs only file stats. Chunks that were only kept by protection hooks are never skipped, as protections may be
+ * removed at any time.
+ *
+ * <p>Flag changes remove the entry of the region containing the chunk. Since changes cannot be tracked while the
+ * index is not in memory, the index is only saved on shutdown and its files are deleted once loaded. After a crash,
+ * every region is checked again.
+ */
+class RegionIndex {
+
+	private static final int MAGIC = 0x52474958;
+	private static final int VERSION = 1;
+	private static final String EXTENSION = ".index";
+
+	private final @NotNull Logger logger;
+	private final @NotNull Path folder;
+	private final @NotNull Map<String, WorldIndex> worlds = new ConcurrentHashMap<>();
+
+	RegionIndex(@NotNull Regionerator plugin) {
+		this(plugin.getLogger(), new File(plugin.getDataFolder(), "cycles").toPath());
+	}
+
+	RegionIndex(@NotNull Logger logger, @NotNull Path folder) {
+		this.logger = logger;
+		this.folder = folder;
+	}
+
+	/**
+	 * Loads indices saved on shutdown. Loaded files are deleted.
+	 */
+	void load() {
+		File[] files = folder.toFile().listFiles((dir, name) -> name.endsWith(EXTENSION));
+		if (files == null) {
+			return;
+		}
+
+		for (File file : files) {
+			String worldName = file.getName().substring(0, file.getName().length() - EXTENSION.length());
+			try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file.toPath())))) {
+				if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+					throw new IOException("Unsupported region index format");
+				}
+				WorldIndex index = new WorldIndex(in.readInt());
+				int count = in.readInt();
+				for (int i = 0; i < count; ++i) {
+					long regionKey = in.readLong();
+					index.entries.put(regionKey, new Entry(in.readLong(), in.readLong()));
+				}
+				worlds.put(worldName, index);
+			} catch (IOException e) {
+				logger.log(Level.WARNING, "Unable to load region index for " + worldName, e);
+			}
+
+			try {
+				Files.delete(file.toPath());
+			} catch (IOException e) {
+				// If the index remains it may be outdated by the next start.
+				logger.log(Level.WARNING, "Unable to delete region index for " + worldName + ", discarding", e);
+				worlds.remove(worldName);
+			}
+		}
+	}
+
+	/**
+	 * Saves all indices. Must only be called once flags can no longer change.
+	 */
+	void save() {
+		for (Map.Entry<String, WorldIndex> world : worlds.entrySet()) {
+			Path file = folder.resolve(world.getKey() + EXTENSION);
+			Path temp = folder.resolve(world.getKey() + EXTENSION + ".tmp");
+			WorldIndex index = world.getValue();
+			try {
+				Files.createDirectories(folder);
+				try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+					out.writeInt(MAGIC);
+					out.writeInt(VERSION);
+					out.writeInt(index.settings);
+					// Snapshot entries, regions still being checked are not saved.
+					Map<Long, Entry> entries = Map.copyOf(index.entries);
+					out.writeInt((int) entries.values().stream().filter(Entry::isComplete).count());
+					for (Map.Entry<Long, Entry> entry : entries.entrySet()) {
+						if (entry.getValue().isComplete()) {
+							out.writeLong(entry.getKey());
+							out.writeLong(entry.getValue().fingerprint());
+							out.writeLong(entry.getValue().recheckAt());
+						}
+					}
+				}
+				Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch (IOException e) {
+				logger.log(Level.WARNING, "Unable to save region index for " + world.getKey(), e);
+				try {
+					Files.deleteIfExists(temp);
+				} catch (IOException ignored) {
+					// Temporary files are never loaded.
+				}
+			}
+		}
+	}
+
+	/**
+	 * Gets the index of a world. If settings affecting deletion have changed, the index is cleared.
+	 *
+	 * @param world the world
+	 * @param config the current configuration
+	 * @return the world's index
+	 */
+	@NotNull WorldIndex getWorld(@NotNull World world, @NotNull Config config) {
+		return getWorld(world.getName(), config.getFlagDuration(world), config.isDeleteFreshChunks(world));
+	}
+
+	/**
+	 * Gets the index of a world. If settings affecting deletion have changed, the index is cleared.
+	 *
+	 * <p>Only configured values may be compared. Times derived from the current time, like the flag given to freshly
+	 * generated chunks, would clear the index on every call.
+	 *
+	 * @param worldName the name of the world
+	 * @param flagDuration the duration chunks stay flagged for
+	 * @param deleteFreshChunks whether chunks that were never visited may be deleted
+	 * @return the world's index
+	 */
+	@NotNull WorldIndex getWorld(@NotNull String worldName, long flagDuration, boolean deleteFreshChunks) {
+		int settings = Objects.hash(flagDuration, deleteFreshChunks);
+		return worlds.compute(worldName, (name, index) -> index == null || index.settings != settings ? new WorldIndex(settings) : index);
+	}
+
+	/**
+	 * Removes the entry of the region containing a chunk after the chunk's flag has changed.
+	 *
+	 * @param worldName the world name
+	 * @param chunkX the chunk X coordinate
+	 * @param chunkZ the chunk Z coordinate
+	 */
+	void invalidate(@NotNull String worldName, int chunkX, int chunkZ) {
+		WorldIndex index = worlds.get(worldName);
+		if (index != null) {
+			index.invalidate(chunkX, chunkZ);
+		}
+	}
+
+	/**
+	 * Removes all entries after flags have changed in bulk.
+	 */
+	void invalidateAll() {
+		worlds.clear();
+	}
+
+	private static long getRegionKey(int chunkX, int chunkZ) {
+		return (long) (chunkX >> 5) << 32 | (chunkZ >> 5) & 0xFFFFFFFFL;
+	}
+
+	/**
+	 * Index entries of a single world.
+	 */
+	static final class WorldIndex {
+
+		private final int settings;
+		private final @NotNull Map<Long, Entry> entries = new ConcurrentHashMap<>();
+
+		WorldIndex(int settings) {
+			this.settings = settings;
+		}
+
+		/**
+		 * Starts checking a region. Any flag change from this point on prevents the result from being recorded.
+		 *
+		 * @param region the region
+		 * @return the check in progress
+		 */
+		@NotNull Check begin(@NotNull RegionInfo region) {
+			return begin(region.getLowestChunkX(), region.getLowestChunkZ(), region.getFiles());
+		}
+
+		/**
+		 * Starts checking a region. Any flag change from this point on prevents the result from being recorded.
+		 *
+		 * @param lowestChunkX the lowest chunk X coordinate of the region
+		 * @param lowestChunkZ the lowest chunk Z coordinate of the region
+		 * @param files the files storing the region
+		 * @return the check in progress
+		 */
+		@NotNull Check begin(int lowestChunkX, int lowestChunkZ, @NotNull Collection<Path> files) {
+			long regionKey = getRegionKey(lowestChunkX, lowestChunkZ);
+			long fingerprint = getFingerprint(files);
+			Entry previous = entries.get(regionKey);
+			boolean unchanged = previous != null && previous.isComplete() && previous.fingerprint() == fingerprint
+					&& System.currentTimeMillis() < previous.recheckAt();
+
+			Check check = new Check(this, regionKey, fingerprint, unchanged);
+			if (!unchanged) {
+				entries.put(regionKey, check.pending);
+			}
+			return check;
+		}
+
+		/**
+		 * Removes the entry of the region containing a chunk.
+		 *
+		 * @param chunkX the chunk X coordinate
+		 * @param chunkZ the chunk Z coordinate
+		 */
+		void invalidate(int chunkX, int chunkZ) {
+			entries.remove(getRegionKey(chunkX, chunkZ));
+		}
+
+		private static long getFingerprint(@NotNull Collection<Path> files) {
+			long fingerprint = 1;
+			for (Path file : files) {
+				long size = -1;
+				long modified = -1;
+				try {
+					BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+					size = attributes.size();
+					modified = attributes.lastModifiedTime().toMillis();
+				} catch (NoSuchFileException e) {
+					// Missing files are part of the fingerprint.
+				} catch (IOException e) {
+					// Unreadable files never match.
+					modified = System.nanoTime();
+				}
+				fingerprint = mix(mix(fingerprint ^ size) ^ modified);
+			}
+			return fingerprint;
+		}
+
+		private static long mix(long value) {
+			// MurmurHash3 finalizer, so that similar stats do not produce similar fingerprints.
+			value = (value ^ value >>> 33) * 0xFF51AFD7ED558CCDL;
+			value = (value ^ value >>> 33) * 0xC4CEB9FE1A85EC53L;
+			return value ^ value >>> 33;
+		}
+
+	}
+
+	/**
+	 * A region check in progress.
+	 */
+	static final class Check {
+
+		private final @NotNull WorldIndex index;
+		private final long regionKey;
+		private final boolean unchanged;
+		private final @NotNull Entry pending;
+		private long recheckAt = Long.MAX_VALUE;
+
+		private Check(@NotNull WorldIndex index, long regionKey, long fingerprint, boolean unchanged) {
+			this.index = index;
+			this.regionKey = regionKey;
+			this.unchanged = unchanged;
+			this.pending = new Entry(fingerprint, Long.MIN_VALUE);
+		}
+
+		/**
+		 * Gets whether the region's verdict cannot have changed since it was last checked.
+		 *
+		 * @return true if the region can be skipped
+		 */
+		boolean isUnchanged() {
+			return unchanged;
+		}
+
+		/**
+		 * Records that a chunk of the region may become eligible for deletion at the specified time.
+		 *
+		 * @param time the earliest time the chunk may become eligible
+		 */
+		void eligibleAt(long time) {
+			recheckAt = Math.min(recheckAt, time);
+		}
+
+		/**
+		 * Records that a chunk of the region may become eligible for deletion at any time.
+		 */
+		void eligibleAnytime() {
+			recheckAt = Long.MIN_VALUE;
+		}
+
+		/**
+		 * Records the result of a check that did not delete any chunks.
+		 */
+		void complete() {
+			if (recheckAt > System.currentTimeMillis()) {
+				Entry entry = new Entry(pending.fingerprint(), recheckAt);
+				index.entries.computeIfPresent(regionKey, (key, current) -> current == pending ? entry : current);
+			} else {
+				abandon();
+			}
+		}
+
+		/**
+		 * Discards the check. The region will be checked again next cycle.
+		 */
+		void abandon() {
+			index.entries.computeIfPresent(regionKey, (key, current) -> current == pending ? null : current);
+		}
+
+	}
+
+	private record Entry(long fingerprint, long recheckAt) {
+
+		private boolean isComplete() {
+			return recheckAt != Long.MIN_VALUE;
+		}
+
+	}
+
+}
@@ -54,6 +54,7 @@ public class Regionerator extends JavaPlugin {
 	private final ChunkActivityTracker tracker = new ChunkActivityTracker();
 	private WorldManager worldManager;
 	private ChunkFlagger chunkFlagger;
+	private RegionIndex regionIndex;
 	private Config config;
 	private MiscData miscData;
 	private FlaggingListener flagger;
@@ -96,6 +97,9 @@ public class Regionerator extends JavaPlugin {
 			return;
 		}
 
+		// Index must be loaded before flags can change.
+		regionIndex = new RegionIndex(this);
+		regionIndex.load();
 		chunkFlagger = new ChunkFlagger(this);
 		debugListener = new DebugListener(this);
 
@@ -153,6 +157,10 @@ public class Regionerator extends JavaPlugin {
 			chunkFlagger.shutdown();
 		}
 
+		if (regionIndex != null) {
+			regionIndex.save();
+		}
+
 		protectionHooks.clear();
 	}
 
@@ -316,6 +324,8 @@ public class Regionerator extends JavaPlugin {
 				// World is not loaded.
 				continue;
 			}
+			// A resumed cycle keeps its original start so that other worlds are not starved.
+			boolean resuming = CycleJournal.getFile(this, worldName).isFile();
 			try {
 				runnable = new DeletionRunnable(this, world);
 				getScheduler().runAsync(runnable);
@@ -324,7 +334,9 @@ public class Regionerator extends JavaPlugin {
 				continue;
 			}
 			deletionRunnables.put(worldName, runnable);
-			miscData.setLastCycleStart(worldName, System.currentTimeMillis());
+			if (!resuming) {
+				miscData.setLastCycleStart(worldName, System.currentTimeMillis());
+			}
 			debug(DebugLevel.LOW, () -> "Deletion run scheduled for " + world.getName());
 			return;
 		}
@@ -375,6 +387,10 @@ public class Regionerator extends JavaPlugin {
 		return this.chunkFlagger;
 	}
 
+	@NotNull RegionIndex getRegionIndex() {
+		return this.regionIndex;
+	}
+
 	DebugListener getDebugListener() {
 		return debugListener;
 	}
@@ -27,6 +27,7 @@ import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
+import java.nio.file.Path;
 import java.text.SimpleDateFormat;
 import java.util.*;
 import java.util.logging.Level;
@@ -77,6 +78,8 @@ public class RegioneratorExecutor implements TabExecutor {
 					sender.sendMessage(runnable.getRunStats());
 					if (runnable.getNextRun() < Long.MAX_VALUE) {
 						sender.sendMessage(" - Next run: " + format.format(runnable.getNextRun()));
+					} else if (plugin.config().isDeletionThrottled()) {
+						sender.sendMessage(String.format(" - Deletion rate: %.0f%%", runnable.getDeletionRate() * 100));
 					}
 				} else {
 					sender.sendMessage("Cycle for " + worldName + " is ready to start.");
@@ -115,9 +118,17 @@ public class RegioneratorExecutor implements TabExecutor {
                 //flagHandler.handleFlags(sender, args, false);
                 return true;
             }
+            case "flags" -> {
+                if (args.length > 1 && "snapshot".equalsIgnoreCase(args[1])) {
+                    handleFlagSnapshot(sender);
+                } else {
+                    handleFlagTransfer(sender, args);
+                }
+                return true;
+            }
             case "cache" -> {
                 sender.sendMessage("Cached chunk values: " + plugin.getFlagger().getCached());
-                sender.sendMessage("Queued saves: " + plugin.getFlagger().getQueued());
+                sender.sendMessage("Queued saves: " + plugin.getFlagger().getQueued() + '/' + plugin.getFlagger().getQueueCapacity());
                 return true;
             }
         }
@@ -183,6 +194,60 @@ public class RegioneratorExecutor implements TabExecutor {
 		return false;
 	}
 
+	private void handleFlagSnapshot(@NotNull CommandSender sender) {
+		sender.sendMessage("Writing flag snapshot...");
+		plugin.getScheduler().runAsync(task -> {
+			try {
+				long start = System.currentTimeMillis();
+				Path snapshot = plugin.getFlagger().snapshotFlags();
+				sender.sendMessage(String.format("Wrote flag snapshot %s in %sms.",
+						plugin.getDataFolder().toPath().relativize(snapshot), System.currentTimeMillis() - start));
+			} catch (IllegalStateException e) {
+				sender.sendMessage(e.getMessage());
+			} catch (Exception e) {
+				sender.sendMessage("Unable to write flag snapshot! Please check console.");
+				plugin.getLogger().log(Level.WARNING, "Unable to write flag snapshot", e);
+			}
+		});
+	}
+
+	private void handleFlagTransfer(@NotNull CommandSender sender, @NotNull String @NotNull [] args) {
+		if (args.length < 3 || !"export".equalsIgnoreCase(args[1]) && !"import".equalsIgnoreCase(args[1])) {
+			sender.sendMessage("/regionerator flags <snapshot|export <file>|import <file>>");
+			return;
+		}
+
+		// Archives are confined to the plugin folder.
+		Path dataFolder = plugin.getDataFolder().toPath().toAbsolutePath().normalize();
+		Path file = dataFolder.resolve(args[2]).normalize();
+		if (!file.startsWith(dataFolder) || file.equals(dataFolder)) {
+			sender.sendMessage("Flag archives must be inside the Regionerator folder.");
+			return;
+		}
+
+		boolean export = "export".equalsIgnoreCase(args[1]);
+		if (!export && !file.toFile().isFile()) {
+			sender.sendMessage("No such file: " + dataFolder.relativize(file));
+			return;
+		}
+
+		String name = dataFolder.relativize(file).toString();
+		sender.sendMessage((export ? "Exporting flags to " : "Importing flags from ") + name + "...");
+		plugin.getScheduler().runAsync(task -> {
+			try {
+				long start = System.currentTimeMillis();
+				long count = export ? plugin.getFlagger().exportFlags(file) : plugin.getFlagger().importFlags(file);
+				sender.sendMessage(String.format("%s %s chunk flags %s %s in %sms.", export ? "Exported" : "Imported",
+						count, export ? "to" : "from", name, System.currentTimeMillis() - start));
+			} catch (IllegalStateException e) {
+				sender.sendMessage(e.getMessage());
+			} catch (Exception e) {
+				sender.sendMessage("Unable to " + (export ? "export" : "import") + " flags! Please check console.");
+				plugin.getLogger().log(Level.WARNING, "Unable to " + (export ? "export flags to " : "import flags from ") + name, e);
+			}
+		});
+	}
+
 	@Override
 	public @Nullable List<String> onTabComplete(@NotNull CommandSender sender, @NotNull Command command,
 			@NotNull String label, @NotNull String @NotNull [] args) {
@@ -192,8 +257,8 @@ public class RegioneratorExecutor implements TabExecutor {
 
 		if (args.length == 1) {
 			String[] completions = sender instanceof Player
-					? new String[]{"pause", "resume", "reload", "flag", "unflag", "cache", "check"}
-					: new String[]{"pause", "resume", "reload", "flag", "unflag", "cache"};
+					? new String[]{"pause", "resume", "reload", "flag", "unflag", "flags", "cache", "check"}
+					: new String[]{"pause", "resume", "reload", "flag", "unflag", "flags", "cache"};
 			return TabCompleter.completeString(args[0], completions);
 		}
 
@@ -210,6 +275,10 @@ public class RegioneratorExecutor implements TabExecutor {
 			}
 		}
 
+		if ("flags".equals(args[0]) && args.length == 2) {
+			return TabCompleter.completeString(args[1], new String[]{"export", "import", "snapshot"});
+		}
+
 		return Collections.emptyList();
 	}
 
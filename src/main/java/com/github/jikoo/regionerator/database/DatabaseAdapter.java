@@ -10,14 +10,18 @@
 
 package com.github.jikoo.regionerator.database;
 
-import com.github.jikoo.regionerator.ChunkFlagger;
 import com.github.jikoo.regionerator.Regionerator;
+import com.github.jikoo.regionerator.util.FlagCache;
+import com.github.jikoo.regionerator.util.yaml.Config;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
+import java.io.File;
+import java.nio.file.Path;
 import java.sql.Connection;
 import java.sql.DatabaseMetaData;
 import java.sql.DriverManager;
-import java.util.Collection;
+import java.util.Map;
 
 /**
  * Interface defining behavior for interacting with a database.
@@ -28,22 +32,254 @@ public interface DatabaseAdapter {
 
 	void close();
 
-	void update(@NotNull Collection<ChunkFlagger.FlagData> flags) throws Exception;
+	/**
+	 * Gets the numeric identifier used to represent a world in chunk keys, registering the world if necessary.
+	 *
+	 * @param worldName the name of the world
+	 * @return the world identifier
+	 * @throws Exception if the world cannot be registered
+	 * @see com.github.jikoo.regionerator.util.ChunkKey
+	 */
+	int getWorldId(@NotNull String worldName) throws Exception;
 
-	long get(@NotNull String identifier) throws Exception;
+	/**
+	 * Saves a batch of flags. Flags set to {@link com.github.jikoo.regionerator.util.yaml.Config#FLAG_DEFAULT} are
+	 * removed.
+	 *
+	 * @param chunkKeys the packed chunk keys
+	 * @param flags the flag timestamps
+	 * @param length the number of flags in the batch
+	 * @throws Exception if the flags cannot be saved
+	 */
+	void update(long @NotNull [] chunkKeys, long @NotNull [] flags, int length) throws Exception;
+
+	/**
+	 * Gets the stored flag for a chunk.
+	 *
+	 * @param chunkKey the packed chunk key
+	 * @return the flag timestamp
+	 * @throws Exception if the flag cannot be read
+	 */
+	long get(long chunkKey) throws Exception;
+
+	/**
+	 * Gets the stored flags for a batch of chunks.
+	 *
+	 * <p>Adapters that can read several flags in a single operation should override this.
+	 *
+	 * @param chunkKeys the packed chunk keys
+	 * @param length the number of chunk keys in the batch
+	 * @return the flag timestamps in the same order as the keys
+	 * @throws Exception if the flags cannot be read
+	 */
+	default long @NotNull [] getAll(long @NotNull [] chunkKeys, int length) throws Exception {
+		long[] flags = new long[length];
+		for (int i = 0; i < length; ++i) {
+			flags[i] = get(chunkKeys[i]);
+		}
+		return flags;
+	}
+
+	/**
+	 * Gets the flag a chunk had at the time it was last deleted.
+	 *
+	 * @param chunkKey the packed chunk key
+	 * @return the flag timestamp as of the last deletion
+	 * @throws Exception if the flag cannot be read
+	 */
+	long getPrevious(long chunkKey) throws Exception;
+
+	/**
+	 * Gets the stored flags for every chunk in a region in a single operation.
+	 *
+	 * <p>The returned array is indexed by {@code localChunkZ << 5 | localChunkX}. Chunks without a stored flag
+	 * are {@link com.github.jikoo.regionerator.util.yaml.Config#FLAG_DEFAULT}.
+	 *
+	 * @param worldId the world identifier
+	 * @param lowestChunkX the lowest chunk X coordinate contained within the region
+	 * @param lowestChunkZ the lowest chunk Z coordinate contained within the region
+	 * @return the flag timestamps of the region's chunks
+	 * @throws Exception if the flags cannot be read
+	 */
+	long @NotNull [] getRegion(int worldId, int lowestChunkX, int lowestChunkZ) throws Exception;
+
+	/**
+	 * Removes the stored flags of every chunk in a region after the region has been deleted. Stored flags become the
+	 * flags as of last deletion.
+	 *
+	 * <p>Adapters without region-granular storage may leave this to the individual removal of each chunk's flag.
+	 *
+	 * @param worldId the world identifier
+	 * @param lowestChunkX the lowest chunk X coordinate contained within the region
+	 * @param lowestChunkZ the lowest chunk Z coordinate contained within the region
+	 * @throws Exception if the flags cannot be removed
+	 */
+	default void deleteRegion(int worldId, int lowestChunkX, int lowestChunkZ) throws Exception {}
+
+	/**
+	 * Gets the identifiers of all registered worlds.
+	 *
+	 * @return the world identifiers keyed by world name
+	 */
+	@NotNull Map<String, Integer> getWorldIds();
+
+	/**
+	 * Visits every chunk with a stored flag or flag as of last deletion. Chunks are visited in key order or grouped by
+	 * region, depending on the storage. Flags are read as they are visited rather than loaded all at once.
+	 *
+	 * @param visitor the visitor
+	 * @throws Exception if the flags cannot be read or the visitor throws an exception
+	 */
+	void forEachChunk(@NotNull ChunkVisitor visitor) throws Exception;
+
+	/**
+	 * Merges a batch of flags and flags as of last deletion into storage in a single operation. The later of the
+	 * stored and supplied value is kept for each; {@link Config#FLAG_DEFAULT} values never replace stored values.
+	 *
+	 * @param chunkKeys the packed chunk keys
+	 * @param flags the flag timestamps
+	 * @param lastDeleteTimes the flag timestamps as of last deletion
+	 * @param length the number of flags in the batch
+	 * @throws Exception if the flags cannot be saved
+	 */
+	void importFlags(long @NotNull [] chunkKeys, long @NotNull [] flags, long @NotNull [] lastDeleteTimes, int length)
+			throws Exception;
+
+	/**
+	 * Gets a flag cache backed directly by the adapter. Adapters that keep every flag in memory have no need for a
+	 * separate cache in front of them.
+	 *
+	 * @return the flag cache or {@code null} if the adapter requires a separate cache
+	 */
+	default @Nullable FlagCache getFlagCache() {
+		return null;
+	}
 
 	static @NotNull DatabaseAdapter getAdapter(@NotNull Regionerator plugin) throws Exception {
+		String storageName = plugin.getConfig().getString("flag-storage", FlagStorage.SQLITE.name());
+		FlagStorage storage;
+		try {
+			storage = FlagStorage.valueOf(storageName.toUpperCase());
+		} catch (IllegalArgumentException e) {
+			plugin.getLogger().warning("Unknown flag storage " + storageName + ", using SQLITE! Available options: SQLITE, MAPPED, MEMORY, JOURNAL");
+			storage = FlagStorage.SQLITE;
+		}
+
+		File databaseFile = new File(plugin.getDataFolder(), "data.db");
+
+		if (storage == FlagStorage.MAPPED) {
+			MappedRegionAdapter adapter = new MappedRegionAdapter(plugin.getLogger(), new File(plugin.getDataFolder(), "flagstore").toPath());
+			if (databaseFile.exists()) {
+				convertDatabase(plugin, databaseFile, adapter::importDatabase);
+			}
+			return adapter;
+		}
+
+		if (storage == FlagStorage.MEMORY) {
+			Config config = plugin.config();
+			MemoryAdapter adapter = new MemoryAdapter(plugin.getLogger(), new File(plugin.getDataFolder(), "flagmemory").toPath(),
+					config.getCacheBatchDelay(), config.getCacheQueueSize());
+			if (databaseFile.exists()) {
+				try {
+					convertDatabase(plugin, databaseFile, adapter::importDatabase);
+				} catch (Exception e) {
+					adapter.close();
+					throw e;
+				}
+			}
+			return adapter;
+		}
+
+		if (storage == FlagStorage.JOURNAL) {
+			Config config = plugin.config();
+			// Expired partitions are dropped as part of flag cleanup.
+			long retention = config.getFlagCleanupInterval() > 0 ? config.getFlagCleanupRetention() : -1;
+			JournalAdapter adapter = new JournalAdapter(plugin.getLogger(), new File(plugin.getDataFolder(), "flagjournal").toPath(), retention);
+			if (databaseFile.exists()) {
+				try {
+					convertDatabase(plugin, databaseFile, adapter::importDatabase);
+				} catch (Exception e) {
+					adapter.close();
+					throw e;
+				}
+			}
+			return adapter;
+		}
+
+		Path presenceFile = new File(plugin.getDataFolder(), "data.presence").toPath();
+		SQLeadenAdapter adapter = getSQLiteAdapter(plugin, databaseFile, presenceFile);
+		// Free space is only returned by flag cleanup, so the rebuild is not worth it otherwise.
+		adapter.startMaintenance(plugin.config().getFlagCleanupInterval() > 0);
+		return adapter;
+	}
+
+	private static @NotNull SQLeadenAdapter getSQLiteAdapter(
+			@NotNull Regionerator plugin,
+			@NotNull File databaseFile,
+			@Nullable Path presenceFile) throws Exception {
 		Class.forName("org.sqlite.JDBC");
 
-		Connection connection = DriverManager.getConnection("jdbc:sqlite:" + plugin.getDataFolder().getAbsolutePath() + "/data.db");
+		String url = "jdbc:sqlite:" + databaseFile.getAbsolutePath();
+		Connection connection = DriverManager.getConnection(url);
 		DatabaseMetaData metaData = connection.getMetaData();
 
 		if (metaData.getDatabaseMajorVersion() < 3 || metaData.getDatabaseMajorVersion() == 3 && metaData.getDatabaseMinorVersion() < 24) {
 			// Terrible SQLite
-			return new SQLeadenAdapter(plugin, connection);
+			return new SQLeadenAdapter(plugin, connection, url, presenceFile);
+		} else {
+			return new SQLiteAdapter(plugin, connection, url, presenceFile);
+		}
+	}
+
+	private static void convertDatabase(
+			@NotNull Regionerator plugin,
+			@NotNull File databaseFile,
+			@NotNull DatabaseImporter importer) throws Exception {
+		plugin.getLogger().info("Beginning converting data.db");
+
+		SQLeadenAdapter source = getSQLiteAdapter(plugin, databaseFile, null);
+		try {
+			if (!source.migrateLegacyTable()) {
+				throw new IllegalStateException("Unable to migrate legacy flags, cannot convert data.db!");
+			}
+			importer.importDatabase(source);
+		} finally {
+			source.close();
 		}
 
-		return new SQLiteAdapter(plugin, connection);
+		// Rename database
+		if (databaseFile.renameTo(new File(databaseFile.getParentFile(), "data.db.bak"))) {
+			plugin.getLogger().info("Finished converting data.db, renamed to data.db.bak. Delete at convenience if all appears well.");
+		} else {
+			plugin.getLogger().warning("Finished converting data.db but could not rename! Conversion will run again on startup.");
+		}
+	}
+
+	/**
+	 * A visitor for stored chunks.
+	 */
+	@FunctionalInterface
+	interface ChunkVisitor {
+
+		/**
+		 * Visits a stored chunk.
+		 *
+		 * @param chunkKey the packed chunk key
+		 * @param flag the flag timestamp
+		 * @param lastDeleteTime the flag timestamp as of last deletion
+		 * @throws Exception if the chunk cannot be handled
+		 */
+		void visit(long chunkKey, long flag, long lastDeleteTime) throws Exception;
+
+	}
+
+	/**
+	 * An adapter able to import all flags from an SQLite database.
+	 */
+	@FunctionalInterface
+	interface DatabaseImporter {
+
+		void importDatabase(@NotNull SQLeadenAdapter source) throws Exception;
 
 	}
 
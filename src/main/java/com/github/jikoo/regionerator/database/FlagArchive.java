@@ -0,0 +1,353 @@
+/*
+ * Copyright (c) 2015-2021 by Jikoo.
+ *
+ * Regionerator is licensed under a Creative Commons
+ * Attribution-ShareAlike 4.0 International License.
+ *
+ * You should have received a copy of the license along with this
+ * work. If not, see <http://creativecommons.org/licenses/by-sa/4.0/>.
+ */
+
+package com.github.jikoo.regionerator.database;
+
+import com.github.jikoo.regionerator.util.ChunkKey;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Portable, compressed archive of stored flags for backups and moving flags between storage types or servers.
+ *
+ * <p>The archive is a gzip stream starting with a magic number and version, followed by tagged sections:
+ * <ul>
+ *   <li>world: archive world identifier and name, written before the first block of the world</li>
+ *   <li>block: world, region coordinates and count, followed by that many chunks of the region ordered by local
+ *   index. Each chunk is stored as the gap from the previous local index and the differences of its flag and flag as
+ *   of last deletion from the previous chunk's.</li>
+ *   <li>end: total number of chunks, so that a truncated archive is detected</li>
+ * </ul>
+ * All numbers are variable-length, with signed values zigzag-encoded. A region may span several blocks depending on
+ * the order storage visits chunks in. Reading and writing both stream, so memory use does not depend on archive size.
+ */
+public final class FlagArchive {
+
+	private static final int MAGIC = 0x52474641;
+	private static final int VERSION = 1;
+	private static final int SECTION_END = 0;
+	private static final int SECTION_WORLD = 1;
+	private static final int SECTION_BLOCK = 2;
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * Writes every stored flag to an archive. The archive is written to a temporary file and moved into place once
+	 * complete.
+	 *
+	 * @param adapter the database adapter
+	 * @param file the archive file
+	 * @return the number of chunks written
+	 * @throws Exception if the flags cannot be read or the archive cannot be written
+	 */
+	public static long write(@NotNull DatabaseAdapter adapter, @NotNull Path file) throws Exception {
+		Map<Integer, String> worldNames = new HashMap<>();
+		adapter.getWorldIds().forEach((name, id) -> worldNames.put(id, name));
+
+		Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+		BlockWriter writer;
+		try (OutputStream out = new BufferedOutputStream(new GZIPOutputStream(Files.newOutputStream(temp), BUFFER_SIZE))) {
+			writeInt(out, MAGIC);
+			writeVarLong(out, VERSION);
+
+			writer = new BlockWriter(out, worldNames);
+			adapter.forEachChunk(writer::add);
+			writer.flush();
+
+			out.write(SECTION_END);
+			writeVarLong(out, writer.total);
+		} catch (Exception e) {
+			Files.deleteIfExists(temp);
+			throw e;
+		}
+
+		Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		return writer.total;
+	}
+
+	/**
+	 * Reads flags from an archive, passing them on in batches.
+	 *
+	 * @param file the archive file
+	 * @param adapter the database adapter used to identify worlds
+	 * @param importer the importer merging batches into storage
+	 * @param batchSize the maximum number of chunks in a batch
+	 * @return the number of chunks read
+	 * @throws Exception if the archive cannot be read or the flags cannot be imported
+	 */
+	public static long read(
+			@NotNull Path file,
+			@NotNull DatabaseAdapter adapter,
+			@NotNull BatchImporter importer,
+			int batchSize) throws Exception {
+		batchSize = Math.max(1, batchSize);
+		long[] chunkKeys = new long[batchSize];
+		long[] flags = new long[batchSize];
+		long[] lastDeleteTimes = new long[batchSize];
+		int length = 0;
+		long total = 0;
+		Map<Integer, Integer> worldIds = new HashMap<>();
+
+		try (InputStream in = new BufferedInputStream(new GZIPInputStream(Files.newInputStream(file), BUFFER_SIZE))) {
+			if (readInt(in) != MAGIC) {
+				throw new IOException("Not a flag archive");
+			}
+			long version = readVarLong(in);
+			if (version != VERSION) {
+				throw new IOException("Unsupported flag archive version " + version);
+			}
+
+			while (true) {
+				int section = in.read();
+				if (section < 0) {
+					throw new EOFException("Flag archive is truncated");
+				}
+
+				if (section == SECTION_END) {
+					long expected = readVarLong(in);
+					if (expected != total) {
+						throw new IOException("Flag archive contains " + total + " chunks but expected " + expected);
+					}
+					break;
+				}
+
+				if (section == SECTION_WORLD) {
+					int archiveId = (int) readVarLong(in);
+					byte[] name = new byte[(int) readVarLong(in)];
+					readFully(in, name);
+					worldIds.put(archiveId, adapter.getWorldId(new String(name, StandardCharsets.UTF_8)));
+					continue;
+				}
+
+				if (section != SECTION_BLOCK) {
+					throw new IOException("Unknown flag archive section " + section);
+				}
+
+				int archiveId = (int) readVarLong(in);
+				Integer worldId = worldIds.get(archiveId);
+				if (worldId == null) {
+					throw new IOException("Flag archive references unknown world " + archiveId);
+				}
+				int lowestChunkX = (int) readZigZag(in) << 5;
+				int lowestChunkZ = (int) readZigZag(in) << 5;
+				long count = readVarLong(in);
+
+				int index = -1;
+				long flag = 0;
+				long lastDeleteTime = 0;
+				for (long i = 0; i < count; ++i) {
+					index += (int) readVarLong(in) + 1;
+					flag += readZigZag(in);
+					lastDeleteTime += readZigZag(in);
+
+					chunkKeys[length] = ChunkKey.of(worldId, lowestChunkX + (index & 31), lowestChunkZ + (index >> 5));
+					flags[length] = flag;
+					lastDeleteTimes[length] = lastDeleteTime;
+					if (++length == batchSize) {
+						importer.importFlags(chunkKeys, flags, lastDeleteTimes, length);
+						length = 0;
+					}
+				}
+				total += count;
+			}
+		}
+
+		if (length > 0) {
+			importer.importFlags(chunkKeys, flags, lastDeleteTimes, length);
+		}
+
+		return total;
+	}
+
+	/**
+	 * Gathers visited chunks into blocks.
+	 */
+	private static class BlockWriter {
+
+		private final @NotNull OutputStream out;
+		private final @NotNull Map<Integer, String> worldNames;
+		private final @NotNull ByteArrayOutputStream block = new ByteArrayOutputStream();
+		private final boolean[] writtenWorlds = new boolean[ChunkKey.MAX_WORLD_ID + 1];
+		private int worldId = -1;
+		private int regionX;
+		private int regionZ;
+		private int count = 0;
+		private int index;
+		private long flag;
+		private long lastDeleteTime;
+		private long total = 0;
+
+		private BlockWriter(@NotNull OutputStream out, @NotNull Map<Integer, String> worldNames) {
+			this.out = out;
+			this.worldNames = worldNames;
+		}
+
+		private void add(long chunkKey, long chunkFlag, long chunkLastDeleteTime) throws IOException {
+			int chunkWorldId = ChunkKey.getWorldId(chunkKey);
+			int chunkX = ChunkKey.getChunkX(chunkKey);
+			int chunkZ = ChunkKey.getChunkZ(chunkKey);
+			int chunkIndex = (chunkZ & 31) << 5 | (chunkX & 31);
+
+			if (count > 0 && (chunkWorldId != worldId || chunkX >> 5 != regionX || chunkZ >> 5 != regionZ || chunkIndex <= index)) {
+				flush();
+			}
+
+			if (count == 0) {
+				if (!writtenWorlds[chunkWorldId]) {
+					writeWorld(chunkWorldId);
+				}
+				worldId = chunkWorldId;
+				regionX = chunkX >> 5;
+				regionZ = chunkZ >> 5;
+				index = -1;
+				flag = 0;
+				lastDeleteTime = 0;
+			}
+
+			writeVarLong(block, chunkIndex - index - 1);
+			writeZigZag(block, chunkFlag - flag);
+			writeZigZag(block, chunkLastDeleteTime - lastDeleteTime);
+			index = chunkIndex;
+			flag = chunkFlag;
+			lastDeleteTime = chunkLastDeleteTime;
+			++count;
+		}
+
+		private void writeWorld(int chunkWorldId) throws IOException {
+			String name = worldNames.get(chunkWorldId);
+			if (name == null) {
+				throw new IOException("Stored flags reference unknown world " + chunkWorldId);
+			}
+			byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+			out.write(SECTION_WORLD);
+			writeVarLong(out, chunkWorldId);
+			writeVarLong(out, bytes.length);
+			out.write(bytes);
+			writtenWorlds[chunkWorldId] = true;
+		}
+
+		private void flush() throws IOException {
+			if (count == 0) {
+				return;
+			}
+
+			out.write(SECTION_BLOCK);
+			writeVarLong(out, worldId);
+			writeZigZag(out, regionX);
+			writeZigZag(out, regionZ);
+			writeVarLong(out, count);
+			block.writeTo(out);
+			block.reset();
+			total += count;
+			count = 0;
+		}
+
+	}
+
+	/**
+	 * An importer accepting batches of archived flags.
+	 */
+	@FunctionalInterface
+	public interface BatchImporter {
+
+		/**
+		 * Imports a batch of flags.
+		 *
+		 * @param chunkKeys the packed chunk keys
+		 * @param flags the flag timestamps
+		 * @param lastDeleteTimes the flag timestamps as of last deletion
+		 * @param length the number of flags in the batch
+		 * @throws Exception if the flags cannot be imported
+		 */
+		void importFlags(long @NotNull [] chunkKeys, long @NotNull [] flags, long @NotNull [] lastDeleteTimes, int length)
+				throws Exception;
+
+	}
+
+	private static void writeInt(@NotNull OutputStream out, int value) throws IOException {
+		out.write(value >>> 24);
+		out.write(value >>> 16);
+		out.write(value >>> 8);
+		out.write(value);
+	}
+
+	private static int readInt(@NotNull InputStream in) throws IOException {
+		int value = 0;
+		for (int i = 0; i < Integer.BYTES; ++i) {
+			value = value << 8 | readByte(in);
+		}
+		return value;
+	}
+
+	private static void writeVarLong(@NotNull OutputStream out, long value) throws IOException {
+		while ((value & ~0x7FL) != 0) {
+			out.write((int) (value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.write((int) value);
+	}
+
+	private static long readVarLong(@NotNull InputStream in) throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < Long.SIZE; shift += 7) {
+			int b = readByte(in);
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("Malformed variable-length number in flag archive");
+	}
+
+	private static void writeZigZag(@NotNull OutputStream out, long value) throws IOException {
+		writeVarLong(out, value << 1 ^ value >> 63);
+	}
+
+	private static long readZigZag(@NotNull InputStream in) throws IOException {
+		long value = readVarLong(in);
+		return value >>> 1 ^ -(value & 1);
+	}
+
+	private static int readByte(@NotNull InputStream in) throws IOException {
+		int b = in.read();
+		if (b < 0) {
+			throw new EOFException("Flag archive is truncated");
+		}
+		return b;
+	}
+
+	private static void readFully(@NotNull InputStream in, byte @NotNull [] bytes) throws IOException {
+		int read = 0;
+		while (read < bytes.length) {
+			int count = in.read(bytes, read, bytes.length - read);
+			if (count < 0) {
+				throw new EOFException("Flag archive is truncated");
+			}
+			read += count;
+		}
+	}
+
+	private FlagArchive() {}
+
+}
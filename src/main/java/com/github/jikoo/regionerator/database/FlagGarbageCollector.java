@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2015-2021 by Jikoo.
+ *
+ * Regionerator is licensed under a Creative Commons
+ * Attribution-ShareAlike 4.0 International License.
+ *
+ * You should have received a copy of the license along with this
+ * work. If not, see <http://creativecommons.org/licenses/by-sa/4.0/>.
+ */
+
+package com.github.jikoo.regionerator.database;
+
+import com.github.jikoo.regionerator.DeletionRunnable;
+import com.github.jikoo.regionerator.Regionerator;
+import com.github.jikoo.regionerator.util.ChunkKey;
+import com.github.jikoo.regionerator.util.yaml.Config;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+
+/**
+ * Task removing stale flags from an SQLite database.
+ *
+ * <p>Flags that expired long ago are indistinguishable from missing flags during deletion, and flags for worlds that
+ * no longer exist are never read again. Removal is done in small transactions walking each world's key range with a
+ * delay between transactions so that flag saves are never held up for long. Worlds with an active deletion cycle are
+ * skipped. Once complete, freed pages are returned to the file system.
+ */
+public class FlagGarbageCollector implements Runnable {
+
+	private final @NotNull Regionerator plugin;
+	private final @NotNull SQLeadenAdapter adapter;
+	private final AtomicBoolean running = new AtomicBoolean();
+	private volatile boolean cancelled = false;
+
+	public FlagGarbageCollector(@NotNull Regionerator plugin, @NotNull SQLeadenAdapter adapter) {
+		this.plugin = plugin;
+		this.adapter = adapter;
+	}
+
+	@Override
+	public void run() {
+		if (cancelled || adapter.isMigrating() || !running.compareAndSet(false, true)) {
+			return;
+		}
+
+		try {
+			collect();
+		} catch (SQLException e) {
+			if (!cancelled) {
+				plugin.getLogger().log(Level.WARNING, "Exception cleaning up flags", e);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			running.set(false);
+		}
+	}
+
+	private void collect() throws SQLException, InterruptedException {
+		Config config = plugin.config();
+		long cutoff = System.currentTimeMillis() - config.getFlagCleanupRetention();
+		long[] removed = new long[config.getFlagCleanupBatchSize()];
+		long batchDelay = config.getFlagCleanupBatchDelay();
+		long total = 0;
+
+		for (Map.Entry<String, Integer> world : Map.copyOf(adapter.getWorldIds()).entrySet()) {
+			String worldName = world.getKey();
+			// Flags for worlds that have been removed are never used again.
+			long worldCutoff = new File(plugin.getServer().getWorldContainer(), worldName).isDirectory() ? cutoff : Long.MAX_VALUE;
+			int afterChunkX = Integer.MIN_VALUE;
+			int afterChunkZ = Integer.MIN_VALUE;
+
+			while (true) {
+				if (cancelled) {
+					return;
+				}
+				if (isDeleting(worldName)) {
+					plugin.getLogger().info("Skipping flag cleanup for " + worldName + " during deletion cycle.");
+					break;
+				}
+
+				int count = adapter.removeStaleFlags(world.getValue(), afterChunkX, afterChunkZ, worldCutoff, removed);
+				total += count;
+
+				if (count < removed.length) {
+					break;
+				}
+
+				long last = removed[count - 1];
+				afterChunkX = ChunkKey.getChunkX(last);
+				afterChunkZ = ChunkKey.getChunkZ(last);
+				Thread.sleep(batchDelay);
+			}
+		}
+
+		if (cancelled) {
+			return;
+		}
+
+		long reclaimed = adapter.vacuum();
+		plugin.getLogger().info(String.format("Flag cleanup removed %s stale flags and reclaimed %s bytes.", total, reclaimed));
+	}
+
+	private boolean isDeleting(@NotNull String worldName) {
+		DeletionRunnable runnable = plugin.deletionRunnables.get(worldName);
+		// Matches the check used when activating deletion: the next run is only set once a cycle completes.
+		return runnable != null && runnable.getNextRun() == Long.MAX_VALUE;
+	}
+
+	/**
+	 * Stops cleanup at the next opportunity.
+	 */
+	public void cancel() {
+		cancelled = true;
+	}
+
+}
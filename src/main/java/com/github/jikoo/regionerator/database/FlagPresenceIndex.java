@@ -0,0 +1,166 @@
+/*
+ * Copyright (c) 2015-2021 by Jikoo.
+ *
+ * Regionerator is licensed under a Creative Commons
+ * Attribution-ShareAlike 4.0 International License.
+ *
+ * You should have received a copy of the license along with this
+ * work. If not, see <http://creativecommons.org/licenses/by-sa/4.0/>.
+ */
+
+package com.github.jikoo.regionerator.database;
+
+import com.github.jikoo.regionerator.util.ChunkKey;
+import com.github.jikoo.regionerator.world.RegionInfo;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A per-region bitmap of chunks that have a stored flag.
+ *
+ * <p>The index is exact: a chunk without a set bit is guaranteed to have no stored flag, allowing lookups for
+ * unvisited terrain to skip the database entirely. Bits must be set before a flag is stored and may only be cleared
+ * once the flag's removal has been committed.
+ */
+class FlagPresenceIndex {
+
+	private static final int MAGIC = 0x52474650;
+	private static final int VERSION = 1;
+	private static final int WORDS = RegionInfo.TOTAL_CHUNKS / Long.SIZE;
+
+	private final Map<Long, long[]> regions = new HashMap<>();
+
+	/**
+	 * Checks whether a chunk may have a stored flag.
+	 *
+	 * @param chunkKey the packed chunk key
+	 * @return false if the chunk definitely has no stored flag
+	 */
+	synchronized boolean mayContain(long chunkKey) {
+		long[] bits = regions.get(getRegionKey(chunkKey));
+		if (bits == null) {
+			return false;
+		}
+		int index = getIndex(chunkKey);
+		return (bits[index >>> 6] & 1L << index) != 0;
+	}
+
+	/**
+	 * Checks whether any chunk in a region may have a stored flag.
+	 *
+	 * @param worldId the world identifier
+	 * @param lowestChunkX the lowest chunk X coordinate contained within the region
+	 * @param lowestChunkZ the lowest chunk Z coordinate contained within the region
+	 * @return false if no chunk in the region has a stored flag
+	 */
+	synchronized boolean mayContainRegion(int worldId, int lowestChunkX, int lowestChunkZ) {
+		return regions.containsKey(getRegionKey(ChunkKey.of(worldId, lowestChunkX, lowestChunkZ)));
+	}
+
+	/**
+	 * Marks a chunk as having a stored flag.
+	 *
+	 * @param chunkKey the packed chunk key
+	 */
+	synchronized void add(long chunkKey) {
+		int index = getIndex(chunkKey);
+		regions.computeIfAbsent(getRegionKey(chunkKey), key -> new long[WORDS])[index >>> 6] |= 1L << index;
+	}
+
+	/**
+	 * Marks a chunk as having no stored flag.
+	 *
+	 * @param chunkKey the packed chunk key
+	 */
+	synchronized void remove(long chunkKey) {
+		long regionKey = getRegionKey(chunkKey);
+		long[] bits = regions.get(regionKey);
+		if (bits == null) {
+			return;
+		}
+
+		int index = getIndex(chunkKey);
+		bits[index >>> 6] &= ~(1L << index);
+
+		for (long word : bits) {
+			if (word != 0) {
+				return;
+			}
+		}
+		regions.remove(regionKey);
+	}
+
+	/**
+	 * Writes the index to a file.
+	 *
+	 * @param path the file path
+	 * @throws IOException if the file cannot be written
+	 */
+	synchronized void save(@NotNull Path path) throws IOException {
+		Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(regions.size());
+			for (Map.Entry<Long, long[]> entry : regions.entrySet()) {
+				out.writeLong(entry.getKey());
+				for (long word : entry.getValue()) {
+					out.writeLong(word);
+				}
+			}
+		}
+		Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Reads an index from a file written by {@link #save(Path)}.
+	 *
+	 * @param path the file path
+	 * @return the index or {@code null} if the file does not exist or is not a valid index
+	 * @throws IOException if the file cannot be read
+	 */
+	static @Nullable FlagPresenceIndex load(@NotNull Path path) throws IOException {
+		if (!Files.isRegularFile(path)) {
+			return null;
+		}
+
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				return null;
+			}
+
+			FlagPresenceIndex index = new FlagPresenceIndex();
+			int size = in.readInt();
+			for (int i = 0; i < size; ++i) {
+				long regionKey = in.readLong();
+				long[] bits = new long[WORDS];
+				for (int word = 0; word < WORDS; ++word) {
+					bits[word] = in.readLong();
+				}
+				index.regions.put(regionKey, bits);
+			}
+			return index;
+		}
+	}
+
+	private static long getRegionKey(long chunkKey) {
+		// Clear local coordinate bits to key by region.
+		return ChunkKey.of(ChunkKey.getWorldId(chunkKey), ChunkKey.getChunkX(chunkKey) & ~31, ChunkKey.getChunkZ(chunkKey) & ~31);
+	}
+
+	private static int getIndex(long chunkKey) {
+		return (ChunkKey.getChunkZ(chunkKey) & 31) << 5 | (ChunkKey.getChunkX(chunkKey) & 31);
+	}
+
+}
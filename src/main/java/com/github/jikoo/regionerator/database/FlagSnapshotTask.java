@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 2015-2021 by Jikoo.
+ *
+ * Regionerator is licensed under a Creative Commons
+ * Attribution-ShareAlike 4.0 International License.
+ *
+ * You should have received a copy of the license along with this
+ * work. If not, see <http://creativecommons.org/licenses/by-sa/4.0/>.
+ */
+
+package com.github.jikoo.regionerator.database;
+
+import com.github.jikoo.regionerator.Regionerator;
+import com.github.jikoo.regionerator.util.FlagCache;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.sql.SQLException;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.stream.Stream;
+
+/**
+ * Task writing consistent copies of an SQLite flag database while the server is running.
+ *
+ * <p>Modified cached flags are saved first without emptying the cache. The database is then copied from a single read
+ * transaction, which does not block the writer in WAL mode, so copying a large database does not hold up flag saves.
+ * Snapshots are written to the snapshots folder under a temporary name and renamed once complete, and only the newest
+ * snapshots are kept.
+ */
+public class FlagSnapshotTask implements Runnable {
+
+	private static final String PREFIX = "data-";
+	private static final String SUFFIX = ".db";
+	// Lexicographic order of names is chronological order.
+	private static final DateTimeFormatter TIMESTAMP = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss");
+
+	private final @NotNull Regionerator plugin;
+	private final @NotNull SQLeadenAdapter adapter;
+	private final @NotNull FlagCache flagCache;
+	private final AtomicBoolean running = new AtomicBoolean();
+	private volatile boolean cancelled = false;
+
+	public FlagSnapshotTask(@NotNull Regionerator plugin, @NotNull SQLeadenAdapter adapter, @NotNull FlagCache flagCache) {
+		this.plugin = plugin;
+		this.adapter = adapter;
+		this.flagCache = flagCache;
+	}
+
+	@Override
+	public void run() {
+		if (cancelled) {
+			return;
+		}
+
+		try {
+			Path snapshot = snapshot();
+			plugin.getLogger().info("Wrote flag snapshot " + snapshot.getFileName());
+		} catch (IllegalStateException e) {
+			// Snapshot already in progress.
+		} catch (IOException | SQLException e) {
+			if (!cancelled) {
+				plugin.getLogger().log(Level.WARNING, "Exception writing flag snapshot", e);
+			}
+		}
+	}
+
+	/**
+	 * Writes a snapshot of the flag database. Blocks until complete, so must not be called on the main thread.
+	 *
+	 * @return the snapshot file
+	 * @throws IllegalStateException if a snapshot is already being written
+	 * @throws IOException if the snapshot cannot be moved into place
+	 * @throws SQLException if the database cannot be copied
+	 */
+	public @NotNull Path snapshot() throws IOException, SQLException {
+		if (!running.compareAndSet(false, true)) {
+			throw new IllegalStateException("A flag snapshot is already being written!");
+		}
+
+		try {
+			if (!flagCache.flush()) {
+				plugin.getLogger().warning("Unable to save all cached flags! Snapshot may be missing recent changes.");
+			}
+
+			Path folder = plugin.getDataFolder().toPath().resolve("snapshots");
+			Files.createDirectories(folder);
+			String name = PREFIX + LocalDateTime.now().format(TIMESTAMP);
+			Path temp = folder.resolve(name + ".tmp");
+			Path snapshot = folder.resolve(name + SUFFIX);
+
+			Files.deleteIfExists(temp);
+			try {
+				adapter.snapshot(temp);
+			} catch (SQLException e) {
+				Files.deleteIfExists(temp);
+				throw e;
+			}
+			Files.move(temp, snapshot, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+			removeOldSnapshots(folder);
+			return snapshot;
+		} finally {
+			running.set(false);
+		}
+	}
+
+	private void removeOldSnapshots(@NotNull Path folder) throws IOException {
+		List<Path> snapshots;
+		try (Stream<Path> files = Files.list(folder)) {
+			snapshots = files.filter(file -> {
+				String name = file.getFileName().toString();
+				return name.startsWith(PREFIX) && name.endsWith(SUFFIX);
+			}).sorted(Comparator.reverseOrder()).toList();
+		}
+
+		for (int i = plugin.config().getFlagSnapshotsKept(); i < snapshots.size(); ++i) {
+			Files.deleteIfExists(snapshots.get(i));
+		}
+	}
+
+	/**
+	 * Stops scheduled snapshots. A snapshot in progress is completed.
+	 */
+	public void cancel() {
+		cancelled = true;
+	}
+
+}
@@ -0,0 +1,25 @@
+/*
+ * Copyright (c) 2015-2021 by Jikoo.
+ *
+ * Regionerator is licensed under a Creative Commons
+ * Attribution-ShareAlike 4.0 International License.
+ *
+ * You should have received a copy of the license along with this
+ * work. If not, see <http://creativecommons.org/licenses/by-sa/4.0/>.
+ */
+
+package com.github.jikoo.regionerator.database;
+
+/**
+ * Available storage types for chunk flags.
+ */
+public enum FlagStorage {
+	/** Flags are stored in an SQLite database. */
+	SQLITE,
+	/** Flags are stored in a memory-mapped file per region. */
+	MAPPED,
+	/** Flags are kept in memory and persisted by snapshot and delta log. */
+	MEMORY,
+	/** Flags are appended to journal segments indexed in memory. */
+	JOURNAL
+}
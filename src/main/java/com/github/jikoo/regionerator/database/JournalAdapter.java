@@ -0,0 +1,879 @@
+/*
+ * Copyright (c) 2015-2021 by Jikoo.
+ *
+ * Regionerator is licensed under a Creative Commons
+ * Attribution-ShareAlike 4.0 International License.
+ *
+ * You should have received a copy of the license along with this
+ * work. If not, see <http://creativecommons.org/licenses/by-sa/4.0/>.
+ */
+
+package com.github.jikoo.regionerator.database;
+
+import com.github.jikoo.regionerator.util.ChunkKey;
+import com.github.jikoo.regionerator.util.yaml.Config;
+import com.github.jikoo.regionerator.world.RegionInfo;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Adapter storing flags in an append-only journal of segment files.
+ *
+ * <p>Every change appends a fixed-size, checksummed record holding a chunk's current flag and flag as of last
+ * deletion, so writes are strictly sequential. An in-memory index maps each chunk to the location of its latest
+ * record. Once a segment is full it is sealed and a new one is started.
+ *
+ * <p>Segments are partitioned by the week their records expire in. A record never moves to an earlier partition than
+ * the record it supersedes, so journal order is partition, then segment, then offset. Once every flag in a partition
+ * is past retention, the partition's segments can be deleted outright without an older record resurfacing.
+ *
+ * <p>A background compactor rewrites the live records of mostly-superseded sealed segments into the active segment
+ * of their partition and deletes them. Records with no flag at all are dropped when they are found in the oldest
+ * segment, where no older record for the chunk can remain. On load, segments are replayed in order to rebuild the
+ * index; a torn record at the end of a segment is the remainder of an interrupted write and is truncated.
+ */
+public class JournalAdapter implements DatabaseAdapter {
+
+	private static final int RECORD_BYTES = Long.BYTES * 3 + Integer.BYTES;
+	private static final long SEGMENT_BYTES = 64L * 1024 * 1024;
+	private static final long PARTITION_PERIOD = TimeUnit.DAYS.toMillis(7);
+	private static final int BATCH_SIZE = 1024;
+	private static final int INITIAL_CAPACITY = 1 << 16;
+	// Chunk keys are never negative.
+	private static final long EMPTY = -1;
+	private static final long NO_RECORD = -1;
+	private static final Pattern SEGMENT_NAME = Pattern.compile("segment-(\\d+)\\.(-?\\d+)\\.dat");
+
+	private final @NotNull Logger logger;
+	private final @NotNull Path directory;
+	private final long retention;
+	private final @NotNull File worldsFile;
+	private final @NotNull YamlConfiguration worlds;
+	private final @NotNull Map<String, Integer> worldIds = new HashMap<>();
+	private final @NotNull Map<Integer, Segment> segments = new TreeMap<>();
+	private final @NotNull Map<Long, Segment> activeSegments = new HashMap<>();
+	private final @NotNull Set<Segment> dirtySegments = new LinkedHashSet<>();
+	private int nextSegmentId = 0;
+	private long[] indexKeys;
+	private long[] indexLocations;
+	private int indexSize = 0;
+	private boolean closed = false;
+
+	private final @NotNull Thread compactor;
+	private volatile boolean running = true;
+
+	/**
+	 * Constructs a new {@code JournalAdapter}.
+	 *
+	 * @param logger the logger for storage errors
+	 * @param directory the directory containing the journal
+	 * @param retention the time after expiry that flags are kept, or a negative value to keep them indefinitely
+	 * @throws IOException if the journal cannot be loaded
+	 */
+	JournalAdapter(@NotNull Logger logger, @NotNull Path directory, long retention) throws IOException {
+		this.logger = logger;
+		this.directory = directory;
+		this.retention = retention;
+		Files.createDirectories(directory);
+
+		worldsFile = directory.resolve("worlds.yml").toFile();
+		worlds = YamlConfiguration.loadConfiguration(worldsFile);
+		// World names may contain path separators, so they are stored as values keyed by identifier.
+		for (String key : worlds.getKeys(false)) {
+			String worldName = worlds.getString(key);
+			if (worldName != null) {
+				try {
+					worldIds.put(worldName, Integer.parseInt(key));
+				} catch (NumberFormatException e) {
+					logger.warning("Ignoring invalid world identifier " + key + " in " + worldsFile.getPath());
+				}
+			}
+		}
+
+		indexKeys = new long[INITIAL_CAPACITY];
+		Arrays.fill(indexKeys, EMPTY);
+		indexLocations = new long[INITIAL_CAPACITY];
+		recover();
+
+		compactor = new Thread(this::runCompactor, "FlagJournalCompactor");
+		compactor.setDaemon(true);
+		compactor.start();
+	}
+
+	@Override
+	public void close() {
+		running = false;
+		synchronized (this) {
+			notifyAll();
+		}
+		try {
+			compactor.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+
+			for (Segment segment : segments.values()) {
+				try {
+					segment.channel.force(false);
+					segment.channel.close();
+				} catch (IOException e) {
+					logger.log(Level.WARNING, "Exception closing flag journal segment " + segment.id, e);
+				}
+			}
+		}
+	}
+
+	@Override
+	public synchronized int getWorldId(@NotNull String worldName) throws IOException {
+		Integer worldId = worldIds.get(worldName);
+		if (worldId != null) {
+			return worldId;
+		}
+
+		int nextId = worldIds.values().stream().mapToInt(Integer::intValue).max().orElse(0) + 1;
+		if (nextId > ChunkKey.MAX_WORLD_ID) {
+			throw new IOException("Too many worlds registered, cannot register " + worldName);
+		}
+
+		worlds.set(String.valueOf(nextId), worldName);
+		worlds.save(worldsFile);
+		worldIds.put(worldName, nextId);
+		return nextId;
+	}
+
+	@Override
+	public synchronized void update(long @NotNull [] chunkKeys, long @NotNull [] flags, int length) throws IOException {
+		if (closed) {
+			throw new IOException("Flag storage is closed");
+		}
+
+		Batch batch = new Batch(Math.min(length, BATCH_SIZE));
+		for (int i = 0; i < length; ++i) {
+			long chunkKey = chunkKeys[i];
+			// Raising and deletion must be based on the latest record.
+			if (batch.size == batch.keys.length || batch.contains(chunkKey)) {
+				write(batch);
+			}
+			long[] existing = read(chunkKey);
+			long time;
+			long lastDeleteTime = existing[1];
+
+			if (flags[i] == Config.FLAG_DEFAULT) {
+				if (existing[0] == Config.FLAG_DEFAULT) {
+					continue;
+				}
+				// Retain value as of deletion.
+				time = Config.FLAG_DEFAULT;
+				lastDeleteTime = existing[0];
+			} else if (flags[i] > existing[0]) {
+				// Flags are only ever raised, matching the other adapters.
+				time = flags[i];
+			} else {
+				continue;
+			}
+
+			batch.add(chunkKey, time, lastDeleteTime, getPartition(chunkKey, time, lastDeleteTime));
+		}
+
+		write(batch);
+		sync();
+	}
+
+	@Override
+	public synchronized long get(long chunkKey) throws IOException {
+		if (closed) {
+			return Config.FLAG_OH_NO;
+		}
+		return read(chunkKey)[0];
+	}
+
+	@Override
+	public synchronized long getPrevious(long chunkKey) throws IOException {
+		if (closed) {
+			return Config.FLAG_OH_NO;
+		}
+		return read(chunkKey)[1];
+	}
+
+	@Override
+	public synchronized long @NotNull [] getRegion(int worldId, int lowestChunkX, int lowestChunkZ) throws IOException {
+		long[] flags = new long[RegionInfo.TOTAL_CHUNKS];
+
+		if (closed) {
+			Arrays.fill(flags, Config.FLAG_OH_NO);
+			return flags;
+		}
+
+		for (int localZ = 0; localZ < RegionInfo.CHUNKS_PER_AXIS; ++localZ) {
+			for (int localX = 0; localX < RegionInfo.CHUNKS_PER_AXIS; ++localX) {
+				flags[localZ << 5 | localX] = read(ChunkKey.of(worldId, lowestChunkX + localX, lowestChunkZ + localZ))[0];
+			}
+		}
+
+		return flags;
+	}
+
+	@Override
+	public synchronized @NotNull Map<String, Integer> getWorldIds() {
+		return Map.copyOf(worldIds);
+	}
+
+	@Override
+	public void forEachChunk(@NotNull ChunkVisitor visitor) throws Exception {
+		long[] chunkKeys;
+		synchronized (this) {
+			chunkKeys = new long[indexSize];
+			int length = 0;
+			for (int slot = 0; slot < indexKeys.length; ++slot) {
+				if (indexKeys[slot] != EMPTY && indexLocations[slot] != NO_RECORD) {
+					chunkKeys[length++] = indexKeys[slot];
+				}
+			}
+			chunkKeys = Arrays.copyOf(chunkKeys, length);
+		}
+		Arrays.sort(chunkKeys);
+
+		long[][] records = new long[BATCH_SIZE][];
+		for (int start = 0; start < chunkKeys.length; start += BATCH_SIZE) {
+			int length = Math.min(BATCH_SIZE, chunkKeys.length - start);
+			// Lock per batch so that long exports do not hold up saving.
+			synchronized (this) {
+				if (closed) {
+					throw new IOException("Flag storage is closed");
+				}
+				for (int i = 0; i < length; ++i) {
+					records[i] = read(chunkKeys[start + i]);
+				}
+			}
+			for (int i = 0; i < length; ++i) {
+				if (records[i][0] != Config.FLAG_DEFAULT || records[i][1] != Config.FLAG_DEFAULT) {
+					visitor.visit(chunkKeys[start + i], records[i][0], records[i][1]);
+				}
+			}
+		}
+	}
+
+	@Override
+	public synchronized void importFlags(long @NotNull [] chunkKeys, long @NotNull [] flags,
+			long @NotNull [] lastDeleteTimes, int length) throws IOException {
+		if (closed) {
+			throw new IOException("Flag storage is closed");
+		}
+
+		Batch batch = new Batch(Math.min(length, BATCH_SIZE));
+		for (int i = 0; i < length; ++i) {
+			long chunkKey = chunkKeys[i];
+			if (batch.size == batch.keys.length || batch.contains(chunkKey)) {
+				write(batch);
+			}
+			long[] existing = read(chunkKey);
+			long time = Math.max(existing[0], flags[i]);
+			long lastDeleteTime = Math.max(existing[1], lastDeleteTimes[i]);
+			if (time != existing[0] || lastDeleteTime != existing[1]) {
+				batch.add(chunkKey, time, lastDeleteTime, getPartition(chunkKey, time, lastDeleteTime));
+			}
+		}
+
+		write(batch);
+		sync();
+	}
+
+	/**
+	 * Imports all flags from an SQLite database.
+	 *
+	 * @param source the database adapter to import from
+	 * @throws Exception if the flags cannot be read or written
+	 */
+	synchronized void importDatabase(@NotNull SQLeadenAdapter source) throws Exception {
+		Batch batch = new Batch(1);
+		for (boolean previous : new boolean[] { false, true }) {
+			source.forEachFlag(previous, (worldName, chunkX, chunkZ, flag) -> {
+				long chunkKey = ChunkKey.of(getWorldId(worldName), chunkX, chunkZ);
+				long[] existing = read(chunkKey);
+				long time = previous ? existing[0] : flag;
+				long lastDeleteTime = previous ? flag : existing[1];
+				batch.add(chunkKey, time, lastDeleteTime, getPartition(chunkKey, time, lastDeleteTime));
+				write(batch);
+			});
+		}
+
+		sync();
+	}
+
+	/**
+	 * Reads a chunk's latest record.
+	 *
+	 * @param chunkKey the packed chunk key
+	 * @return the current flag and the flag as of last deletion
+	 * @throws IOException if the record cannot be read
+	 */
+	private long @NotNull [] read(long chunkKey) throws IOException {
+		long location = getLocation(chunkKey);
+		if (location == NO_RECORD) {
+			return new long[] { Config.FLAG_DEFAULT, Config.FLAG_DEFAULT };
+		}
+
+		Segment segment = segments.get(segmentOf(location));
+		ByteBuffer record = ByteBuffer.allocate(RECORD_BYTES);
+		long position = offsetOf(location);
+		while (record.hasRemaining()) {
+			if (segment.channel.read(record, position + record.position()) < 0) {
+				throw new IOException("Flag journal segment " + segment.id + " is truncated");
+			}
+		}
+		return new long[] { record.getLong(Long.BYTES), record.getLong(Long.BYTES * 2) };
+	}
+
+	/**
+	 * Gets the partition a new record for a chunk belongs in.
+	 *
+	 * @param chunkKey the packed chunk key
+	 * @param time the current flag
+	 * @param lastDeleteTime the flag as of last deletion
+	 * @return the partition
+	 */
+	private long getPartition(long chunkKey, long time, long lastDeleteTime) {
+		long partition = Math.floorDiv(Math.max(time, lastDeleteTime), PARTITION_PERIOD);
+		long location = getLocation(chunkKey);
+		if (location != NO_RECORD) {
+			// Never move backwards, or dropping this partition could expose the superseded record.
+			partition = Math.max(partition, segments.get(segmentOf(location)).partition);
+		}
+		return partition;
+	}
+
+	/**
+	 * Appends batched records to the active segments of their partitions and points the index at them.
+	 *
+	 * @param batch the batch of records, emptied once written
+	 * @throws IOException if the records cannot be written
+	 */
+	private void write(@NotNull Batch batch) throws IOException {
+		boolean[] written = new boolean[batch.size];
+		CRC32 crc = new CRC32();
+
+		for (int i = 0; i < batch.size; ++i) {
+			if (written[i]) {
+				continue;
+			}
+
+			long partition = batch.partitions[i];
+			Segment segment = getActiveSegment(partition);
+			batch.buffer.clear();
+			for (int j = i; j < batch.size; ++j) {
+				if (!written[j] && batch.partitions[j] == partition) {
+					int start = batch.buffer.position();
+					batch.buffer.putLong(batch.keys[j]).putLong(batch.times[j]).putLong(batch.lastDeleteTimes[j]);
+					crc.reset();
+					crc.update(batch.buffer.array(), start, Long.BYTES * 3);
+					batch.buffer.putInt((int) crc.getValue());
+				}
+			}
+			batch.buffer.flip();
+
+			long position = segment.size;
+			while (batch.buffer.hasRemaining()) {
+				position += segment.channel.write(batch.buffer, position);
+			}
+
+			long offset = segment.size;
+			for (int j = i; j < batch.size; ++j) {
+				if (!written[j] && batch.partitions[j] == partition) {
+					written[j] = true;
+					relocate(batch.keys[j], location(segment.id, offset));
+					segment.live++;
+					offset += RECORD_BYTES;
+				}
+			}
+			segment.size = position;
+			dirtySegments.add(segment);
+
+			if (segment.size >= SEGMENT_BYTES) {
+				activeSegments.remove(partition, segment);
+				// Sealed segment may now be worth compacting.
+				notifyAll();
+			}
+		}
+
+		batch.size = 0;
+	}
+
+	/**
+	 * Forces written records to disk.
+	 *
+	 * @throws IOException if the records cannot be forced
+	 */
+	private void sync() throws IOException {
+		for (Segment segment : dirtySegments) {
+			segment.channel.force(false);
+		}
+		dirtySegments.clear();
+	}
+
+	private @NotNull Segment getActiveSegment(long partition) throws IOException {
+		Segment segment = activeSegments.get(partition);
+		if (segment == null) {
+			segment = openSegment(nextSegmentId, partition);
+			activeSegments.put(partition, segment);
+		}
+		return segment;
+	}
+
+	private @NotNull Segment openSegment(int id, long partition) throws IOException {
+		Path path = directory.resolve("segment-" + id + "." + partition + ".dat");
+		FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		Segment segment = new Segment(id, partition, path, channel);
+		segment.size = channel.size();
+		segments.put(id, segment);
+		nextSegmentId = Math.max(nextSegmentId, id + 1);
+		return segment;
+	}
+
+	/**
+	 * Replays all segments to rebuild the index.
+	 *
+	 * @throws IOException if the segments cannot be read
+	 */
+	private void recover() throws IOException {
+		List<long[]> found = new ArrayList<>();
+		try (Stream<Path> files = Files.list(directory)) {
+			files.forEach(path -> {
+				Matcher matcher = SEGMENT_NAME.matcher(path.getFileName().toString());
+				if (matcher.matches()) {
+					found.add(new long[] { Long.parseLong(matcher.group(2)), Integer.parseInt(matcher.group(1)) });
+				}
+			});
+		}
+
+		// Records never move to an earlier partition and segments in a partition are filled in order.
+		found.sort(Comparator.<long[]>comparingLong(entry -> entry[0]).thenComparingLong(entry -> entry[1]));
+
+		for (long[] entry : found) {
+			Segment segment = openSegment((int) entry[1], entry[0]);
+			replay(segment);
+			if (segment.size < SEGMENT_BYTES) {
+				// Later segments in a partition always replace earlier ones as active.
+				activeSegments.put(segment.partition, segment);
+			} else {
+				activeSegments.remove(segment.partition);
+			}
+		}
+	}
+
+	private void replay(@NotNull Segment segment) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(RECORD_BYTES * BATCH_SIZE);
+		CRC32 crc = new CRC32();
+		long position = 0;
+
+		read: while (true) {
+			buffer.clear();
+			int read = 0;
+			while (buffer.hasRemaining()) {
+				int count = segment.channel.read(buffer, position + buffer.position());
+				if (count < 0) {
+					break;
+				}
+				read += count;
+			}
+			buffer.flip();
+
+			while (buffer.remaining() >= RECORD_BYTES) {
+				int start = buffer.position();
+				crc.reset();
+				crc.update(buffer.array(), start, Long.BYTES * 3);
+				long chunkKey = buffer.getLong();
+				buffer.getLong();
+				buffer.getLong();
+				if ((int) crc.getValue() != buffer.getInt()) {
+					break read;
+				}
+
+				relocate(chunkKey, location(segment.id, position));
+				segment.live++;
+				position += RECORD_BYTES;
+			}
+
+			if (read < buffer.capacity()) {
+				break;
+			}
+		}
+
+		if (position < segment.size) {
+			logger.warning("Discarding " + (segment.size - position) + " bytes of incomplete flag journal segment " + segment.path);
+			segment.channel.truncate(position);
+			segment.channel.force(true);
+			segment.size = position;
+		}
+	}
+
+	private void runCompactor() {
+		while (running) {
+			Segment candidate;
+			synchronized (this) {
+				try {
+					dropExpiredPartitions();
+				} catch (IOException e) {
+					logger.log(Level.SEVERE, "Exception dropping expired flag journal partitions", e);
+				}
+
+				candidate = getCompactionCandidate();
+				if (candidate == null) {
+					if (!running) {
+						// Closed before waiting, notification was missed.
+						return;
+					}
+					try {
+						wait(60_000);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						return;
+					}
+					continue;
+				}
+			}
+
+			try {
+				compact(candidate);
+			} catch (IOException e) {
+				logger.log(Level.SEVERE, "Exception compacting flag journal segment " + candidate.id, e);
+				synchronized (this) {
+					if (!running) {
+						return;
+					}
+					try {
+						wait(60_000);
+					} catch (InterruptedException interrupted) {
+						Thread.currentThread().interrupt();
+						return;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Deletes all segments in partitions where every flag is past retention.
+	 *
+	 * @throws IOException if a segment cannot be deleted
+	 */
+	private void dropExpiredPartitions() throws IOException {
+		if (closed || retention < 0) {
+			return;
+		}
+
+		long expiredPartition = Math.floorDiv(System.currentTimeMillis() - retention, PARTITION_PERIOD);
+		List<Segment> expired = new ArrayList<>();
+		Set<Integer> expiredIds = new HashSet<>();
+		for (Segment segment : segments.values()) {
+			if (segment.partition < expiredPartition) {
+				expired.add(segment);
+				expiredIds.add(segment.id);
+			}
+		}
+
+		if (expired.isEmpty()) {
+			return;
+		}
+
+		int removed = 0;
+		for (int slot = 0; slot < indexKeys.length; ++slot) {
+			if (indexKeys[slot] != EMPTY && indexLocations[slot] != NO_RECORD
+					&& expiredIds.contains(segmentOf(indexLocations[slot]))) {
+				indexLocations[slot] = NO_RECORD;
+				++removed;
+			}
+		}
+
+		// Oldest segments are deleted first so that an interrupted drop can only leave newer records behind.
+		expired.sort(Comparator.<Segment>comparingLong(segment -> segment.partition).thenComparingInt(segment -> segment.id));
+		for (Segment segment : expired) {
+			segments.remove(segment.id);
+			activeSegments.remove(segment.partition, segment);
+			dirtySegments.remove(segment);
+			segment.channel.close();
+			Files.deleteIfExists(segment.path);
+		}
+
+		logger.info(String.format("Dropped %s expired flag journal segments containing %s flags.", expired.size(), removed));
+	}
+
+	/**
+	 * Gets the sealed segment with the fewest live records if at least half of its records are superseded.
+	 *
+	 * @return the segment to compact or {@code null} if no segment is worth compacting
+	 */
+	private @Nullable Segment getCompactionCandidate() {
+		Segment candidate = null;
+		for (Segment segment : segments.values()) {
+			if (activeSegments.get(segment.partition) == segment || segment.live * 2L * RECORD_BYTES > segment.size) {
+				continue;
+			}
+			if (candidate == null || segment.live * candidate.size < candidate.live * segment.size) {
+				candidate = segment;
+			}
+		}
+		return candidate;
+	}
+
+	/**
+	 * Moves a sealed segment's live records into the active segment of its partition and deletes it.
+	 *
+	 * @param segment the sealed segment
+	 * @throws IOException if the segment cannot be compacted
+	 */
+	private void compact(@NotNull Segment segment) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(RECORD_BYTES * BATCH_SIZE);
+		Batch batch = new Batch(BATCH_SIZE);
+		long position = 0;
+
+		while (position < segment.size && running) {
+			// Sealed segments are never modified, so reading does not require the lock.
+			buffer.clear();
+			while (buffer.hasRemaining() && position + buffer.position() < segment.size) {
+				if (segment.channel.read(buffer, position + buffer.position()) < 0) {
+					break;
+				}
+			}
+			buffer.flip();
+
+			synchronized (this) {
+				if (closed || !segments.containsKey(segment.id)) {
+					// Closed or partition dropped.
+					return;
+				}
+
+				boolean oldest = isOldest(segment);
+				while (buffer.remaining() >= RECORD_BYTES) {
+					long location = location(segment.id, position);
+					long chunkKey = buffer.getLong();
+					long time = buffer.getLong();
+					long lastDeleteTime = buffer.getLong();
+					buffer.getInt();
+					position += RECORD_BYTES;
+
+					if (getLocation(chunkKey) != location) {
+						// Superseded.
+						continue;
+					}
+
+					if (oldest && time == Config.FLAG_DEFAULT && lastDeleteTime == Config.FLAG_DEFAULT) {
+						relocate(chunkKey, NO_RECORD);
+						continue;
+					}
+
+					batch.add(chunkKey, time, lastDeleteTime, segment.partition);
+				}
+
+				write(batch);
+				sync();
+			}
+		}
+
+		synchronized (this) {
+			if (closed || !running || segment.live > 0 || !segments.containsKey(segment.id)) {
+				return;
+			}
+
+			segments.remove(segment.id);
+			segment.channel.close();
+			Files.deleteIfExists(segment.path);
+		}
+	}
+
+	/**
+	 * Checks if a segment is the first segment in journal order.
+	 *
+	 * @param segment the segment
+	 * @return true if no segment precedes it
+	 */
+	private boolean isOldest(@NotNull Segment segment) {
+		for (Segment other : segments.values()) {
+			if (other.partition < segment.partition || other.partition == segment.partition && other.id < segment.id) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Points the index entry for a chunk at a new record, marking the old record superseded.
+	 *
+	 * @param chunkKey the packed chunk key
+	 * @param location the location of the record or {@link #NO_RECORD}
+	 */
+	private void relocate(long chunkKey, long location) {
+		long previousLocation = setLocation(chunkKey, location);
+		if (previousLocation != NO_RECORD) {
+			segments.get(segmentOf(previousLocation)).live--;
+		}
+	}
+
+	private long getLocation(long chunkKey) {
+		int slot = find(chunkKey);
+		return indexKeys[slot] == EMPTY ? NO_RECORD : indexLocations[slot];
+	}
+
+	/**
+	 * Points the index entry for a chunk at a new record.
+	 *
+	 * @param chunkKey the packed chunk key
+	 * @param location the location of the record or {@link #NO_RECORD}
+	 * @return the previous location or {@link #NO_RECORD}
+	 */
+	private long setLocation(long chunkKey, long location) {
+		int slot = find(chunkKey);
+		if (indexKeys[slot] == EMPTY) {
+			if (location == NO_RECORD) {
+				return NO_RECORD;
+			}
+			if (indexSize + 1 > indexKeys.length / 4 * 3) {
+				resize();
+				slot = find(chunkKey);
+			}
+			indexKeys[slot] = chunkKey;
+			indexLocations[slot] = location;
+			++indexSize;
+			return NO_RECORD;
+		}
+
+		// Dropped entries keep their slot until the next load.
+		long previousLocation = indexLocations[slot];
+		indexLocations[slot] = location;
+		return previousLocation;
+	}
+
+	private int find(long chunkKey) {
+		int mask = indexKeys.length - 1;
+		int slot = hash(chunkKey) & mask;
+		while (indexKeys[slot] != EMPTY && indexKeys[slot] != chunkKey) {
+			slot = slot + 1 & mask;
+		}
+		return slot;
+	}
+
+	private void resize() {
+		long[] oldKeys = indexKeys;
+		long[] oldLocations = indexLocations;
+		indexKeys = new long[oldKeys.length * 2];
+		Arrays.fill(indexKeys, EMPTY);
+		indexLocations = new long[indexKeys.length];
+
+		for (int i = 0; i < oldKeys.length; ++i) {
+			if (oldKeys[i] != EMPTY) {
+				int slot = find(oldKeys[i]);
+				indexKeys[slot] = oldKeys[i];
+				indexLocations[slot] = oldLocations[i];
+			}
+		}
+	}
+
+	private static long location(int segmentId, long offset) {
+		return (long) segmentId << 32 | offset;
+	}
+
+	private static int segmentOf(long location) {
+		return (int) (location >>> 32);
+	}
+
+	private static long offsetOf(long location) {
+		return location & 0xFFFFFFFFL;
+	}
+
+	private static int hash(long key) {
+		key *= 0x9E3779B97F4A7C15L;
+		return (int) (key ^ key >>> 32);
+	}
+
+	/**
+	 * A journal segment file.
+	 */
+	private static class Segment {
+
+		private final int id;
+		private final long partition;
+		private final @NotNull Path path;
+		private final @NotNull FileChannel channel;
+		private long size;
+		private long live;
+
+		private Segment(int id, long partition, @NotNull Path path, @NotNull FileChannel channel) {
+			this.id = id;
+			this.partition = partition;
+			this.path = path;
+			this.channel = channel;
+		}
+
+	}
+
+	/**
+	 * Records waiting to be appended.
+	 */
+	private static class Batch {
+
+		private final long[] keys;
+		private final long[] times;
+		private final long[] lastDeleteTimes;
+		private final long[] partitions;
+		private final @NotNull ByteBuffer buffer;
+		private int size = 0;
+
+		private Batch(int capacity) {
+			keys = new long[capacity];
+			times = new long[capacity];
+			lastDeleteTimes = new long[capacity];
+			partitions = new long[capacity];
+			buffer = ByteBuffer.allocate(capacity * RECORD_BYTES);
+		}
+
+		private void add(long chunkKey, long time, long lastDeleteTime, long partition) {
+			keys[size] = chunkKey;
+			times[size] = time;
+			lastDeleteTimes[size] = lastDeleteTime;
+			partitions[size] = partition;
+			++size;
+		}
+
+		private boolean contains(long chunkKey) {
+			for (int i = 0; i < size; ++i) {
+				if (keys[i] == chunkKey) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+	}
+
+}
@@ -0,0 +1,351 @@
+/*
+ * Copyright (c) 2015-2021 by Jikoo.
+ *
+ * Regionerator is licensed under a Creative Commons
+ * Attribution-ShareAlike 4.0 International License.
+ *
+ * You should have received a copy of the license along with this
+ * work. If not, see <http://creativecommons.org/licenses/by-sa/4.0/>.
+ */
+
+package com.github.jikoo.regionerator.database;
+
+import com.github.jikoo.regionerator.Regionerator;
+import com.github.jikoo.regionerator.util.ChunkKey;
+import com.github.jikoo.regionerator.util.FlagCache;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+/**
+ * Task importing flags from the legacy flags.yml file and per-world flags folder.
+ *
+ * <p>Legacy files only ever contain flat mappings of {@code x_z: timestamp}, nested under the world name in
+ * flags.yml, so they are read a line at a time rather than loaded into memory as a whole. Region files in the flags
+ * folder are read in parallel. Flags are passed on in batches; legacy files are only renamed once every flag has been
+ * written, so an interrupted import is repeated on next startup.
+ */
+public class LegacyFlagImporter implements Runnable {
+
+	private static final long REPORT_INTERVAL = 10_000;
+
+	private final @NotNull Regionerator plugin;
+	private final @NotNull DatabaseAdapter adapter;
+	private final @NotNull FlagCache.BatchWriter writer;
+	private final int batchSize;
+	private final AtomicLong imported = new AtomicLong();
+	private final AtomicLong nextReport = new AtomicLong();
+	private volatile boolean cancelled = false;
+
+	/**
+	 * Constructs a new {@code LegacyFlagImporter}.
+	 *
+	 * @param plugin the plugin
+	 * @param adapter the database adapter used to identify worlds
+	 * @param writer the writer merging batches of legacy flags into current flags
+	 * @param batchSize the maximum number of flags in a batch
+	 */
+	public LegacyFlagImporter(
+			@NotNull Regionerator plugin,
+			@NotNull DatabaseAdapter adapter,
+			@NotNull FlagCache.BatchWriter writer,
+			int batchSize) {
+		this.plugin = plugin;
+		this.adapter = adapter;
+		this.writer = writer;
+		this.batchSize = Math.max(1, batchSize);
+	}
+
+	/**
+	 * Checks if there are legacy flags to import.
+	 *
+	 * @param plugin the plugin
+	 * @return true if legacy flag files are present
+	 */
+	public static boolean hasLegacyFlags(@NotNull Regionerator plugin) {
+		return new File(plugin.getDataFolder(), "flags.yml").isFile() || new File(plugin.getDataFolder(), "flags").isDirectory();
+	}
+
+	@Override
+	public void run() {
+		nextReport.set(System.currentTimeMillis() + REPORT_INTERVAL);
+		try {
+			convertOldFlagsFile();
+			convertOldPerWorldFlagFiles();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Stops importing at the next opportunity. Flags already written are kept.
+	 */
+	public void cancel() {
+		cancelled = true;
+	}
+
+	private void convertOldFlagsFile() {
+		File oldFlagsFile = new File(plugin.getDataFolder(), "flags.yml");
+		if (!oldFlagsFile.isFile()) {
+			return;
+		}
+
+		plugin.getLogger().info("Beginning converting flags.yml");
+		try {
+			readFlags(oldFlagsFile, null);
+		} catch (Exception e) {
+			if (!cancelled) {
+				plugin.getLogger().log(Level.WARNING, "Exception converting flags.yml! Conversion will run again on startup.", e);
+			}
+			return;
+		}
+
+		if (cancelled) {
+			return;
+		}
+
+		// Rename old flag file
+		if (oldFlagsFile.renameTo(new File(oldFlagsFile.getParentFile(), "flags.yml.bak"))) {
+			plugin.getLogger().info("Finished converting flags.yml, renamed to flags.yml.bak. Delete at convenience if all appears well.");
+		} else {
+			plugin.getLogger().warning("Finished converting flags.yml but could not rename! Conversion will run again on startup.");
+		}
+	}
+
+	private void convertOldPerWorldFlagFiles() throws InterruptedException {
+		File oldFlagsFolder = new File(plugin.getDataFolder(), "flags");
+		File[] worldDirectories = oldFlagsFolder.listFiles(File::isDirectory);
+		if (worldDirectories == null) {
+			return;
+		}
+
+		List<File> regionFlagsFiles = new ArrayList<>();
+		for (File worldFlagsFolder : worldDirectories) {
+			File[] files = worldFlagsFolder.listFiles(File::isFile);
+			if (files != null) {
+				regionFlagsFiles.addAll(List.of(files));
+			}
+		}
+
+		plugin.getLogger().info("Beginning converting flags folder, " + regionFlagsFiles.size() + " files.");
+
+		int threads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+		AtomicInteger threadId = new AtomicInteger();
+		ExecutorService executor = Executors.newFixedThreadPool(threads, runnable -> {
+			Thread thread = new Thread(runnable, "LegacyFlagImporter-" + threadId.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+
+		AtomicInteger filesDone = new AtomicInteger();
+		List<Future<?>> futures = new ArrayList<>(regionFlagsFiles.size());
+		for (File regionFlagsFile : regionFlagsFiles) {
+			String worldName = regionFlagsFile.getParentFile().getName();
+			futures.add(executor.submit(() -> {
+				if (cancelled) {
+					return null;
+				}
+				readFlags(regionFlagsFile, worldName);
+				filesDone.incrementAndGet();
+				report(filesDone.get() + "/" + regionFlagsFiles.size() + " files");
+				return null;
+			}));
+		}
+
+		boolean failed = false;
+		try {
+			for (int i = 0; i < futures.size(); ++i) {
+				try {
+					futures.get(i).get();
+				} catch (ExecutionException e) {
+					failed = true;
+					if (!cancelled) {
+						plugin.getLogger().log(Level.WARNING, "Exception converting " + regionFlagsFiles.get(i).getPath(), e.getCause());
+					}
+				}
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+
+		if (cancelled) {
+			return;
+		}
+
+		if (failed) {
+			plugin.getLogger().warning("Finished converting flags folder with errors! Conversion will run again on startup.");
+			return;
+		}
+
+		// Rename old flag file
+		if (oldFlagsFolder.renameTo(new File(oldFlagsFolder.getParentFile(), "flags.bak"))) {
+			plugin.getLogger().info("Finished converting flags folder, renamed to flags.bak. Delete at convenience if all appears well.");
+		} else {
+			plugin.getLogger().warning("Finished converting flags folder but could not rename! Conversion will run again on startup.");
+		}
+	}
+
+	/**
+	 * Reads a legacy flag file line by line, writing flags in batches.
+	 *
+	 * @param file the file
+	 * @param worldName the world name, or {@code null} if entries are nested under world names
+	 * @throws Exception if the file cannot be read or flags cannot be written
+	 */
+	private void readFlags(@NotNull File file, @Nullable String worldName) throws Exception {
+		long[] chunkKeys = new long[batchSize];
+		long[] values = new long[batchSize];
+		int length = 0;
+		int worldId = worldName == null ? -1 : adapter.getWorldId(worldName);
+
+		try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (cancelled) {
+					return;
+				}
+
+				int indent = 0;
+				while (indent < line.length() && line.charAt(indent) == ' ') {
+					++indent;
+				}
+				if (indent == line.length() || line.charAt(indent) == '#') {
+					continue;
+				}
+
+				String[] entry = parseEntry(line, indent);
+				if (entry == null) {
+					// Invalid data, skip
+					continue;
+				}
+
+				if (worldName == null && indent == 0) {
+					// World section in flags.yml
+					worldId = entry[1].isEmpty() ? adapter.getWorldId(entry[0]) : -1;
+					continue;
+				}
+
+				if (worldId < 0) {
+					continue;
+				}
+
+				long chunkKey = parseChunkKey(worldId, entry[0]);
+				if (chunkKey < 0) {
+					continue;
+				}
+
+				long value;
+				try {
+					value = Long.parseLong(entry[1]);
+				} catch (NumberFormatException e) {
+					// Invalid data, skip
+					continue;
+				}
+
+				chunkKeys[length] = chunkKey;
+				values[length] = value;
+				if (++length == batchSize) {
+					write(chunkKeys, values, length);
+					length = 0;
+					report(file.getName());
+				}
+			}
+		}
+
+		if (length > 0) {
+			write(chunkKeys, values, length);
+		}
+	}
+
+	private void write(long @NotNull [] chunkKeys, long @NotNull [] values, int length) throws IOException {
+		if (!writer.write(chunkKeys, values, length)) {
+			throw new IOException("Unable to write legacy flags");
+		}
+		imported.addAndGet(length);
+	}
+
+	private void report(@NotNull String progress) {
+		long now = System.currentTimeMillis();
+		long next = nextReport.get();
+		if (now >= next && nextReport.compareAndSet(next, now + REPORT_INTERVAL)) {
+			plugin.getLogger().info("Converting legacy flags: " + progress + ", " + imported.get() + " flags imported.");
+		}
+	}
+
+	/**
+	 * Parses a simple YAML mapping line into a key and value.
+	 *
+	 * @param line the line
+	 * @param start the index of the first non-space character
+	 * @return the key and value, or {@code null} if the line is not a mapping
+	 */
+	private static String @Nullable [] parseEntry(@NotNull String line, int start) {
+		String key;
+		int separator;
+		char quote = line.charAt(start);
+		if (quote == '\'' || quote == '"') {
+			int end = line.indexOf(quote, start + 1);
+			// Single quotes are escaped by doubling.
+			while (quote == '\'' && end > 0 && end + 1 < line.length() && line.charAt(end + 1) == '\'') {
+				end = line.indexOf(quote, end + 2);
+			}
+			if (end < 0) {
+				return null;
+			}
+			key = line.substring(start + 1, end);
+			if (quote == '\'') {
+				key = key.replace("''", "'");
+			}
+			separator = line.indexOf(':', end);
+		} else {
+			separator = line.indexOf(": ", start);
+			if (separator < 0 && line.endsWith(":")) {
+				separator = line.length() - 1;
+			}
+			if (separator < 0) {
+				return null;
+			}
+			key = line.substring(start, separator);
+		}
+
+		if (separator < 0) {
+			return null;
+		}
+
+		String value = line.substring(separator + 1).trim();
+		if (value.length() > 1 && (value.charAt(0) == '\'' || value.charAt(0) == '"')
+				&& value.charAt(value.length() - 1) == value.charAt(0)) {
+			value = value.substring(1, value.length() - 1);
+		}
+		return new String[] { key, value };
+	}
+
+	private static long parseChunkKey(int worldId, @NotNull String chunkPath) {
+		int split = chunkPath.indexOf('_');
+		if (split < 0 || chunkPath.indexOf('_', split + 1) >= 0) {
+			return -1;
+		}
+
+		try {
+			return ChunkKey.of(worldId, Integer.parseInt(chunkPath.substring(0, split)), Integer.parseInt(chunkPath.substring(split + 1)));
+		} catch (NumberFormatException e) {
+			// Invalid data, skip
+			return -1;
+		}
+	}
+
+}
@@ -0,0 +1,420 @@
+/*
+ * Copyright (c) 2015-2021 by Jikoo.
+ *
+ * Regionerator is licensed under a Creative Commons
+ * Attribution-ShareAlike 4.0 International License.
+ *
+ * You should have received a copy of the license along with this
+ * work. If not, see <http://creativecommons.org/licenses/by-sa/4.0/>.
+ */
+
+package com.github.jikoo.regionerator.database;
+
+import com.github.jikoo.planarwrappers.util.Coords;
+import com.github.jikoo.regionerator.util.ChunkKey;
+import com.github.jikoo.regionerator.util.yaml.Config;
+import com.github.jikoo.regionerator.world.RegionInfo;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.logging.Logger;
+
+/**
+ * Adapter storing flags in a fixed-size memory-mapped file per region.
+ *
+ * <p>Each region file holds 1024 big-endian longs indexed by {@code localChunkZ << 5 | localChunkX}. Flags as of
+ * last deletion are stored in a sibling file of the same format. Deleting a whole region copies the flags of flagged
+ * chunks over their previous flags and resets the current flags in place. Files are never renamed, as a mapped file
+ * cannot be moved on every platform and a mapping is only released once its buffer is collected.
+ *
+ * <p>Changes are forced to disk after the lock is released so that reads do not wait on writes.
+ */
+public class MappedRegionAdapter implements DatabaseAdapter {
+
+	private static final int REGION_BYTES = RegionInfo.TOTAL_CHUNKS * Long.BYTES;
+	private static final int MAX_OPEN_REGIONS = 256;
+	private static final int MAX_MISSING_REGIONS = 4096;
+	private static final String CURRENT_SUFFIX = ".flags";
+	private static final String PREVIOUS_SUFFIX = ".old";
+
+	private final @NotNull Logger logger;
+	private final @NotNull Path directory;
+	private final @NotNull File worldsFile;
+	private final @NotNull YamlConfiguration worlds;
+	private final @NotNull Map<String, Integer> worldIds = new HashMap<>();
+	private final @NotNull Map<Path, MappedByteBuffer> openRegions = new LinkedHashMap<>(16, 0.75F, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Path, MappedByteBuffer> eldest) {
+			if (size() > MAX_OPEN_REGIONS) {
+				// Mapping remains valid until collected, ensure changes are written first.
+				eldest.getValue().force();
+				return true;
+			}
+			return false;
+		}
+	};
+	// Regions are looked up far more often than they are created, most lookups being for unflagged regions.
+	private final @NotNull Set<Path> missingRegions = Collections.newSetFromMap(new LinkedHashMap<>() {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Path, Boolean> eldest) {
+			return size() > MAX_MISSING_REGIONS;
+		}
+	});
+	private boolean closed = false;
+
+	/**
+	 * Constructs a new {@code MappedRegionAdapter}.
+	 *
+	 * @param logger the logger for storage errors
+	 * @param directory the directory containing the region flag files
+	 * @throws IOException if the directory cannot be created
+	 */
+	MappedRegionAdapter(@NotNull Logger logger, @NotNull Path directory) throws IOException {
+		this.logger = logger;
+		this.directory = directory;
+		Files.createDirectories(directory);
+
+		worldsFile = directory.resolve("worlds.yml").toFile();
+		worlds = YamlConfiguration.loadConfiguration(worldsFile);
+		// World names may contain path separators, so they are stored as values keyed by identifier.
+		for (String key : worlds.getKeys(false)) {
+			String worldName = worlds.getString(key);
+			if (worldName != null) {
+				try {
+					worldIds.put(worldName, Integer.parseInt(key));
+				} catch (NumberFormatException e) {
+					logger.warning("Ignoring invalid world identifier " + key + " in " + worldsFile.getPath());
+				}
+			}
+		}
+	}
+
+	@Override
+	public synchronized void close() {
+		openRegions.values().forEach(MappedByteBuffer::force);
+		openRegions.clear();
+		closed = true;
+	}
+
+	@Override
+	public synchronized int getWorldId(@NotNull String worldName) throws IOException {
+		Integer worldId = worldIds.get(worldName);
+		if (worldId != null) {
+			return worldId;
+		}
+
+		int nextId = worldIds.values().stream().mapToInt(Integer::intValue).max().orElse(0) + 1;
+		if (nextId > ChunkKey.MAX_WORLD_ID) {
+			throw new IOException("Too many worlds registered, cannot register " + worldName);
+		}
+
+		worlds.set(String.valueOf(nextId), worldName);
+		worlds.save(worldsFile);
+		worldIds.put(worldName, nextId);
+		return nextId;
+	}
+
+	@Override
+	public void update(long @NotNull [] chunkKeys, long @NotNull [] flags, int length) throws IOException {
+		Set<MappedByteBuffer> modified = new HashSet<>();
+		synchronized (this) {
+			if (closed) {
+				throw new IOException("Flag storage is closed");
+			}
+
+			for (int i = 0; i < length; ++i) {
+				long chunkKey = chunkKeys[i];
+				int index = getIndex(chunkKey) * Long.BYTES;
+
+				if (flags[i] == Config.FLAG_DEFAULT) {
+					MappedByteBuffer current = map(getPath(chunkKey, CURRENT_SUFFIX), false);
+					if (current == null) {
+						continue;
+					}
+					long existing = current.getLong(index);
+					if (existing == Config.FLAG_DEFAULT) {
+						continue;
+					}
+					// Retain value as of deletion.
+					MappedByteBuffer previous = map(getPath(chunkKey, PREVIOUS_SUFFIX), true);
+					previous.putLong(index, existing);
+					current.putLong(index, Config.FLAG_DEFAULT);
+					modified.add(current);
+					modified.add(previous);
+				} else {
+					MappedByteBuffer current = map(getPath(chunkKey, CURRENT_SUFFIX), true);
+					// Flags are only ever raised, matching the SQLite adapters.
+					if (current.getLong(index) < flags[i]) {
+						current.putLong(index, flags[i]);
+						modified.add(current);
+					}
+				}
+			}
+		}
+		modified.forEach(MappedByteBuffer::force);
+	}
+
+	@Override
+	public long get(long chunkKey) throws IOException {
+		return get(chunkKey, CURRENT_SUFFIX);
+	}
+
+	@Override
+	public long getPrevious(long chunkKey) throws IOException {
+		return get(chunkKey, PREVIOUS_SUFFIX);
+	}
+
+	private synchronized long get(long chunkKey, @NotNull String suffix) throws IOException {
+		if (closed) {
+			return Config.FLAG_OH_NO;
+		}
+
+		MappedByteBuffer buffer = map(getPath(chunkKey, suffix), false);
+		if (buffer == null) {
+			return Config.FLAG_DEFAULT;
+		}
+		return buffer.getLong(getIndex(chunkKey) * Long.BYTES);
+	}
+
+	@Override
+	public synchronized long @NotNull [] getRegion(int worldId, int lowestChunkX, int lowestChunkZ) throws IOException {
+		long[] flags = new long[RegionInfo.TOTAL_CHUNKS];
+
+		if (closed) {
+			Arrays.fill(flags, Config.FLAG_OH_NO);
+			return flags;
+		}
+
+		MappedByteBuffer buffer = map(getPath(worldId, lowestChunkX, lowestChunkZ, CURRENT_SUFFIX), false);
+		if (buffer == null) {
+			Arrays.fill(flags, Config.FLAG_DEFAULT);
+		} else {
+			buffer.asLongBuffer().get(0, flags);
+		}
+
+		return flags;
+	}
+
+	@Override
+	public void deleteRegion(int worldId, int lowestChunkX, int lowestChunkZ) throws IOException {
+		MappedByteBuffer current;
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+
+			current = map(getPath(worldId, lowestChunkX, lowestChunkZ, CURRENT_SUFFIX), false);
+			if (current == null) {
+				return;
+			}
+
+			// Flags of flagged chunks become flags as of last deletion, matching single chunk deletion. Unflagged chunks
+			// keep their previous flags.
+			MappedByteBuffer previous = null;
+			for (int index = 0; index < REGION_BYTES; index += Long.BYTES) {
+				long flag = current.getLong(index);
+				if (flag != Config.FLAG_DEFAULT) {
+					if (previous == null) {
+						previous = map(getPath(worldId, lowestChunkX, lowestChunkZ, PREVIOUS_SUFFIX), true);
+					}
+					previous.putLong(index, flag);
+				}
+			}
+			if (previous == null) {
+				return;
+			}
+
+			// Previous flags are saved before current flags are reset so that an interruption can only leave the region
+			// flagged.
+			previous.force();
+			for (int index = 0; index < REGION_BYTES; index += Long.BYTES) {
+				current.putLong(index, Config.FLAG_DEFAULT);
+			}
+		}
+		current.force();
+	}
+
+	@Override
+	public synchronized @NotNull Map<String, Integer> getWorldIds() {
+		return Map.copyOf(worldIds);
+	}
+
+	@Override
+	public void forEachChunk(@NotNull ChunkVisitor visitor) throws Exception {
+		long[] current = new long[RegionInfo.TOTAL_CHUNKS];
+		long[] previous = new long[RegionInfo.TOTAL_CHUNKS];
+
+		for (int worldId : new TreeSet<>(getWorldIds().values())) {
+			Path worldDirectory = directory.resolve(String.valueOf(worldId));
+			if (!Files.isDirectory(worldDirectory)) {
+				continue;
+			}
+
+			try (DirectoryStream<Path> files = Files.newDirectoryStream(worldDirectory)) {
+				for (Path path : files) {
+					String[] parts = path.getFileName().toString().split("\\.");
+					if (parts.length != 4 || !parts[0].equals("r")) {
+						continue;
+					}
+					String suffix = '.' + parts[3];
+					if (!suffix.equals(CURRENT_SUFFIX) && !suffix.equals(PREVIOUS_SUFFIX)) {
+						continue;
+					}
+
+					int lowestChunkX;
+					int lowestChunkZ;
+					try {
+						lowestChunkX = Coords.regionToChunk(Integer.parseInt(parts[1]));
+						lowestChunkZ = Coords.regionToChunk(Integer.parseInt(parts[2]));
+					} catch (NumberFormatException e) {
+						continue;
+					}
+
+					Path currentPath = getPath(worldId, lowestChunkX, lowestChunkZ, CURRENT_SUFFIX);
+					if (suffix.equals(PREVIOUS_SUFFIX) && Files.exists(currentPath)) {
+						// Visited with the current flags file.
+						continue;
+					}
+
+					// Lock per region so that long exports do not hold up saving.
+					synchronized (this) {
+						if (closed) {
+							throw new IOException("Flag storage is closed");
+						}
+						read(currentPath, current);
+						read(getPath(worldId, lowestChunkX, lowestChunkZ, PREVIOUS_SUFFIX), previous);
+					}
+
+					for (int index = 0; index < RegionInfo.TOTAL_CHUNKS; ++index) {
+						if (current[index] != Config.FLAG_DEFAULT || previous[index] != Config.FLAG_DEFAULT) {
+							long chunkKey = ChunkKey.of(worldId, lowestChunkX + (index & 31), lowestChunkZ + (index >> 5));
+							visitor.visit(chunkKey, current[index], previous[index]);
+						}
+					}
+				}
+			}
+		}
+	}
+
+	private void read(@NotNull Path path, long @NotNull [] flags) throws IOException {
+		MappedByteBuffer buffer = map(path, false);
+		if (buffer == null) {
+			Arrays.fill(flags, Config.FLAG_DEFAULT);
+		} else {
+			buffer.asLongBuffer().get(0, flags);
+		}
+	}
+
+	@Override
+	public void importFlags(long @NotNull [] chunkKeys, long @NotNull [] flags,
+			long @NotNull [] lastDeleteTimes, int length) throws IOException {
+		Set<MappedByteBuffer> modified = new HashSet<>();
+		synchronized (this) {
+			if (closed) {
+				throw new IOException("Flag storage is closed");
+			}
+
+			for (int i = 0; i < length; ++i) {
+				raise(chunkKeys[i], CURRENT_SUFFIX, flags[i], modified);
+				raise(chunkKeys[i], PREVIOUS_SUFFIX, lastDeleteTimes[i], modified);
+			}
+		}
+		modified.forEach(MappedByteBuffer::force);
+	}
+
+	private void raise(long chunkKey, @NotNull String suffix, long flag, @NotNull Set<MappedByteBuffer> modified)
+			throws IOException {
+		if (flag == Config.FLAG_DEFAULT) {
+			return;
+		}
+
+		MappedByteBuffer buffer = map(getPath(chunkKey, suffix), true);
+		int index = getIndex(chunkKey) * Long.BYTES;
+		if (buffer.getLong(index) < flag) {
+			buffer.putLong(index, flag);
+			modified.add(buffer);
+		}
+	}
+
+	/**
+	 * Imports all flags from an SQLite database.
+	 *
+	 * @param source the database adapter to import from
+	 * @throws Exception if the flags cannot be read or written
+	 */
+	synchronized void importDatabase(@NotNull SQLeadenAdapter source) throws Exception {
+		for (boolean previous : new boolean[] { false, true }) {
+			String suffix = previous ? PREVIOUS_SUFFIX : CURRENT_SUFFIX;
+			source.forEachFlag(previous, (worldName, chunkX, chunkZ, flag) -> {
+				long chunkKey = ChunkKey.of(getWorldId(worldName), chunkX, chunkZ);
+				map(getPath(chunkKey, suffix), true).putLong(getIndex(chunkKey) * Long.BYTES, flag);
+			});
+		}
+
+		openRegions.values().forEach(MappedByteBuffer::force);
+	}
+
+	@Contract("_, true -> !null")
+	private @Nullable MappedByteBuffer map(@NotNull Path path, boolean create) throws IOException {
+		MappedByteBuffer buffer = openRegions.get(path);
+		if (buffer != null) {
+			return buffer;
+		}
+
+		if (!create && (missingRegions.contains(path) || !Files.exists(path))) {
+			missingRegions.add(path);
+			return null;
+		}
+		missingRegions.remove(path);
+
+		Files.createDirectories(path.getParent());
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			if (channel.size() < REGION_BYTES) {
+				// New files contain only default flags.
+				ByteBuffer defaults = ByteBuffer.allocate(REGION_BYTES);
+				while (defaults.hasRemaining()) {
+					defaults.putLong(Config.FLAG_DEFAULT);
+				}
+				defaults.flip();
+				channel.write(defaults, 0);
+			}
+			buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, REGION_BYTES);
+		}
+
+		openRegions.put(path, buffer);
+		return buffer;
+	}
+
+	private @NotNull Path getPath(long chunkKey, @NotNull String suffix) {
+		return getPath(ChunkKey.getWorldId(chunkKey), ChunkKey.getChunkX(chunkKey), ChunkKey.getChunkZ(chunkKey), suffix);
+	}
+
+	private @NotNull Path getPath(int worldId, int chunkX, int chunkZ, @NotNull String suffix) {
+		return directory.resolve(String.valueOf(worldId))
+				.resolve("r." + RegionInfo.getRegionX(chunkX) + '.' + RegionInfo.getRegionZ(chunkZ) + suffix);
+	}
+
+	private static int getIndex(long chunkKey) {
+		return (ChunkKey.getChunkZ(chunkKey) & 31) << 5 | (ChunkKey.getChunkX(chunkKey) & 31);
+	}
+
+}
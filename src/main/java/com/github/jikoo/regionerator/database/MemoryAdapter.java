@@ -0,0 +1,877 @@
+/*
+ * Copyright (c) 2015-2021 by Jikoo.
+ *
+ * Regionerator is licensed under a Creative Commons
+ * Attribution-ShareAlike 4.0 International License.
+ *
+ * You should have received a copy of the license along with this
+ * work. If not, see <http://creativecommons.org/licenses/by-sa/4.0/>.
+ */
+
+package com.github.jikoo.regionerator.database;
+
+import com.github.jikoo.regionerator.util.ChunkKey;
+import com.github.jikoo.regionerator.util.FlagCache;
+import com.github.jikoo.regionerator.util.yaml.Config;
+import com.github.jikoo.regionerator.world.RegionInfo;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.LongBinaryOperator;
+import java.util.function.LongUnaryOperator;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Adapter keeping every flag in memory.
+ *
+ * <p>Flags are held in a primitive open-addressing table keyed by packed chunk key, each entry holding the current
+ * flag and the flag as of last deletion. Changes are appended to a delta log in checksummed frames, and the log is
+ * compacted into a snapshot once it outgrows the previous snapshot. On load the snapshot is read and newer logs are
+ * replayed. A torn frame at the end of a log is the remainder of an interrupted write and is discarded.
+ *
+ * <p>As every flag is always in memory, the adapter also serves as the flag cache. Changes made through the cache
+ * are gathered and appended to the log in batches by a single writer thread.
+ */
+public class MemoryAdapter implements DatabaseAdapter, FlagCache {
+
+	private static final int SNAPSHOT_MAGIC = 0x52474653;
+	private static final int LOG_MAGIC = 0x5247464C;
+	private static final int VERSION = 1;
+	private static final int LOG_HEADER_BYTES = Integer.BYTES + Long.BYTES;
+	private static final byte RECORD_WORLD = 0;
+	private static final byte RECORD_FLAG = 1;
+	private static final byte RECORD_PREVIOUS = 2;
+	private static final int FLAG_RECORD_BYTES = 1 + Long.BYTES * 2;
+	private static final long MIN_COMPACTION_BYTES = 8L * 1024 * 1024;
+	private static final int INITIAL_CAPACITY = 1 << 16;
+	private static final int IMPORT_BATCH = 1024;
+	// Chunk keys are never negative.
+	private static final long EMPTY = -1;
+	private static final Pattern LOG_NAME = Pattern.compile("delta-(\\d+)\\.log");
+
+	private final @NotNull Logger logger;
+	private final @NotNull Path directory;
+	private final @NotNull Path snapshotFile;
+	private final long maxLatency;
+	private final int queueMax;
+
+	// Table and pending changes, guarded by this.
+	private long[] keys;
+	private long[] current;
+	private long[] previous;
+	private int size = 0;
+	private final @NotNull Map<String, Integer> worldIds = new HashMap<>();
+	private long[] pendingKeys;
+	private long[] pendingValues;
+	private int pendingSize = 0;
+
+	// Log state, guarded by logLock. Lock order is always logLock before this.
+	private final Object logLock = new Object();
+	private FileChannel log;
+	private long generation = 0;
+	private long logBytes;
+	private long snapshotBytes = 0;
+	private volatile boolean closed = false;
+
+	private final @NotNull Thread writer;
+	private final Object writeSignal = new Object();
+	private volatile boolean running = true;
+
+	/**
+	 * Constructs a new {@code MemoryAdapter}, loading the snapshot and replaying newer logs.
+	 *
+	 * @param logger the logger for storage errors
+	 * @param directory the directory containing the snapshot and logs
+	 * @param maxLatency the maximum duration in milliseconds a change waits before being written
+	 * @param queueMax the number of pending changes that triggers an immediate write
+	 * @throws IOException if the stored flags cannot be loaded
+	 */
+	MemoryAdapter(@NotNull Logger logger, @NotNull Path directory, long maxLatency, int queueMax) throws IOException {
+		this.logger = logger;
+		this.directory = directory;
+		this.snapshotFile = directory.resolve("flags.snapshot");
+		this.maxLatency = Math.max(1, maxLatency);
+		this.queueMax = queueMax;
+		this.keys = newKeys(INITIAL_CAPACITY);
+		this.current = new long[INITIAL_CAPACITY];
+		this.previous = new long[INITIAL_CAPACITY];
+		this.pendingKeys = new long[queueMax];
+		this.pendingValues = new long[queueMax];
+
+		Files.createDirectories(directory);
+		recover();
+
+		writer = new Thread(this::runWriter, "FlagLogWriter");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	@Override
+	public void close() {
+		if (running) {
+			expireAll();
+		}
+
+		synchronized (logLock) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+
+			try {
+				// Leave a fresh snapshot so that the next startup has no log to replay.
+				compact();
+			} catch (IOException e) {
+				logger.log(Level.SEVERE, "Exception writing flag snapshot; flags will be recovered from the log", e);
+			}
+
+			try {
+				log.close();
+			} catch (IOException e) {
+				logger.log(Level.WARNING, "Exception closing flag log", e);
+			}
+		}
+	}
+
+	@Override
+	public int getWorldId(@NotNull String worldName) throws IOException {
+		synchronized (this) {
+			Integer worldId = worldIds.get(worldName);
+			if (worldId != null) {
+				return worldId;
+			}
+		}
+
+		synchronized (logLock) {
+			if (closed) {
+				throw new IOException("Flag storage is closed");
+			}
+
+			int worldId;
+			synchronized (this) {
+				Integer existing = worldIds.get(worldName);
+				if (existing != null) {
+					return existing;
+				}
+
+				worldId = worldIds.values().stream().mapToInt(Integer::intValue).max().orElse(0) + 1;
+				if (worldId > ChunkKey.MAX_WORLD_ID) {
+					throw new IOException("Too many worlds registered, cannot register " + worldName);
+				}
+			}
+
+			byte[] name = worldName.getBytes(StandardCharsets.UTF_8);
+			ByteBuffer record = ByteBuffer.allocate(1 + Integer.BYTES * 2 + name.length);
+			record.put(RECORD_WORLD).putInt(worldId).putInt(name.length).put(name);
+			// World must be durable before any flag referencing it.
+			appendFrame(record.array());
+
+			synchronized (this) {
+				worldIds.put(worldName, worldId);
+			}
+			return worldId;
+		}
+	}
+
+	@Override
+	public void update(long @NotNull [] chunkKeys, long @NotNull [] flags, int length) throws IOException {
+		if (closed) {
+			throw new IOException("Flag storage is closed");
+		}
+
+		synchronized (this) {
+			for (int i = 0; i < length; ++i) {
+				long existing = getCurrent(chunkKeys[i]);
+				// Flags are only ever raised, matching the other adapters.
+				long flag = flags[i] == Config.FLAG_DEFAULT ? Config.FLAG_DEFAULT : Math.max(existing, flags[i]);
+				if (flag != existing) {
+					set(chunkKeys[i], flag);
+					addPending(chunkKeys[i], flag);
+				}
+			}
+		}
+
+		writePending();
+	}
+
+	@Override
+	public synchronized long get(long chunkKey) {
+		return getCurrent(chunkKey);
+	}
+
+	@Override
+	public synchronized long @NotNull [] getAll(long @NotNull [] chunkKeys, int length) {
+		long[] flags = new long[length];
+		for (int i = 0; i < length; ++i) {
+			flags[i] = getCurrent(chunkKeys[i]);
+		}
+		return flags;
+	}
+
+	@Override
+	public synchronized long getPrevious(long chunkKey) {
+		int slot = find(chunkKey);
+		return keys[slot] == EMPTY ? Config.FLAG_DEFAULT : previous[slot];
+	}
+
+	@Override
+	public synchronized long @NotNull [] getRegion(int worldId, int lowestChunkX, int lowestChunkZ) {
+		long[] flags = new long[RegionInfo.TOTAL_CHUNKS];
+		for (int localZ = 0; localZ < RegionInfo.CHUNKS_PER_AXIS; ++localZ) {
+			for (int localX = 0; localX < RegionInfo.CHUNKS_PER_AXIS; ++localX) {
+				flags[localZ << 5 | localX] = getCurrent(ChunkKey.of(worldId, lowestChunkX + localX, lowestChunkZ + localZ));
+			}
+		}
+		return flags;
+	}
+
+	@Override
+	public synchronized @NotNull Map<String, Integer> getWorldIds() {
+		return Map.copyOf(worldIds);
+	}
+
+	@Override
+	public void forEachChunk(@NotNull ChunkVisitor visitor) throws Exception {
+		long[] chunkKeys;
+		synchronized (this) {
+			chunkKeys = new long[size];
+			int index = 0;
+			for (long chunkKey : keys) {
+				if (chunkKey != EMPTY) {
+					chunkKeys[index++] = chunkKey;
+				}
+			}
+		}
+		Arrays.sort(chunkKeys);
+
+		long[] flags = new long[IMPORT_BATCH];
+		long[] lastDeleteTimes = new long[IMPORT_BATCH];
+		for (int start = 0; start < chunkKeys.length; start += IMPORT_BATCH) {
+			int length = Math.min(IMPORT_BATCH, chunkKeys.length - start);
+			// Lock per batch so that long exports do not hold up flagging.
+			synchronized (this) {
+				for (int i = 0; i < length; ++i) {
+					int slot = find(chunkKeys[start + i]);
+					flags[i] = current[slot];
+					lastDeleteTimes[i] = previous[slot];
+				}
+			}
+			for (int i = 0; i < length; ++i) {
+				if (flags[i] != Config.FLAG_DEFAULT || lastDeleteTimes[i] != Config.FLAG_DEFAULT) {
+					visitor.visit(chunkKeys[start + i], flags[i], lastDeleteTimes[i]);
+				}
+			}
+		}
+	}
+
+	@Override
+	public void importFlags(long @NotNull [] chunkKeys, long @NotNull [] flags, long @NotNull [] lastDeleteTimes, int length)
+			throws IOException {
+		synchronized (logLock) {
+			if (closed) {
+				throw new IOException("Flag storage is closed");
+			}
+
+			long[] batchKeys;
+			long[] batchValues;
+			int batchSize;
+			ByteBuffer records = ByteBuffer.allocate(length * 2 * FLAG_RECORD_BYTES);
+			// Pending changes precede the import in the log, as they do in the table.
+			synchronized (this) {
+				batchKeys = pendingKeys;
+				batchValues = pendingValues;
+				batchSize = pendingSize;
+				pendingKeys = new long[queueMax];
+				pendingValues = new long[queueMax];
+				pendingSize = 0;
+
+				for (int i = 0; i < length; ++i) {
+					long chunkKey = chunkKeys[i];
+					if (flags[i] != Config.FLAG_DEFAULT && flags[i] > getCurrent(chunkKey)) {
+						set(chunkKey, flags[i]);
+						records.put(RECORD_FLAG).putLong(chunkKey).putLong(flags[i]);
+					}
+					if (lastDeleteTimes[i] != Config.FLAG_DEFAULT) {
+						int slot = insert(chunkKey);
+						if (lastDeleteTimes[i] > previous[slot]) {
+							previous[slot] = lastDeleteTimes[i];
+							records.put(RECORD_PREVIOUS).putLong(chunkKey).putLong(lastDeleteTimes[i]);
+						}
+					}
+				}
+			}
+
+			appendFlags(batchKeys, batchValues, batchSize);
+			if (records.position() > 0) {
+				appendFrame(Arrays.copyOf(records.array(), records.position()));
+			}
+
+			if (logBytes > Math.max(MIN_COMPACTION_BYTES, snapshotBytes)) {
+				compact();
+			}
+		}
+	}
+
+	@Override
+	public @NotNull FlagCache getFlagCache() {
+		return this;
+	}
+
+	@Override
+	public @NotNull CompletableFuture<Long> getAsync(long chunkKey) {
+		return CompletableFuture.completedFuture(get(chunkKey));
+	}
+
+	@Override
+	public long getIfPresent(long chunkKey) {
+		// Every flag is always present.
+		return get(chunkKey);
+	}
+
+	@Override
+	public long putIfAbsent(long chunkKey, long value) {
+		return get(chunkKey);
+	}
+
+	@Override
+	public long merge(long chunkKey, long value, @NotNull LongBinaryOperator remapping) {
+		return update(chunkKey, existing -> remapping.applyAsLong(existing, value));
+	}
+
+	@Override
+	public long update(long chunkKey, @NotNull LongUnaryOperator function) {
+		boolean full;
+		long value;
+		synchronized (this) {
+			long existing = getCurrent(chunkKey);
+			value = function.applyAsLong(existing);
+			if (value == existing) {
+				return value;
+			}
+			set(chunkKey, value);
+			full = addPending(chunkKey, value);
+		}
+
+		if (full) {
+			signalWriter();
+		}
+		return value;
+	}
+
+	@Override
+	public boolean replace(long chunkKey, long expected, long value) {
+		boolean full;
+		synchronized (this) {
+			long existing = getCurrent(chunkKey);
+			if (existing != expected) {
+				return false;
+			}
+			if (value == existing) {
+				return true;
+			}
+			set(chunkKey, value);
+			full = addPending(chunkKey, value);
+		}
+
+		if (full) {
+			signalWriter();
+		}
+		return true;
+	}
+
+	@Override
+	public boolean loadRegion(long lowestChunkKey) {
+		return true;
+	}
+
+	@Override
+	public void lazyExpireAll() {
+		signalWriter();
+	}
+
+	@Override
+	public void expireAll() {
+		running = false;
+		signalWriter();
+		try {
+			writer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		try {
+			writePending();
+		} catch (IOException e) {
+			logger.log(Level.SEVERE, "Exception writing flag log", e);
+		}
+	}
+
+	@Override
+	public boolean flush() {
+		try {
+			writePending();
+			return true;
+		} catch (IOException e) {
+			logger.log(Level.SEVERE, "Exception writing flag log", e);
+			return false;
+		}
+	}
+
+	@Override
+	public synchronized int getCached() {
+		return size;
+	}
+
+	@Override
+	public synchronized int getQueued() {
+		return pendingSize;
+	}
+
+	@Override
+	public int getQueueCapacity() {
+		return queueMax;
+	}
+
+	/**
+	 * Imports all flags from an SQLite database and writes a snapshot.
+	 *
+	 * @param source the database adapter to import from
+	 * @throws Exception if the flags cannot be read or written
+	 */
+	void importDatabase(@NotNull SQLeadenAdapter source) throws Exception {
+		for (boolean previousFlags : new boolean[] { false, true }) {
+			source.forEachFlag(previousFlags, (worldName, chunkX, chunkZ, flag) -> {
+				long chunkKey = ChunkKey.of(getWorldId(worldName), chunkX, chunkZ);
+				synchronized (this) {
+					int slot = insert(chunkKey);
+					if (previousFlags) {
+						previous[slot] = flag;
+					} else {
+						current[slot] = flag;
+					}
+				}
+			});
+		}
+
+		synchronized (logLock) {
+			compact();
+		}
+	}
+
+	private void runWriter() {
+		while (running) {
+			synchronized (writeSignal) {
+				try {
+					writeSignal.wait(maxLatency);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+
+			try {
+				writePending();
+			} catch (IOException e) {
+				logger.log(Level.SEVERE, "Exception writing flag log", e);
+			}
+		}
+	}
+
+	private void signalWriter() {
+		synchronized (writeSignal) {
+			writeSignal.notifyAll();
+		}
+	}
+
+	/**
+	 * Appends all pending changes to the log, compacting the log if it has grown too large.
+	 *
+	 * @throws IOException if the log cannot be written
+	 */
+	private void writePending() throws IOException {
+		synchronized (logLock) {
+			if (closed) {
+				return;
+			}
+
+			long[] batchKeys;
+			long[] batchValues;
+			int batchSize;
+			synchronized (this) {
+				if (pendingSize == 0) {
+					return;
+				}
+				batchKeys = pendingKeys;
+				batchValues = pendingValues;
+				batchSize = pendingSize;
+				pendingKeys = new long[queueMax];
+				pendingValues = new long[queueMax];
+				pendingSize = 0;
+			}
+
+			appendFlags(batchKeys, batchValues, batchSize);
+
+			if (logBytes > Math.max(MIN_COMPACTION_BYTES, snapshotBytes)) {
+				compact();
+			}
+		}
+	}
+
+	private void appendFlags(long @NotNull [] batchKeys, long @NotNull [] batchValues, int batchSize) throws IOException {
+		if (batchSize == 0) {
+			return;
+		}
+
+		ByteBuffer records = ByteBuffer.allocate(batchSize * FLAG_RECORD_BYTES);
+		for (int i = 0; i < batchSize; ++i) {
+			records.put(RECORD_FLAG).putLong(batchKeys[i]).putLong(batchValues[i]);
+		}
+		appendFrame(records.array());
+	}
+
+	/**
+	 * Appends a checksummed frame to the log and forces it to disk.
+	 *
+	 * @param payload the frame content
+	 * @throws IOException if the frame cannot be written
+	 */
+	private void appendFrame(byte @NotNull [] payload) throws IOException {
+		CRC32 crc = new CRC32();
+		crc.update(payload);
+		ByteBuffer frame = ByteBuffer.allocate(Integer.BYTES * 2 + payload.length);
+		frame.putInt(payload.length).putInt((int) crc.getValue()).put(payload).flip();
+		while (frame.hasRemaining()) {
+			log.write(frame);
+		}
+		log.force(false);
+		logBytes += frame.capacity();
+	}
+
+	/**
+	 * Writes a snapshot of the current state and starts a new log. Must be called holding the log lock.
+	 *
+	 * @throws IOException if the snapshot cannot be written
+	 */
+	private void compact() throws IOException {
+		long[] batchKeys;
+		long[] batchValues;
+		int batchSize;
+		long[] snapshotKeys;
+		long[] snapshotCurrent;
+		long[] snapshotPrevious;
+		Map<String, Integer> snapshotWorlds;
+		int snapshotSize;
+
+		// Pending changes and the copied state must be taken together so that every change is in exactly one of
+		// the snapshot or the new log.
+		synchronized (this) {
+			batchKeys = pendingKeys;
+			batchValues = pendingValues;
+			batchSize = pendingSize;
+			pendingKeys = new long[queueMax];
+			pendingValues = new long[queueMax];
+			pendingSize = 0;
+			snapshotKeys = keys.clone();
+			snapshotCurrent = current.clone();
+			snapshotPrevious = previous.clone();
+			snapshotWorlds = new HashMap<>(worldIds);
+			snapshotSize = size;
+		}
+
+		appendFlags(batchKeys, batchValues, batchSize);
+
+		long nextGeneration = generation + 1;
+		log.close();
+		log = openLog(nextGeneration);
+		generation = nextGeneration;
+
+		Path temp = snapshotFile.resolveSibling(snapshotFile.getFileName() + ".tmp");
+		try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)))) {
+			out.writeInt(SNAPSHOT_MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(nextGeneration);
+			out.writeInt(snapshotWorlds.size());
+			for (Map.Entry<String, Integer> world : snapshotWorlds.entrySet()) {
+				out.writeInt(world.getValue());
+				out.writeUTF(world.getKey());
+			}
+			out.writeInt(snapshotSize);
+			for (int slot = 0; slot < snapshotKeys.length; ++slot) {
+				if (snapshotKeys[slot] != EMPTY) {
+					out.writeLong(snapshotKeys[slot]);
+					out.writeLong(snapshotCurrent[slot]);
+					out.writeLong(snapshotPrevious[slot]);
+				}
+			}
+			out.flush();
+			channel.force(true);
+			snapshotBytes = channel.size();
+		}
+		Files.move(temp, snapshotFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+		// Older logs are now contained in the snapshot.
+		for (Map.Entry<Long, Path> entry : listLogs().entrySet()) {
+			if (entry.getKey() < nextGeneration) {
+				Files.deleteIfExists(entry.getValue());
+			}
+		}
+	}
+
+	private @NotNull FileChannel openLog(long logGeneration) throws IOException {
+		Path path = directory.resolve("delta-" + logGeneration + ".log");
+		FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		if (channel.size() < LOG_HEADER_BYTES) {
+			ByteBuffer header = ByteBuffer.allocate(LOG_HEADER_BYTES).putInt(LOG_MAGIC).putLong(logGeneration).flip();
+			channel.truncate(0);
+			while (header.hasRemaining()) {
+				channel.write(header, header.position());
+			}
+			channel.force(true);
+		}
+		channel.position(channel.size());
+		logBytes = channel.size();
+		return channel;
+	}
+
+	private @NotNull Map<Long, Path> listLogs() throws IOException {
+		Map<Long, Path> logs = new TreeMap<>();
+		try (Stream<Path> files = Files.list(directory)) {
+			files.forEach(path -> {
+				Matcher matcher = LOG_NAME.matcher(path.getFileName().toString());
+				if (matcher.matches()) {
+					logs.put(Long.parseLong(matcher.group(1)), path);
+				}
+			});
+		}
+		return logs;
+	}
+
+	/**
+	 * Loads the snapshot and replays all newer logs.
+	 *
+	 * @throws IOException if the stored flags cannot be read
+	 */
+	private void recover() throws IOException {
+		long snapshotGeneration = 0;
+		if (Files.isRegularFile(snapshotFile)) {
+			snapshotGeneration = readSnapshot();
+			snapshotBytes = Files.size(snapshotFile);
+		}
+
+		generation = snapshotGeneration;
+		for (Map.Entry<Long, Path> entry : listLogs().entrySet()) {
+			if (entry.getKey() < snapshotGeneration) {
+				// Left behind by compaction interrupted after the snapshot was written.
+				Files.deleteIfExists(entry.getValue());
+				continue;
+			}
+			replayLog(entry.getValue(), entry.getKey());
+			generation = entry.getKey();
+		}
+
+		log = openLog(generation);
+	}
+
+	private long readSnapshot() throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(snapshotFile)))) {
+			if (in.readInt() != SNAPSHOT_MAGIC || in.readInt() != VERSION) {
+				throw new IOException("Invalid flag snapshot " + snapshotFile);
+			}
+
+			long snapshotGeneration = in.readLong();
+			int worlds = in.readInt();
+			for (int i = 0; i < worlds; ++i) {
+				int worldId = in.readInt();
+				worldIds.put(in.readUTF(), worldId);
+			}
+
+			int entries = in.readInt();
+			for (int i = 0; i < entries; ++i) {
+				int slot = insert(in.readLong());
+				current[slot] = in.readLong();
+				previous[slot] = in.readLong();
+			}
+
+			return snapshotGeneration;
+		}
+	}
+
+	private void replayLog(@NotNull Path path, long logGeneration) throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(path));
+		if (buffer.remaining() < LOG_HEADER_BYTES || buffer.getInt() != LOG_MAGIC || buffer.getLong() != logGeneration) {
+			logger.warning("Ignoring invalid flag log " + path);
+			Files.delete(path);
+			return;
+		}
+
+		CRC32 crc = new CRC32();
+		int valid = buffer.position();
+		while (buffer.remaining() >= Integer.BYTES * 2) {
+			int length = buffer.getInt();
+			int checksum = buffer.getInt();
+			if (length < 0 || length > buffer.remaining()) {
+				break;
+			}
+
+			crc.reset();
+			crc.update(buffer.array(), buffer.position(), length);
+			if ((int) crc.getValue() != checksum) {
+				break;
+			}
+
+			replayFrame(buffer.slice(buffer.position(), length));
+			buffer.position(buffer.position() + length);
+			valid = buffer.position();
+		}
+
+		if (valid < buffer.limit()) {
+			logger.warning("Discarding " + (buffer.limit() - valid) + " bytes of incomplete flag log " + path);
+			try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+				channel.truncate(valid);
+				channel.force(true);
+			}
+		}
+	}
+
+	private void replayFrame(@NotNull ByteBuffer frame) throws IOException {
+		while (frame.hasRemaining()) {
+			byte type = frame.get();
+			if (type == RECORD_FLAG) {
+				set(frame.getLong(), frame.getLong());
+			} else if (type == RECORD_PREVIOUS) {
+				int slot = insert(frame.getLong());
+				previous[slot] = frame.getLong();
+			} else if (type == RECORD_WORLD) {
+				int worldId = frame.getInt();
+				byte[] name = new byte[frame.getInt()];
+				frame.get(name);
+				worldIds.put(new String(name, StandardCharsets.UTF_8), worldId);
+			} else {
+				throw new IOException("Unknown flag log record type " + type);
+			}
+		}
+	}
+
+	private boolean addPending(long chunkKey, long value) {
+		if (pendingSize == pendingKeys.length) {
+			// Writer is behind; keep accepting changes rather than blocking flagging.
+			int capacity = pendingKeys.length * 2;
+			long[] grownKeys = new long[capacity];
+			long[] grownValues = new long[capacity];
+			System.arraycopy(pendingKeys, 0, grownKeys, 0, pendingSize);
+			System.arraycopy(pendingValues, 0, grownValues, 0, pendingSize);
+			pendingKeys = grownKeys;
+			pendingValues = grownValues;
+		}
+		pendingKeys[pendingSize] = chunkKey;
+		pendingValues[pendingSize] = value;
+		return ++pendingSize >= queueMax;
+	}
+
+	private long getCurrent(long chunkKey) {
+		int slot = find(chunkKey);
+		return keys[slot] == EMPTY ? Config.FLAG_DEFAULT : current[slot];
+	}
+
+	/**
+	 * Sets a chunk's current flag. Setting the default flag retains the existing flag as the flag as of last
+	 * deletion.
+	 *
+	 * @param chunkKey the packed chunk key
+	 * @param flag the flag timestamp
+	 */
+	private void set(long chunkKey, long flag) {
+		if (flag == Config.FLAG_DEFAULT) {
+			int slot = find(chunkKey);
+			if (keys[slot] != EMPTY && current[slot] != Config.FLAG_DEFAULT) {
+				previous[slot] = current[slot];
+				current[slot] = Config.FLAG_DEFAULT;
+			}
+			return;
+		}
+
+		// Insertion may resize the table, so the slot must be found before the array is read.
+		int slot = insert(chunkKey);
+		current[slot] = flag;
+	}
+
+	private int find(long chunkKey) {
+		int mask = keys.length - 1;
+		int slot = hash(chunkKey) & mask;
+		while (keys[slot] != EMPTY && keys[slot] != chunkKey) {
+			slot = slot + 1 & mask;
+		}
+		return slot;
+	}
+
+	private int insert(long chunkKey) {
+		int slot = find(chunkKey);
+		if (keys[slot] != EMPTY) {
+			return slot;
+		}
+
+		if (size + 1 > keys.length / 4 * 3) {
+			resize();
+			slot = find(chunkKey);
+		}
+
+		keys[slot] = chunkKey;
+		current[slot] = Config.FLAG_DEFAULT;
+		previous[slot] = Config.FLAG_DEFAULT;
+		++size;
+		return slot;
+	}
+
+	private void resize() {
+		long[] oldKeys = keys;
+		long[] oldCurrent = current;
+		long[] oldPrevious = previous;
+		keys = newKeys(oldKeys.length * 2);
+		current = new long[keys.length];
+		previous = new long[keys.length];
+
+		for (int i = 0; i < oldKeys.length; ++i) {
+			if (oldKeys[i] != EMPTY) {
+				int slot = find(oldKeys[i]);
+				keys[slot] = oldKeys[i];
+				current[slot] = oldCurrent[i];
+				previous[slot] = oldPrevious[i];
+			}
+		}
+	}
+
+	private static long @NotNull [] newKeys(int capacity) {
+		long[] newKeys = new long[capacity];
+		Arrays.fill(newKeys, EMPTY);
+		return newKeys;
+	}
+
+	private static int hash(long key) {
+		key *= 0x9E3779B97F4A7C15L;
+		return (int) (key ^ key >>> 32);
+	}
+
+}
@@ -10,88 +10,1146 @@
 
 package com.github.jikoo.regionerator.database;
 
-import com.github.jikoo.regionerator.ChunkFlagger;
 import com.github.jikoo.regionerator.Regionerator;
+import com.github.jikoo.regionerator.util.ChunkKey;
 import com.github.jikoo.regionerator.util.yaml.Config;
+import com.github.jikoo.regionerator.world.RegionInfo;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.jetbrains.annotations.UnmodifiableView;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.sql.*;
-import java.util.Collection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 
 /**
  * Adapter for old versions of SQLite.
+ *
+ * <p>Flags are stored in a {@code WITHOUT ROWID} table keyed on integer world identifiers and chunk coordinates.
+ * Removing a flag moves its value into the same row's {@code last_delete_time} column rather than deleting the row,
+ * so a delete is a single row write and the flag as of last deletion needs no separate table. Databases using the
+ * legacy text-keyed {@code chunkdata} table are migrated in the background while the table remains available for
+ * lookups.
+ *
+ * <p>If a presence index file is provided, an exact index of chunks with stored flags is kept in memory so that
+ * lookups for chunks that were never flagged do not touch the database. The index is written on close and discarded
+ * on load, so it is rebuilt from the database after an unclean shutdown. Rebuilding happens in the background; until
+ * it completes, every chunk is treated as possibly flagged.
+ *
+ * <p>The database runs in WAL mode. The connection provided on construction is the only writer and is only used by a
+ * single writer thread, while lookups are served by a small pool of read-only connections so that they are never
+ * blocked by a batch commit. Each connection caches its prepared statements.
  */
 public class SQLeadenAdapter implements DatabaseAdapter {
 
+	private static final int MIGRATION_BATCH_SIZE = 10_000;
+	private static final int READ_CONNECTIONS = 4;
+	// SQLITE_OPEN_READONLY
+	private static final String OPEN_READ_ONLY = "1";
+	// Enumerating X lets SQLite seek the primary key once per column instead of scanning every Z for a range of X.
+	private static final String REGION_QUERY = "SELECT chunk_x,chunk_z,time FROM flags WHERE world_id=? AND chunk_x IN ("
+			+ String.join(",", Collections.nCopies(RegionInfo.CHUNKS_PER_AXIS, "?")) + ") AND chunk_z BETWEEN ? AND ?";
+	private static final int MULTI_QUERY_SIZE = 64;
+	// Row values require SQLite 3.15, an OR of primary key lookups works on every version.
+	private static final String MULTI_QUERY = "SELECT world_id,chunk_x,chunk_z,time FROM flags WHERE "
+			+ String.join(" OR ", Collections.nCopies(MULTI_QUERY_SIZE, "(world_id=? AND chunk_x=? AND chunk_z=?)"));
+	private static final String LEGACY_REGION_QUERY = "SELECT chunk_id,time FROM chunkdata WHERE chunk_id IN ("
+			+ String.join(",", Collections.nCopies(RegionInfo.CHUNKS_PER_AXIS, "?")) + ")";
+
 	private final @NotNull Regionerator plugin;
 	final @NotNull Connection database;
+	private final @NotNull CachedConnection writer;
+	private final @NotNull ExecutorService writeExecutor;
+	private final @NotNull BlockingQueue<CachedConnection> readers = new ArrayBlockingQueue<>(READ_CONNECTIONS);
+	private volatile @Nullable Thread writerThread;
+	private volatile boolean closed = false;
+	private final @NotNull Map<String, Integer> worldIds = new ConcurrentHashMap<>();
+	private final @NotNull Map<Integer, String> worldNames = new ConcurrentHashMap<>();
+	private final @Nullable Path presenceFile;
+	private final @Nullable FlagPresenceIndex presence;
+	private volatile boolean presenceReady;
+	private final boolean vacuumInto;
+	private volatile boolean migrating;
 
-	SQLeadenAdapter(@NotNull Regionerator plugin, @NotNull Connection database) throws SQLException {
+	SQLeadenAdapter(
+			@NotNull Regionerator plugin,
+			@NotNull Connection database,
+			@NotNull String url,
+			@Nullable Path presenceFile) throws SQLException {
 		this.plugin = plugin;
 		this.database = database;
+		this.writer = new CachedConnection(database);
+		this.presenceFile = presenceFile;
+
+		// VACUUM INTO requires SQLite 3.27.
+		DatabaseMetaData metaData = database.getMetaData();
+		vacuumInto = metaData.getDatabaseMajorVersion() > 3
+				|| metaData.getDatabaseMajorVersion() == 3 && metaData.getDatabaseMinorVersion() >= 27;
 
 		// Set up database
 		try (Statement st = database.createStatement()) {
-			st.executeUpdate("CREATE TABLE IF NOT EXISTS `chunkdata`(`chunk_id` TEXT NOT NULL UNIQUE, `time` BIGINT NOT NULL)");
+			// Only takes effect for new databases; existing databases are rebuilt in the background if flag cleanup is
+			// enabled.
+			st.execute("PRAGMA auto_vacuum=INCREMENTAL");
+			// Journal mode cannot be changed within a transaction.
+			st.execute("PRAGMA journal_mode=WAL");
+			st.execute("PRAGMA synchronous=NORMAL");
+			st.executeUpdate("CREATE TABLE IF NOT EXISTS `worlds`(`world_id` INTEGER PRIMARY KEY, `name` TEXT NOT NULL UNIQUE)");
+			st.executeUpdate("CREATE TABLE IF NOT EXISTS `flags`(`world_id` INTEGER NOT NULL, `chunk_x` INTEGER NOT NULL, "
+					+ "`chunk_z` INTEGER NOT NULL, `time` BIGINT NOT NULL, `last_delete_time` BIGINT NOT NULL DEFAULT "
+					+ Config.FLAG_DEFAULT + ", PRIMARY KEY(`world_id`,`chunk_x`,`chunk_z`)) WITHOUT ROWID");
+
+			try (ResultSet rs = st.executeQuery("SELECT world_id,name FROM worlds")) {
+				while (rs.next()) {
+					worldIds.put(rs.getString(2), rs.getInt(1));
+					worldNames.put(rs.getInt(1), rs.getString(2));
+				}
+			}
+
+			try (ResultSet rs = st.executeQuery("SELECT 1 FROM sqlite_master WHERE type='table' AND name='chunkdata'")) {
+				migrating = rs.next();
+			}
+
+			if (migrating) {
+				// Legacy trigger would copy every migrated row back into the legacy table.
+				st.executeUpdate("DROP TRIGGER IF EXISTS chunkdataold");
+			}
 		}
 
 		database.setAutoCommit(false);
+		database.commit();
+
+		FlagPresenceIndex savedPresence = presenceFile == null ? null : loadPresence(presenceFile);
+		presenceReady = savedPresence != null;
+		presence = presenceReady || presenceFile == null ? savedPresence : new FlagPresenceIndex();
+
+		Properties readOnly = new Properties();
+		readOnly.setProperty("open_mode", OPEN_READ_ONLY);
+		for (int i = 0; i < READ_CONNECTIONS; ++i) {
+			Connection reader = DriverManager.getConnection(url, readOnly);
+			// Multi-statement lookups read from a single snapshot.
+			reader.setAutoCommit(false);
+			readers.add(new CachedConnection(reader));
+		}
+
+		writeExecutor = Executors.newSingleThreadExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "FlagDatabaseWriter");
+			thread.setDaemon(true);
+			writerThread = thread;
+			return thread;
+		});
+
+		if (presence != null && !presenceReady) {
+			plugin.getScheduler().runAsync(task -> buildPresence(presence));
+		}
+	}
+
+	/**
+	 * Runs a task using the writer connection on the writer thread, waiting for it to complete.
+	 *
+	 * @param task the task
+	 * @param <T> the type of result
+	 * @return the result of the task
+	 * @throws SQLException if the task throws an exception or the adapter is closed
+	 */
+	private <T> T write(@NotNull SQLTask<T> task) throws SQLException {
+		if (Thread.currentThread() == writerThread) {
+			return task.run(writer);
+		}
+
+		Future<T> future;
+		try {
+			future = writeExecutor.submit(() -> task.run(writer));
+		} catch (RejectedExecutionException e) {
+			throw new SQLException("Flag storage is closed", e);
+		}
+
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted awaiting database write", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof SQLException sqlException) {
+				throw sqlException;
+			}
+			if (e.getCause() instanceof RuntimeException runtimeException) {
+				throw runtimeException;
+			}
+			throw new SQLException(e.getCause());
+		}
+	}
+
+	/**
+	 * Runs a task using a pooled read-only connection.
+	 *
+	 * @param task the task
+	 * @param <T> the type of result
+	 * @return the result of the task
+	 * @throws SQLException if the task throws an exception or the adapter is closed
+	 */
+	private <T> T read(@NotNull SQLTask<T> task) throws SQLException {
+		CachedConnection reader;
+		try {
+			while ((reader = readers.poll(100, TimeUnit.MILLISECONDS)) == null) {
+				if (closed) {
+					throw new SQLException("Flag storage is closed");
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted awaiting database connection", e);
+		}
+
+		try {
+			return task.run(reader);
+		} finally {
+			try {
+				// End the read transaction so that the next read sees new commits.
+				reader.connection.commit();
+			} finally {
+				readers.add(reader);
+			}
+		}
+	}
+
+	private @Nullable FlagPresenceIndex loadPresence(@NotNull Path presenceFile) {
+		try {
+			FlagPresenceIndex index = FlagPresenceIndex.load(presenceFile);
+			// Only trust a saved index if it can be discarded until the next clean shutdown.
+			if (index != null && Files.deleteIfExists(presenceFile)) {
+				return index;
+			}
+		} catch (IOException e) {
+			plugin.getLogger().log(Level.WARNING, "Unable to load flag presence index, rebuilding", e);
+		}
+		return null;
+	}
+
+	/**
+	 * Adds every stored flag to an index that is already receiving changes. The scan reads a single snapshot, so flags
+	 * removed since are at worst left marked present, while flags stored since were marked by the writer.
+	 *
+	 * @param index the index
+	 */
+	private void buildPresence(@NotNull FlagPresenceIndex index) {
+		plugin.getLogger().info("Building flag presence index.");
+		try {
+			boolean complete = read(connection -> {
+				try (Statement st = connection.connection.createStatement();
+						ResultSet rs = st.executeQuery("SELECT world_id,chunk_x,chunk_z FROM flags WHERE time<>" + Config.FLAG_DEFAULT)) {
+					while (rs.next()) {
+						if (closed) {
+							return false;
+						}
+						index.add(ChunkKey.of(rs.getInt(1), rs.getInt(2), rs.getInt(3)));
+					}
+				}
+				return true;
+			});
+			presenceReady = complete;
+			if (complete) {
+				plugin.getLogger().info("Built flag presence index.");
+			}
+		} catch (SQLException e) {
+			if (!closed) {
+				plugin.getLogger().log(Level.WARNING, "Unable to build flag presence index", e);
+			}
+		}
+	}
+
+	/**
+	 * Begins migrating the legacy text-keyed table in the background if it is present. Once migration is complete,
+	 * the database is optionally rebuilt to support incremental vacuum.
+	 *
+	 * @param rebuildForVacuum whether to rebuild databases that do not support incremental vacuum
+	 */
+	void startMaintenance(boolean rebuildForVacuum) {
+		if (migrating || rebuildForVacuum) {
+			plugin.getScheduler().runAsync(task -> {
+				if (migrateLegacyTable() && rebuildForVacuum) {
+					enableIncrementalVacuum();
+				}
+			});
+		}
 	}
 
 	@Override
 	public void close() {
-		synchronized (database) {
+		closed = true;
+
+		// Wait for in-flight reads before closing read connections.
+		for (int i = 0; i < READ_CONNECTIONS; ++i) {
 			try {
-				database.commit();
-				database.close();
+				CachedConnection reader = readers.poll(10, TimeUnit.SECONDS);
+				if (reader != null) {
+					reader.close();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
 			} catch (SQLException e) {
-				plugin.getLogger().log(Level.SEVERE, "Exception committing to and closing DB connection", e);
+				plugin.getLogger().log(Level.WARNING, "Exception closing DB read connection", e);
+			}
+		}
+
+		try {
+			write(connection -> {
+				connection.connection.commit();
+				connection.close();
+				return null;
+			});
+		} catch (SQLException e) {
+			plugin.getLogger().log(Level.SEVERE, "Exception committing to and closing DB connection", e);
+			return;
+		} finally {
+			writeExecutor.shutdown();
+		}
+
+		// An incomplete index must be rebuilt next time.
+		if (presence != null && presenceReady && presenceFile != null) {
+			try {
+				presence.save(presenceFile);
+			} catch (IOException e) {
+				plugin.getLogger().log(Level.WARNING, "Unable to save flag presence index", e);
 			}
 		}
 	}
 
 	@Override
-	public void update(@NotNull Collection<ChunkFlagger.FlagData> flags) throws SQLException {
-		synchronized (database) {
-			try (PreparedStatement boyIWishThisWasAnUpsert = database.prepareStatement("INSERT OR REPLACE INTO chunkdata(chunk_id,time) VALUES (?, MAX(COALESCE((SELECT time FROM chunkdata WHERE chunk_id=?),0),?))");
-				PreparedStatement deleteForeverBecauseReplaceEqualsDeleteThenInsertFrownyFace = database.prepareStatement("DELETE FROM chunkdata WHERE chunk_id=?")) {
-				for (ChunkFlagger.FlagData data : flags) {
-					if (data.getLastVisit() == Config.FLAG_DEFAULT) {
-						deleteForeverBecauseReplaceEqualsDeleteThenInsertFrownyFace.setString(1, data.getChunkId());
-						deleteForeverBecauseReplaceEqualsDeleteThenInsertFrownyFace.addBatch();
+	public int getWorldId(@NotNull String worldName) throws SQLException {
+		Integer worldId = worldIds.get(worldName);
+		if (worldId != null) {
+			return worldId;
+		}
+
+		return write(connection -> {
+			Integer registered = worldIds.get(worldName);
+			if (registered != null) {
+				return registered;
+			}
+
+			PreparedStatement insert = connection.prepare("INSERT OR IGNORE INTO worlds(name) VALUES (?)");
+			insert.setString(1, worldName);
+			insert.executeUpdate();
+			PreparedStatement select = connection.prepare("SELECT world_id FROM worlds WHERE name=?");
+			select.setString(1, worldName);
+			try (ResultSet rs = select.executeQuery()) {
+				if (!rs.next()) {
+					throw new SQLException("Unable to register world " + worldName);
+				}
+				registered = rs.getInt(1);
+			}
+
+			if (registered > ChunkKey.MAX_WORLD_ID) {
+				connection.connection.rollback();
+				throw new SQLException("Too many worlds registered, cannot register " + worldName);
+			}
+
+			connection.connection.commit();
+			worldIds.put(worldName, registered);
+			worldNames.put(registered, worldName);
+			return registered;
+		});
+	}
+
+	/**
+	 * Gets the SQL of a statement inserting a flag or raising the existing current and last deleted flags to the new
+	 * values.
+	 *
+	 * @return the statement SQL
+	 */
+	@NotNull String getUpsertSql() {
+		String key = " FROM flags WHERE world_id=? AND chunk_x=? AND chunk_z=?)," + Config.FLAG_DEFAULT + "),?)";
+		return "INSERT OR REPLACE INTO flags(world_id,chunk_x,chunk_z,time,last_delete_time) VALUES (?,?,?,"
+				+ "MAX(COALESCE((SELECT time" + key + ",MAX(COALESCE((SELECT last_delete_time" + key + ")";
+	}
+
+	/**
+	 * Adds a flag to a batch prepared from {@link #getUpsertSql()}.
+	 *
+	 * @param upsert the prepared statement
+	 * @param chunkKey the packed chunk key
+	 * @param time the flag timestamp or {@link Config#FLAG_DEFAULT} to leave the current flag unchanged
+	 * @param lastDeleteTime the flag timestamp as of last deletion or {@link Config#FLAG_DEFAULT} to leave it unchanged
+	 * @throws SQLException if the parameters cannot be set
+	 */
+	void addUpsert(@NotNull PreparedStatement upsert, long chunkKey, long time, long lastDeleteTime) throws SQLException {
+		setKey(upsert, 1, chunkKey);
+		setKey(upsert, 4, chunkKey);
+		upsert.setLong(7, time);
+		setKey(upsert, 8, chunkKey);
+		upsert.setLong(11, lastDeleteTime);
+		upsert.addBatch();
+	}
+
+	static void setKey(@NotNull PreparedStatement statement, int index, long chunkKey) throws SQLException {
+		statement.setInt(index, ChunkKey.getWorldId(chunkKey));
+		statement.setInt(index + 1, ChunkKey.getChunkX(chunkKey));
+		statement.setInt(index + 2, ChunkKey.getChunkZ(chunkKey));
+	}
+
+	@Override
+	public void update(long @NotNull [] chunkKeys, long @NotNull [] flags, int length) throws SQLException {
+		write(connection -> {
+			PreparedStatement upsert = connection.prepare(getUpsertSql());
+			// Retain value as of deletion in the same row.
+			PreparedStatement delete = connection.prepare("UPDATE flags SET last_delete_time=time,time=" + Config.FLAG_DEFAULT
+					+ " WHERE world_id=? AND chunk_x=? AND chunk_z=? AND time<>" + Config.FLAG_DEFAULT);
+			PreparedStatement deleteLegacy = migrating ? connection.prepare("DELETE FROM chunkdata WHERE chunk_id=?") : null;
+			try {
+				for (int i = 0; i < length; ++i) {
+					if (flags[i] == Config.FLAG_DEFAULT) {
+						if (presence != null && presenceReady && !migrating && !presence.mayContain(chunkKeys[i])) {
+							// Nothing to delete.
+							continue;
+						}
+						setKey(delete, 1, chunkKeys[i]);
+						delete.addBatch();
+						if (deleteLegacy != null) {
+							// Prevent migration from resurrecting a removed flag.
+							String legacyId = getLegacyId(chunkKeys[i]);
+							if (legacyId != null) {
+								deleteLegacy.setString(1, legacyId);
+								deleteLegacy.addBatch();
+							}
+						}
 					} else {
-						boyIWishThisWasAnUpsert.setString(1, data.getChunkId());
-						boyIWishThisWasAnUpsert.setString(2, data.getChunkId());
-						boyIWishThisWasAnUpsert.setLong(3, data.getLastVisit());
-						boyIWishThisWasAnUpsert.addBatch();
+						// Mark present before storing so lookups never miss a stored flag.
+						if (presence != null) {
+							presence.add(chunkKeys[i]);
+						}
+						addUpsert(upsert, chunkKeys[i], flags[i], Config.FLAG_DEFAULT);
+					}
+				}
+				delete.executeBatch();
+				upsert.executeBatch();
+				if (deleteLegacy != null) {
+					deleteLegacy.executeBatch();
+				}
+				connection.connection.commit();
+			} catch (SQLException e) {
+				// Cached statements outlive the batch, don't leave a partial batch behind.
+				upsert.clearBatch();
+				delete.clearBatch();
+				if (deleteLegacy != null) {
+					deleteLegacy.clearBatch();
+				}
+				connection.connection.rollback();
+				throw e;
+			}
+
+			if (presence != null) {
+				for (int i = 0; i < length; ++i) {
+					if (flags[i] == Config.FLAG_DEFAULT) {
+						presence.remove(chunkKeys[i]);
 					}
 				}
-				deleteForeverBecauseReplaceEqualsDeleteThenInsertFrownyFace.executeBatch();
-				boyIWishThisWasAnUpsert.executeBatch();
-				this.database.commit();
 			}
+			return null;
+		});
+	}
+
+	@Override
+	public long get(long chunkKey) throws SQLException {
+		if (presence != null && presenceReady && !migrating && !presence.mayContain(chunkKey)) {
+			return Config.FLAG_DEFAULT;
 		}
+		return get("time", chunkKey, "");
 	}
 
 	@Override
-	public long get(@NotNull String identifier) throws SQLException {
-		synchronized (database) {
-			if (database.isClosed()) {
-				return Config.FLAG_OH_NO;
+	public long @NotNull [] getAll(long @NotNull [] chunkKeys, int length) throws SQLException {
+		long[] flags = new long[length];
+		Arrays.fill(flags, Config.FLAG_DEFAULT);
+
+		// Only query chunks that may have a stored flag.
+		int[] queried = new int[length];
+		int count = 0;
+		for (int i = 0; i < length; ++i) {
+			if (presence == null || !presenceReady || migrating || presence.mayContain(chunkKeys[i])) {
+				queried[count++] = i;
 			}
+		}
 
-			try (PreparedStatement st = database.prepareStatement("SELECT time FROM chunkdata WHERE chunk_id=?")) {
-				st.setString(1, identifier);
+		if (count == 0) {
+			return flags;
+		}
+
+		if (closed) {
+			Arrays.fill(flags, Config.FLAG_OH_NO);
+			return flags;
+		}
+
+		int queriedCount = count;
+		return read(connection -> {
+			Map<Long, Integer> indices = new HashMap<>();
+			PreparedStatement st = connection.prepare(MULTI_QUERY);
+			for (int start = 0; start < queriedCount; start += MULTI_QUERY_SIZE) {
+				indices.clear();
+				for (int i = 0; i < MULTI_QUERY_SIZE; ++i) {
+					// Pad partial batches by repeating the last key so that the statement can be reused.
+					int index = queried[Math.min(start + i, queriedCount - 1)];
+					setKey(st, 1 + i * 3, chunkKeys[index]);
+					indices.put(chunkKeys[index], index);
+				}
 				try (ResultSet rs = st.executeQuery()) {
-					if (rs.next()) {
-						return rs.getLong(1);
-					} else {
-						return Config.FLAG_DEFAULT;
+					while (rs.next()) {
+						Integer index = indices.get(ChunkKey.of(rs.getInt(1), rs.getInt(2), rs.getInt(3)));
+						if (index != null) {
+							flags[index] = rs.getLong(4);
+						}
+					}
+				}
+			}
+
+			if (migrating) {
+				for (int i = 0; i < queriedCount; ++i) {
+					int index = queried[i];
+					if (flags[index] == Config.FLAG_DEFAULT) {
+						flags[index] = getLegacy(connection, chunkKeys[index], "");
+					}
+				}
+			}
+
+			return flags;
+		});
+	}
+
+	@Override
+	public long getPrevious(long chunkKey) throws SQLException {
+		return get("last_delete_time", chunkKey, "_old");
+	}
+
+	private long get(@NotNull String column, long chunkKey, @NotNull String legacySuffix) throws SQLException {
+		if (closed) {
+			return Config.FLAG_OH_NO;
+		}
+
+		return read(connection -> {
+			PreparedStatement st = connection.prepare("SELECT " + column + " FROM flags WHERE world_id=? AND chunk_x=? AND chunk_z=?");
+			setKey(st, 1, chunkKey);
+			try (ResultSet rs = st.executeQuery()) {
+				if (rs.next() && rs.getLong(1) != Config.FLAG_DEFAULT) {
+					return rs.getLong(1);
+				}
+			}
+
+			if (migrating) {
+				return getLegacy(connection, chunkKey, legacySuffix);
+			}
+
+			return Config.FLAG_DEFAULT;
+		});
+	}
+
+	@Override
+	public long @NotNull [] getRegion(int worldId, int lowestChunkX, int lowestChunkZ) throws SQLException {
+		long[] flags = new long[RegionInfo.TOTAL_CHUNKS];
+
+		if (presence != null && presenceReady && !migrating && !presence.mayContainRegion(worldId, lowestChunkX, lowestChunkZ)) {
+			Arrays.fill(flags, Config.FLAG_DEFAULT);
+			return flags;
+		}
+
+		if (closed) {
+			Arrays.fill(flags, Config.FLAG_OH_NO);
+			return flags;
+		}
+
+		Arrays.fill(flags, Config.FLAG_DEFAULT);
+
+		return read(connection -> {
+			PreparedStatement st = connection.prepare(REGION_QUERY);
+			st.setInt(1, worldId);
+			for (int i = 0; i < RegionInfo.CHUNKS_PER_AXIS; ++i) {
+				st.setInt(2 + i, lowestChunkX + i);
+			}
+			st.setInt(2 + RegionInfo.CHUNKS_PER_AXIS, lowestChunkZ);
+			st.setInt(3 + RegionInfo.CHUNKS_PER_AXIS, lowestChunkZ + RegionInfo.CHUNKS_PER_AXIS - 1);
+			try (ResultSet rs = st.executeQuery()) {
+				while (rs.next()) {
+					flags[getRegionIndex(rs.getInt(1) - lowestChunkX, rs.getInt(2) - lowestChunkZ)] = rs.getLong(3);
+				}
+			}
+
+			if (migrating) {
+				getLegacyRegion(connection, flags, worldId, lowestChunkX, lowestChunkZ);
+			}
+
+			return flags;
+		});
+	}
+
+	private void getLegacyRegion(
+			@NotNull CachedConnection connection,
+			long @NotNull [] flags,
+			int worldId,
+			int lowestChunkX,
+			int lowestChunkZ) throws SQLException {
+		String worldName = worldNames.get(worldId);
+		if (worldName == null) {
+			return;
+		}
+
+		PreparedStatement st = connection.prepare(LEGACY_REGION_QUERY);
+		for (int localZ = 0; localZ < RegionInfo.CHUNKS_PER_AXIS; ++localZ) {
+			for (int localX = 0; localX < RegionInfo.CHUNKS_PER_AXIS; ++localX) {
+				st.setString(1 + localX, worldName + '_' + (lowestChunkX + localX) + '_' + (lowestChunkZ + localZ));
+			}
+			try (ResultSet rs = st.executeQuery()) {
+				while (rs.next()) {
+					LegacyFlag legacy = LegacyFlag.parse(rs.getString(1), rs.getLong(2));
+					if (legacy == null) {
+						continue;
+					}
+					int index = getRegionIndex(legacy.chunkX() - lowestChunkX, legacy.chunkZ() - lowestChunkZ);
+					// Migrated values take precedence.
+					if (flags[index] == Config.FLAG_DEFAULT) {
+						flags[index] = legacy.time();
 					}
 				}
 			}
 		}
 	}
 
+	private static int getRegionIndex(int localChunkX, int localChunkZ) {
+		return localChunkZ << 5 | localChunkX;
+	}
+
+	private long getLegacy(@NotNull CachedConnection connection, long chunkKey, @NotNull String suffix) throws SQLException {
+		String legacyId = getLegacyId(chunkKey);
+		if (legacyId == null) {
+			return Config.FLAG_DEFAULT;
+		}
+
+		PreparedStatement st = connection.prepare("SELECT time FROM chunkdata WHERE chunk_id=?");
+		st.setString(1, legacyId + suffix);
+		try (ResultSet rs = st.executeQuery()) {
+			if (rs.next()) {
+				return rs.getLong(1);
+			} else {
+				return Config.FLAG_DEFAULT;
+			}
+		}
+	}
+
+	private @Nullable String getLegacyId(long chunkKey) {
+		String worldName = worldNames.get(ChunkKey.getWorldId(chunkKey));
+		if (worldName == null) {
+			return null;
+		}
+		return worldName + '_' + ChunkKey.getChunkX(chunkKey) + '_' + ChunkKey.getChunkZ(chunkKey);
+	}
+
+	/**
+	 * Streams rows from the legacy text-keyed table into the current tables in small transactions.
+	 * Migrated rows are removed from the legacy table as they are copied, so an interrupted migration
+	 * resumes where it left off.
+	 *
+	 * @return true if the legacy table is fully migrated
+	 */
+	boolean migrateLegacyTable() {
+		if (!migrating) {
+			return true;
+		}
+
+		long total;
+		try {
+			total = read(connection -> {
+				try (ResultSet rs = connection.prepare("SELECT MAX(rowid) FROM chunkdata").executeQuery()) {
+					return rs.next() ? rs.getLong(1) : 0;
+				}
+			});
+		} catch (SQLException e) {
+			plugin.getLogger().log(Level.SEVERE, "Unable to begin migrating legacy flags", e);
+			return false;
+		}
+
+		plugin.getLogger().info("Beginning migration of legacy flag table, up to " + total + " rows.");
+		long migrated = 0;
+		long nextLog = System.currentTimeMillis() + 30_000;
+
+		while (true) {
+			if (closed) {
+				plugin.getLogger().info("Legacy flag migration paused; it will resume on next startup.");
+				return false;
+			}
+
+			int batchSize;
+			try {
+				// Each batch is a separate task so that flag saves are not held up by the whole migration.
+				batchSize = write(connection -> {
+					try {
+						int count = migrateLegacyBatch(connection);
+						if (count == 0) {
+							try (Statement st = connection.connection.createStatement()) {
+								st.executeUpdate("DROP TABLE chunkdata");
+							}
+							connection.connection.commit();
+						}
+						return count;
+					} catch (SQLException e) {
+						connection.connection.rollback();
+						throw e;
+					}
+				});
+			} catch (SQLException e) {
+				if (closed) {
+					plugin.getLogger().info("Legacy flag migration paused; it will resume on next startup.");
+				} else {
+					plugin.getLogger().log(Level.SEVERE, "Exception migrating legacy flags; migration will resume on next startup", e);
+				}
+				return false;
+			}
+
+			if (batchSize == 0) {
+				migrating = false;
+				plugin.getLogger().info("Finished migrating legacy flag table.");
+				return true;
+			}
+
+			migrated += batchSize;
+			if (System.currentTimeMillis() >= nextLog) {
+				nextLog = System.currentTimeMillis() + 30_000;
+				plugin.getLogger().info("Migrated " + migrated + " legacy flags.");
+			}
+		}
+	}
+
+	private int migrateLegacyBatch(@NotNull CachedConnection connection) throws SQLException {
+		List<LegacyFlag> batch = new ArrayList<>();
+		int count = 0;
+		long maxRowId = Long.MIN_VALUE;
+
+		PreparedStatement select = connection.prepare("SELECT rowid,chunk_id,time FROM chunkdata ORDER BY rowid LIMIT ?");
+		select.setInt(1, MIGRATION_BATCH_SIZE);
+		try (ResultSet rs = select.executeQuery()) {
+			while (rs.next()) {
+				++count;
+				maxRowId = rs.getLong(1);
+				LegacyFlag legacy = LegacyFlag.parse(rs.getString(2), rs.getLong(3));
+				// Invalid data is skipped, but still removed with the rest of the batch.
+				if (legacy != null) {
+					batch.add(legacy);
+				}
+			}
+		}
+
+		if (count == 0) {
+			return 0;
+		}
+
+		// Batches are short-lived, don't hold statements on the connection.
+		try (PreparedStatement upsert = connection.connection.prepareStatement(getUpsertSql());
+				PreparedStatement delete = connection.connection.prepareStatement("DELETE FROM chunkdata WHERE rowid<=?")) {
+			for (LegacyFlag legacy : batch) {
+				long chunkKey = ChunkKey.of(getWorldId(legacy.world()), legacy.chunkX(), legacy.chunkZ());
+				if (legacy.old()) {
+					addUpsert(upsert, chunkKey, Config.FLAG_DEFAULT, legacy.time());
+				} else {
+					if (presence != null) {
+						presence.add(chunkKey);
+					}
+					addUpsert(upsert, chunkKey, legacy.time(), Config.FLAG_DEFAULT);
+				}
+			}
+
+			upsert.executeBatch();
+			delete.setLong(1, maxRowId);
+			delete.executeUpdate();
+		}
+
+		connection.connection.commit();
+		return count;
+	}
+
+	/**
+	 * Gets whether the legacy text-keyed table is still being migrated.
+	 *
+	 * @return true if legacy flags are not yet migrated
+	 */
+	boolean isMigrating() {
+		return migrating;
+	}
+
+	@Override
+	public @NotNull @UnmodifiableView Map<String, Integer> getWorldIds() {
+		return Collections.unmodifiableMap(worldIds);
+	}
+
+	@Override
+	public void forEachChunk(@NotNull ChunkVisitor visitor) throws SQLException {
+		if (migrating) {
+			throw new SQLException("Legacy flag migration is in progress");
+		}
+
+		read(connection -> {
+			// Primary key order, walked by a single cursor without sorting.
+			try (Statement st = connection.connection.createStatement();
+					ResultSet rs = st.executeQuery("SELECT world_id,chunk_x,chunk_z,time,last_delete_time FROM flags "
+							+ "WHERE time<>" + Config.FLAG_DEFAULT + " OR last_delete_time<>" + Config.FLAG_DEFAULT
+							+ " ORDER BY world_id,chunk_x,chunk_z")) {
+				while (rs.next()) {
+					try {
+						visitor.visit(ChunkKey.of(rs.getInt(1), rs.getInt(2), rs.getInt(3)), rs.getLong(4), rs.getLong(5));
+					} catch (SQLException e) {
+						throw e;
+					} catch (Exception e) {
+						throw new SQLException("Exception visiting flag", e);
+					}
+				}
+			}
+			return null;
+		});
+	}
+
+	@Override
+	public void importFlags(long @NotNull [] chunkKeys, long @NotNull [] flags, long @NotNull [] lastDeleteTimes, int length)
+			throws SQLException {
+		write(connection -> {
+			PreparedStatement upsert = connection.prepare(getUpsertSql());
+			try {
+				for (int i = 0; i < length; ++i) {
+					if (flags[i] == Config.FLAG_DEFAULT && lastDeleteTimes[i] == Config.FLAG_DEFAULT) {
+						continue;
+					}
+					// Mark present before storing so lookups never miss a stored flag.
+					if (presence != null && flags[i] != Config.FLAG_DEFAULT) {
+						presence.add(chunkKeys[i]);
+					}
+					addUpsert(upsert, chunkKeys[i], flags[i], lastDeleteTimes[i]);
+				}
+				upsert.executeBatch();
+				connection.connection.commit();
+			} catch (SQLException e) {
+				// Cached statements outlive the batch, don't leave a partial batch behind.
+				upsert.clearBatch();
+				connection.connection.rollback();
+				throw e;
+			}
+			return null;
+		});
+	}
+
+	/**
+	 * Removes a batch of stale flags from a world in a single transaction. A row is stale if both its current flag and
+	 * its flag as of last deletion are no later than the cutoff.
+	 *
+	 * <p>Rows are visited in primary key order, starting after the specified chunk. The keys of removed rows are
+	 * written to the provided array; a batch removing fewer rows than the array length is the last in the world.
+	 *
+	 * @param worldId the world identifier
+	 * @param afterChunkX the chunk X coordinate of the last chunk visited
+	 * @param afterChunkZ the chunk Z coordinate of the last chunk visited
+	 * @param cutoff the latest timestamp considered stale
+	 * @param removed the array to store keys of removed rows in, the length of which is the batch size
+	 * @return the number of rows removed
+	 * @throws SQLException if the rows cannot be removed
+	 */
+	int removeStaleFlags(int worldId, int afterChunkX, int afterChunkZ, long cutoff, long @NotNull [] removed) throws SQLException {
+		return write(connection -> {
+			PreparedStatement select = connection.prepare("SELECT chunk_x,chunk_z FROM flags WHERE world_id=? AND chunk_x>=? "
+					+ "AND (chunk_x>? OR chunk_z>?) AND time<=? AND last_delete_time<=? ORDER BY chunk_x,chunk_z LIMIT ?");
+			select.setInt(1, worldId);
+			select.setInt(2, afterChunkX);
+			select.setInt(3, afterChunkX);
+			select.setInt(4, afterChunkZ);
+			select.setLong(5, cutoff);
+			select.setLong(6, cutoff);
+			select.setInt(7, removed.length);
+
+			int selected = 0;
+			try (ResultSet rs = select.executeQuery()) {
+				while (rs.next()) {
+					removed[selected++] = ChunkKey.of(worldId, rs.getInt(1), rs.getInt(2));
+				}
+			}
+
+			if (selected == 0) {
+				return 0;
+			}
+
+			PreparedStatement delete = connection.prepare("DELETE FROM flags WHERE world_id=? AND chunk_x=? AND chunk_z=?");
+			try {
+				for (int i = 0; i < selected; ++i) {
+					setKey(delete, 1, removed[i]);
+					delete.addBatch();
+				}
+				delete.executeBatch();
+				connection.connection.commit();
+			} catch (SQLException e) {
+				delete.clearBatch();
+				connection.connection.rollback();
+				throw e;
+			}
+
+			// Clear presence on the writer thread so that a later save of the same chunk sets it again.
+			if (presence != null) {
+				for (int i = 0; i < selected; ++i) {
+					presence.remove(removed[i]);
+				}
+			}
+			return selected;
+		});
+	}
+
+	/**
+	 * Rebuilds databases created without incremental vacuum support. The rebuild rewrites the entire database, holding
+	 * up flag saves until it completes, so it is only done once in the background after startup. Lookups continue to
+	 * be served by the readers. Failing to rebuild only prevents free space from being returned, so the database
+	 * remains usable.
+	 */
+	private void enableIncrementalVacuum() {
+		try {
+			write(connection -> {
+				// Vacuuming cannot be done within a transaction.
+				connection.connection.commit();
+				connection.connection.setAutoCommit(true);
+				try (Statement st = connection.connection.createStatement()) {
+					if (isIncrementalVacuum(st)) {
+						return null;
+					}
+					plugin.getLogger().info("Rebuilding flag database to enable incremental vacuum. This only happens once.");
+					// Prepared statements count as in progress and prevent vacuuming.
+					connection.closeStatements();
+					st.execute("PRAGMA auto_vacuum=INCREMENTAL");
+					st.execute("VACUUM");
+					plugin.getLogger().info("Rebuilt flag database.");
+				} finally {
+					connection.connection.setAutoCommit(false);
+				}
+				return null;
+			});
+		} catch (SQLException e) {
+			if (!closed) {
+				plugin.getLogger().log(Level.WARNING, "Unable to rebuild flag database, free space will not be reclaimed", e);
+			}
+		}
+	}
+
+	private static boolean isIncrementalVacuum(@NotNull Statement st) throws SQLException {
+		try (ResultSet rs = st.executeQuery("PRAGMA auto_vacuum")) {
+			// 2: INCREMENTAL
+			return rs.next() && rs.getInt(1) == 2;
+		}
+	}
+
+	/**
+	 * Returns free pages to the file system. Databases that have not been rebuilt for incremental vacuum are left as
+	 * they are.
+	 *
+	 * @return the number of bytes reclaimed
+	 * @throws SQLException if the database cannot be vacuumed
+	 */
+	long vacuum() throws SQLException {
+		return write(connection -> {
+			long before = getDatabaseSize(connection);
+
+			// Pending changes must be committed for vacuuming to run.
+			connection.connection.commit();
+			// Vacuuming cannot be done within a transaction.
+			connection.connection.setAutoCommit(true);
+			try (Statement st = connection.connection.createStatement()) {
+				if (isIncrementalVacuum(st)) {
+					// Each step frees a single page; unlike execute, executeUpdate steps until complete.
+					st.executeUpdate("PRAGMA incremental_vacuum");
+				}
+			} finally {
+				connection.connection.setAutoCommit(false);
+			}
+
+			return before - getDatabaseSize(connection);
+		});
+	}
+
+	/**
+	 * Writes a consistent copy of the database to a new file. The copy is read within a single read transaction, so
+	 * flag saves are not blocked while it is written. Versions of SQLite without {@code VACUUM INTO} fall back to the
+	 * driver's online backup.
+	 *
+	 * @param target the file to write, which must not already exist
+	 * @throws SQLException if the copy cannot be written
+	 */
+	void snapshot(@NotNull Path target) throws SQLException {
+		read(connection -> {
+			if (!vacuumInto) {
+				// The driver's online backup copies pages from the connection's read transaction, which is held open
+				// so that concurrent commits cannot restart or tear the copy.
+				connection.connection.commit();
+				try (Statement st = connection.connection.createStatement()) {
+					try (ResultSet rs = st.executeQuery("SELECT 1 FROM worlds LIMIT 1")) {
+						rs.next();
+					}
+					st.executeUpdate("backup to \"" + target + '"');
+				} finally {
+					connection.connection.commit();
+				}
+				return null;
+			}
+
+			// Copying cannot be done within a transaction.
+			connection.connection.commit();
+			connection.connection.setAutoCommit(true);
+			// Prepared statements count as in progress and prevent copying.
+			connection.closeStatements();
+			try (PreparedStatement st = connection.connection.prepareStatement("VACUUM INTO ?")) {
+				st.setString(1, target.toString());
+				st.execute();
+			} finally {
+				connection.connection.setAutoCommit(false);
+			}
+			return null;
+		});
+	}
+
+	private static long getDatabaseSize(@NotNull CachedConnection connection) throws SQLException {
+		try (Statement st = connection.connection.createStatement()) {
+			long pages;
+			try (ResultSet rs = st.executeQuery("PRAGMA page_count")) {
+				pages = rs.next() ? rs.getLong(1) : 0;
+			}
+			try (ResultSet rs = st.executeQuery("PRAGMA page_size")) {
+				return pages * (rs.next() ? rs.getLong(1) : 0);
+			}
+		}
+	}
+
+	/**
+	 * Visits every stored flag, grouped by region. For use in data conversion.
+	 *
+	 * @param previous whether to visit flags as of last deletion rather than current flags
+	 * @param visitor the visitor
+	 * @throws Exception if the flags cannot be read or the visitor throws an exception
+	 */
+	void forEachFlag(boolean previous, @NotNull FlagVisitor visitor) throws Exception {
+		read(connection -> {
+			String column = previous ? "f.last_delete_time" : "f.time";
+			try (Statement st = connection.connection.createStatement();
+					ResultSet rs = st.executeQuery("SELECT w.name,f.chunk_x,f.chunk_z," + column + " FROM flags f "
+							+ "JOIN worlds w ON w.world_id=f.world_id WHERE " + column + "<>" + Config.FLAG_DEFAULT
+							+ " ORDER BY f.world_id,f.chunk_x>>5,f.chunk_z>>5")) {
+				while (rs.next()) {
+					try {
+						visitor.visit(rs.getString(1), rs.getInt(2), rs.getInt(3), rs.getLong(4));
+					} catch (SQLException e) {
+						throw e;
+					} catch (Exception e) {
+						throw new SQLException("Exception visiting flag", e);
+					}
+				}
+			}
+			return null;
+		});
+	}
+
+	/**
+	 * A visitor for stored flags.
+	 */
+	@FunctionalInterface
+	interface FlagVisitor {
+
+		void visit(@NotNull String worldName, int chunkX, int chunkZ, long flag) throws Exception;
+
+	}
+
+	/**
+	 * A task using a database connection.
+	 *
+	 * @param <T> the type of result
+	 */
+	@FunctionalInterface
+	private interface SQLTask<T> {
+
+		T run(@NotNull CachedConnection connection) throws SQLException;
+
+	}
+
+	/**
+	 * A connection retaining its prepared statements for reuse. Not thread-safe; a connection is only used by one
+	 * thread at a time.
+	 */
+	private static class CachedConnection {
+
+		private final @NotNull Connection connection;
+		private final @NotNull Map<String, PreparedStatement> statements = new HashMap<>();
+
+		private CachedConnection(@NotNull Connection connection) {
+			this.connection = connection;
+		}
+
+		private @NotNull PreparedStatement prepare(@NotNull String sql) throws SQLException {
+			PreparedStatement statement = statements.get(sql);
+			if (statement == null) {
+				statement = connection.prepareStatement(sql);
+				statements.put(sql, statement);
+			}
+			return statement;
+		}
+
+		private void closeStatements() throws SQLException {
+			for (PreparedStatement statement : statements.values()) {
+				statement.close();
+			}
+			statements.clear();
+		}
+
+		private void close() throws SQLException {
+			closeStatements();
+			connection.close();
+		}
+
+	}
+
+	/**
+	 * A parsed legacy chunk identifier of the form {@code world_x_z}, optionally suffixed with {@code _old}.
+	 */
+	private record LegacyFlag(@NotNull String world, int chunkX, int chunkZ, boolean old, long time) {
+
+		private static @Nullable LegacyFlag parse(@Nullable String chunkId, long time) {
+			if (chunkId == null) {
+				return null;
+			}
+
+			boolean old = chunkId.endsWith("_old");
+			if (old) {
+				chunkId = chunkId.substring(0, chunkId.length() - 4);
+			}
+
+			// World names may contain underscores, so parse from the end.
+			int zIndex = chunkId.lastIndexOf('_');
+			int xIndex = zIndex > 0 ? chunkId.lastIndexOf('_', zIndex - 1) : -1;
+			if (xIndex < 1) {
+				return null;
+			}
+
+			try {
+				int chunkX = Integer.parseInt(chunkId, xIndex + 1, zIndex, 10);
+				int chunkZ = Integer.parseInt(chunkId, zIndex + 1, chunkId.length(), 10);
+				return new LegacyFlag(chunkId.substring(0, xIndex), chunkX, chunkZ, old, time);
+			} catch (NumberFormatException e) {
+				return null;
+			}
+		}
+
+	}
+
 }
@@ -0,0 +1,1107 @@
+/*
+ * Copyright (c) 2015-2021 by Jikoo.
+ *
+ * Regionerator is licensed under a Creative Commons
+ * Attribution-ShareAlike 4.0 International License.
+ *
+ * You should have received a copy of the license along with this
+ * work. If not, see <http://creativecommons.org/licenses/by-sa/4.0/>.
+ */
+
+package com.github.jikoo.regionerator.util;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongBinaryOperator;
+import java.util.function.LongUnaryOperator;
+
+/**
+ * A cache of chunk flags keyed by packed chunk keys, designed to load values automatically and minimize write
+ * operations by saving values in batches.
+ *
+ * <p>Rather than storing an object per entry, entries are stored in striped open-addressed primitive arrays. Each
+ * entry costs a key, a flag, an access tick and a dirty bit. Entries that have not been accessed within the
+ * retention period, or that are the least recently used when the cache is over capacity, are removed once any
+ * pending changes have been written.
+ *
+ * <p>Access times are recorded as ticks of a timing wheel with slots as wide as the expiration frequency, so touching
+ * an entry is a single array write. Each segment tracks a lower bound of its oldest tick and its number of modified
+ * entries, allowing expiration to skip segments with nothing due. Over-capacity segments are trimmed using a
+ * histogram of entries per wheel slot rather than by sorting access times.
+ *
+ * <p>Expiration and writing are performed by a single long-lived flusher thread. Modified values are moved into a
+ * bounded write queue and written in batches once a full batch is available or the oldest queued value has waited
+ * for the maximum latency. When the queue is full, modified values remain cached until the writer catches up.
+ *
+ * <p>Concurrent loads of the same key are coalesced so that each missing value is only read once at a time.
+ * Asynchronous loads are gathered for a short delay or until a batch is full and read in a single operation.
+ *
+ * @see ChunkKey
+ */
+public class ChunkFlagCache implements FlagCache {
+
+	// Packed chunk keys are never negative.
+	private static final long EMPTY = Long.MIN_VALUE;
+	private static final int SEGMENT_BITS = 6;
+	private static final int SEGMENTS = 1 << SEGMENT_BITS;
+	private static final int INITIAL_CAPACITY = 64;
+
+	private final Segment[] segments = new Segment[SEGMENTS];
+	private final AtomicInteger cached = new AtomicInteger();
+	private final AtomicInteger queued = new AtomicInteger();
+	private final AtomicBoolean saveRequested = new AtomicBoolean();
+	private final Object signal = new Object();
+	private final long epoch = System.currentTimeMillis();
+	private final Map<Long, CompletableFuture<Long>> loading = new ConcurrentHashMap<>();
+	private final Object loadLock = new Object();
+	private final @NotNull BatchLoader load;
+	private final @NotNull Executor loader;
+	private final @Nullable ScheduledExecutorService loadDelay;
+	private final long loadBatchDelay;
+	private final int maxLoadBatchSize;
+	private @Nullable LoadBatch loadBatch;
+	private final @NotNull BatchWriter writer;
+	private final long tickMillis;
+	private final int retentionTicks;
+	private final int segmentMax;
+	private final long frequency;
+	private final int maxBatchSize;
+	private final long maxLatency;
+	// Only accessed by the flusher thread until it has stopped.
+	private final @NotNull Pending queue;
+	private final int @NotNull [] histogram;
+	private final @NotNull Thread flusher;
+	private volatile boolean running = true;
+
+	/**
+	 * Construct a new {@link ChunkFlagCache}. For builder use.
+	 *
+	 * @param load the loading function
+	 * @param loader the executor for asynchronous loads
+	 * @param maxLoadBatchSize the maximum number of asynchronous loads to read simultaneously
+	 * @param loadBatchDelay the delay in milliseconds to gather asynchronous loads
+	 * @param writer the writer for batches of changed values
+	 * @param retention the retention duration in milliseconds
+	 * @param cacheMax the maximum cache size
+	 * @param frequency the minimum duration between expiration checks in milliseconds
+	 * @param maxBatchSize the maximum batch size to write simultaneously
+	 * @param maxLatency the maximum duration in milliseconds a partial batch waits before being written
+	 * @param queueMax the maximum number of values awaiting write
+	 */
+	private ChunkFlagCache(
+			@NotNull BatchLoader load,
+			@NotNull Executor loader,
+			int maxLoadBatchSize,
+			long loadBatchDelay,
+			@NotNull BatchWriter writer,
+			long retention,
+			int cacheMax,
+			long frequency,
+			int maxBatchSize,
+			long maxLatency,
+			int queueMax) {
+		if (maxBatchSize < 1 || maxLoadBatchSize < 1) {
+			throw new IllegalArgumentException("Max batch size cannot be smaller than 1");
+		}
+		if (queueMax < maxBatchSize) {
+			throw new IllegalArgumentException("Queue size cannot be smaller than max batch size");
+		}
+		this.load = load;
+		this.loader = loader;
+		// Delayed batches are only handed to the loader by a dedicated thread, so loads never run on a shared timer.
+		this.loadDelay = loadBatchDelay > 0 ? Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "BatchLoadDelay");
+			thread.setDaemon(true);
+			return thread;
+		}) : null;
+		this.loadBatchDelay = loadBatchDelay;
+		this.maxLoadBatchSize = maxLoadBatchSize;
+		this.writer = writer;
+		// Wheel slots match expiration frequency, but never so narrow that ticks overflow.
+		this.tickMillis = Math.max(1_000L, frequency);
+		this.retentionTicks = (int) Math.min(Integer.MAX_VALUE / 2, Math.max(1, (retention + tickMillis - 1) / tickMillis));
+		this.segmentMax = Math.max(1, cacheMax / SEGMENTS);
+		this.frequency = frequency;
+		this.maxBatchSize = maxBatchSize;
+		this.maxLatency = maxLatency;
+		this.queue = new Pending(queueMax);
+		this.histogram = new int[retentionTicks];
+		for (int i = 0; i < SEGMENTS; ++i) {
+			segments[i] = new Segment();
+		}
+
+		this.flusher = new Thread(this::runFlusher, "BatchExpiration");
+		this.flusher.setDaemon(true);
+		this.flusher.start();
+	}
+
+	@Override
+	public long get(long chunkKey) {
+		long value = getIfPresent(chunkKey);
+		if (value != ABSENT) {
+			return value;
+		}
+
+		CompletableFuture<Long> future = new CompletableFuture<>();
+		CompletableFuture<Long> existing = loading.putIfAbsent(chunkKey, future);
+		if (existing != null) {
+			return existing.join();
+		}
+		return load(chunkKey, future);
+	}
+
+	@Override
+	public @NotNull CompletableFuture<Long> getAsync(long chunkKey) {
+		long value = getIfPresent(chunkKey);
+		if (value != ABSENT) {
+			return CompletableFuture.completedFuture(value);
+		}
+
+		CompletableFuture<Long> future = new CompletableFuture<>();
+		CompletableFuture<Long> existing = loading.putIfAbsent(chunkKey, future);
+		if (existing != null) {
+			return existing;
+		}
+
+		LoadBatch opened = null;
+		LoadBatch full = null;
+		synchronized (loadLock) {
+			if (loadBatch == null) {
+				loadBatch = opened = new LoadBatch(maxLoadBatchSize);
+			}
+			loadBatch.add(chunkKey, future);
+			if (loadBatch.size == maxLoadBatchSize) {
+				full = loadBatch;
+				loadBatch = null;
+			}
+		}
+
+		if (full != null) {
+			submit(loader, full);
+		} else if (opened != null) {
+			schedule(opened);
+		}
+		return future;
+	}
+
+	private void schedule(@NotNull LoadBatch batch) {
+		if (loadDelay == null) {
+			submit(loader, batch);
+			return;
+		}
+		try {
+			loadDelay.schedule(() -> submit(loader, batch), loadBatchDelay, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			// Cache is shut down, don't wait for more loads.
+			submit(loader, batch);
+		}
+	}
+
+	private void submit(@NotNull Executor executor, @NotNull LoadBatch batch) {
+		try {
+			executor.execute(() -> load(batch));
+		} catch (RejectedExecutionException e) {
+			// Loader is shut down, load on the calling thread.
+			load(batch);
+		}
+	}
+
+	/**
+	 * Loads a batch of values and completes their in-flight futures.
+	 *
+	 * @param batch the batch
+	 */
+	private void load(@NotNull LoadBatch batch) {
+		synchronized (loadLock) {
+			// A batch filled before its delay elapsed is also submitted when full. Only the first task loads it.
+			if (batch.claimed) {
+				return;
+			}
+			batch.claimed = true;
+			// Close the batch if it was not filled before its delay elapsed.
+			if (loadBatch == batch) {
+				loadBatch = null;
+			}
+		}
+
+		// Complete values inserted between the cache miss and registering the load.
+		int missing = 0;
+		for (int i = 0; i < batch.size; ++i) {
+			long value = getIfPresent(batch.keys[i]);
+			if (value == ABSENT) {
+				batch.keys[missing] = batch.keys[i];
+				batch.futures[missing] = batch.futures[i];
+				++missing;
+			} else {
+				batch.futures[i].complete(value);
+				loading.remove(batch.keys[i], batch.futures[i]);
+			}
+		}
+
+		if (missing == 0) {
+			return;
+		}
+
+		try {
+			long[] values = load.load(batch.keys, missing);
+			for (int i = 0; i < missing; ++i) {
+				batch.futures[i].complete(putIfAbsent(batch.keys[i], values[i]));
+			}
+		} catch (RuntimeException | Error e) {
+			for (int i = 0; i < missing; ++i) {
+				batch.futures[i].completeExceptionally(e);
+			}
+			throw e;
+		} finally {
+			for (int i = 0; i < missing; ++i) {
+				loading.remove(batch.keys[i], batch.futures[i]);
+			}
+		}
+	}
+
+	/**
+	 * Loads a value and completes the in-flight future registered for its key.
+	 *
+	 * @param chunkKey the key
+	 * @param future the future registered for the key
+	 * @return the value
+	 */
+	private long load(long chunkKey, @NotNull CompletableFuture<Long> future) {
+		try {
+			// Value may have been inserted between the cache miss and registering the load.
+			long value = getIfPresent(chunkKey);
+			if (value == ABSENT) {
+				value = putIfAbsent(chunkKey, load.load(new long[] { chunkKey }, 1)[0]);
+			}
+			future.complete(value);
+			return value;
+		} catch (RuntimeException | Error e) {
+			future.completeExceptionally(e);
+			throw e;
+		} finally {
+			loading.remove(chunkKey, future);
+		}
+	}
+
+	@Override
+	public long getIfPresent(long chunkKey) {
+		int hash = hash(chunkKey);
+		Segment segment = segmentFor(hash);
+		long value;
+		synchronized (segment) {
+			int slot = segment.find(chunkKey, hash);
+			if (slot < 0) {
+				value = ABSENT;
+			} else {
+				segment.accessed[slot] = tick();
+				value = segment.values[slot];
+			}
+		}
+		return value;
+	}
+
+	@Override
+	public long putIfAbsent(long chunkKey, long value) {
+		int hash = hash(chunkKey);
+		Segment segment = segmentFor(hash);
+		synchronized (segment) {
+			int slot = segment.find(chunkKey, hash);
+			if (slot >= 0) {
+				segment.accessed[slot] = tick();
+				return segment.values[slot];
+			}
+			segment.insert(chunkKey, hash, value, tick(), false);
+		}
+		cached.incrementAndGet();
+		return value;
+	}
+
+	@Override
+	public long merge(long chunkKey, long value, @NotNull LongBinaryOperator remapping) {
+		int hash = hash(chunkKey);
+		Segment segment = segmentFor(hash);
+		long result;
+		synchronized (segment) {
+			int slot = segment.find(chunkKey, hash);
+			if (slot < 0) {
+				segment.insert(chunkKey, hash, value, tick(), true);
+				result = value;
+				cached.incrementAndGet();
+			} else {
+				result = segment.set(slot, remapping.applyAsLong(segment.values[slot], value), tick());
+			}
+		}
+		return result;
+	}
+
+	@Override
+	public long update(long chunkKey, @NotNull LongUnaryOperator function) {
+		int hash = hash(chunkKey);
+		Segment segment = segmentFor(hash);
+		long loaded = ABSENT;
+		long result = ABSENT;
+		while (result == ABSENT) {
+			synchronized (segment) {
+				int slot = segment.find(chunkKey, hash);
+				if (slot < 0 && loaded != ABSENT) {
+					// Loaded value was evicted before it could be updated.
+					slot = segment.insert(chunkKey, hash, loaded, tick(), false);
+					cached.incrementAndGet();
+				}
+				if (slot >= 0) {
+					result = segment.set(slot, function.applyAsLong(segment.values[slot]), tick());
+				}
+			}
+			if (result == ABSENT) {
+				loaded = get(chunkKey);
+			}
+		}
+		return result;
+	}
+
+	@Override
+	public boolean replace(long chunkKey, long expected, long value) {
+		int hash = hash(chunkKey);
+		Segment segment = segmentFor(hash);
+		synchronized (segment) {
+			int slot = segment.find(chunkKey, hash);
+			if (slot < 0 || segment.values[slot] != expected) {
+				return false;
+			}
+			segment.set(slot, value, tick());
+			return true;
+		}
+	}
+
+	@Override
+	public void lazyExpireAll() {
+		saveRequested.set(true);
+		synchronized (signal) {
+			signal.notifyAll();
+		}
+	}
+
+	@Override
+	public void expireAll() {
+		running = false;
+		if (loadDelay != null) {
+			// Batches already waiting are still handed to the loader.
+			loadDelay.shutdown();
+		}
+		synchronized (signal) {
+			signal.notifyAll();
+		}
+		try {
+			flusher.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		// Flusher has stopped, finish queued writes and save everything else without a queue bound.
+		write(queue, true);
+		Pending remaining = new Pending(Integer.MAX_VALUE);
+		expire(remaining, true, true, histogram);
+		write(remaining, true);
+	}
+
+	@Override
+	public boolean flush() {
+		Pending pending = new Pending(Integer.MAX_VALUE);
+		// Flushing may run alongside a sweep, so it cannot share the flusher's histogram.
+		expire(pending, true, false, new int[retentionTicks]);
+		return write(pending, true);
+	}
+
+	@Override
+	public int getCached() {
+		return cached.get();
+	}
+
+	@Override
+	public int getQueued() {
+		return queued.get();
+	}
+
+	@Override
+	public int getQueueCapacity() {
+		return queue.capacity;
+	}
+
+	private void runFlusher() {
+		long nextSweep = System.currentTimeMillis();
+		boolean sweepIncomplete = false;
+		long queuedSince = 0;
+
+		while (running) {
+			long now;
+			synchronized (signal) {
+				while (true) {
+					now = System.currentTimeMillis();
+					if (!running || saveRequested.get() || sweepIncomplete || now >= nextSweep) {
+						break;
+					}
+					long nextWrite = getNextWrite(queuedSince);
+					if (now >= nextWrite) {
+						break;
+					}
+					try {
+						signal.wait(Math.min(nextSweep, nextWrite) - now);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						return;
+					}
+				}
+			}
+
+			if (!running) {
+				return;
+			}
+
+			if (saveRequested.get() || sweepIncomplete || now >= nextSweep) {
+				int depth = queue.size - queue.start;
+				boolean saveAll = saveRequested.getAndSet(false);
+				sweepIncomplete = !expire(queue, saveAll, false, histogram);
+				if (sweepIncomplete && saveAll) {
+					saveRequested.set(true);
+				}
+				nextSweep = frequency > Long.MAX_VALUE - now ? Long.MAX_VALUE : now + frequency;
+				if (depth == 0 && queue.size > queue.start) {
+					queuedSince = now;
+				}
+			}
+
+			if (now >= getNextWrite(queuedSince) && !write(queue, now >= queuedSince + maxLatency)) {
+				// Failed values were released from the queue, retry on the next scheduled sweep.
+				sweepIncomplete = false;
+			}
+		}
+	}
+
+	/**
+	 * Gets the time at which the queue should next be written.
+	 *
+	 * @param queuedSince the time the oldest queued value was queued
+	 * @return the time of the next write or {@link Long#MAX_VALUE} if the queue is empty
+	 */
+	private long getNextWrite(long queuedSince) {
+		int depth = queue.size - queue.start;
+		if (depth == 0) {
+			return Long.MAX_VALUE;
+		}
+		return depth >= maxBatchSize ? 0 : queuedSince + maxLatency;
+	}
+
+	/**
+	 * Collect modified values for writing and remove expired values.
+	 *
+	 * @param target the buffer receiving values to write
+	 * @param saveAll whether to write modified values that are not yet expired
+	 * @param removeAll whether to remove all values rather than only expired values
+	 * @param histogram a reusable array with a wheel slot for every unexpired tick
+	 * @return false if the buffer filled before all due values were collected
+	 */
+	private boolean expire(@NotNull Pending target, boolean saveAll, boolean removeAll, int @NotNull [] histogram) {
+		int now = tick();
+		int cutoff = now - retentionTicks;
+		boolean complete = true;
+
+		for (Segment segment : segments) {
+			int previous = target.size;
+			synchronized (segment) {
+				if (!removeAll && segment.oldestTick > cutoff && segment.size <= segmentMax
+						&& (!saveAll || segment.dirtyCount == 0)) {
+					// Nothing due in this segment.
+					continue;
+				}
+
+				int evictAt = removeAll ? Integer.MAX_VALUE : segment.getEvictionThreshold(segmentMax, cutoff, now, histogram);
+				int oldest = Integer.MAX_VALUE;
+				for (int slot = 0; slot < segment.keys.length; ) {
+					long key = segment.keys[slot];
+					if (key == EMPTY) {
+						++slot;
+						continue;
+					}
+
+					int accessed = segment.accessed[slot];
+					boolean expired = accessed < evictAt || accessed <= cutoff
+							|| accessed == evictAt && segment.evictionBudget-- > 0;
+					if (segment.isDirty(slot)) {
+						// Dirty values are only removed once written.
+						if ((expired || saveAll) && !segment.isWriting(slot)) {
+							if (target.isFull()) {
+								// Leave for a later pass once the writer catches up.
+								complete = false;
+							} else {
+								target.add(key, segment.values[slot], expired ? accessed : Integer.MIN_VALUE);
+								segment.setWriting(slot, true);
+							}
+						}
+						oldest = Math.min(oldest, accessed);
+						++slot;
+					} else if (expired) {
+						// Removal shifts later entries back into this slot.
+						segment.remove(slot);
+						cached.decrementAndGet();
+					} else {
+						oldest = Math.min(oldest, accessed);
+						++slot;
+					}
+				}
+				segment.oldestTick = oldest;
+			}
+
+			queued.addAndGet(target.size - previous);
+		}
+
+		return complete;
+	}
+
+	/**
+	 * Write pending values in batches.
+	 *
+	 * @param pending the pending values
+	 * @param partial whether to write a final partial batch
+	 * @return false if a batch failed to write
+	 */
+	private boolean write(@NotNull Pending pending, boolean partial) {
+		boolean success = true;
+		while (pending.size - pending.start >= maxBatchSize || partial && pending.size > pending.start) {
+			int length = Math.min(maxBatchSize, pending.size - pending.start);
+			long[] keys = Arrays.copyOfRange(pending.keys, pending.start, pending.start + length);
+			long[] values = Arrays.copyOfRange(pending.values, pending.start, pending.start + length);
+
+			success = writer.write(keys, values, length);
+			for (int i = 0; i < length; ++i) {
+				if (success) {
+					washOrRemove(keys[i], values[i], pending.expireAt[pending.start + i]);
+				} else {
+					release(keys[i]);
+				}
+			}
+
+			pending.start += length;
+			queued.addAndGet(-length);
+
+			if (!success) {
+				break;
+			}
+		}
+
+		if (!success) {
+			// Failed values remain dirty, release everything queued so that it may be collected again.
+			for (int i = pending.start; i < pending.size; ++i) {
+				release(pending.keys[i]);
+			}
+			queued.addAndGet(pending.start - pending.size);
+			pending.start = pending.size;
+		}
+
+		pending.compact();
+		return success;
+	}
+
+	private void washOrRemove(long chunkKey, long written, int expireAt) {
+		int hash = hash(chunkKey);
+		Segment segment = segmentFor(hash);
+		synchronized (segment) {
+			int slot = segment.find(chunkKey, hash);
+			// If value changed while writing, it is still dirty.
+			if (slot < 0) {
+				return;
+			}
+			segment.setWriting(slot, false);
+			if (segment.values[slot] != written) {
+				return;
+			}
+			if (segment.accessed[slot] <= expireAt) {
+				segment.remove(slot);
+				cached.decrementAndGet();
+			} else {
+				segment.setDirty(slot, false);
+			}
+		}
+	}
+
+	private void release(long chunkKey) {
+		int hash = hash(chunkKey);
+		Segment segment = segmentFor(hash);
+		synchronized (segment) {
+			int slot = segment.find(chunkKey, hash);
+			if (slot >= 0) {
+				segment.setWriting(slot, false);
+			}
+		}
+	}
+
+	private int tick() {
+		return (int) ((System.currentTimeMillis() - epoch) / tickMillis);
+	}
+
+	private @NotNull Segment segmentFor(int hash) {
+		return segments[hash >>> (Integer.SIZE - SEGMENT_BITS)];
+	}
+
+	private static int hash(long key) {
+		key *= 0x9E3779B97F4A7C15L;
+		return (int) (key ^ key >>> 32);
+	}
+
+	/**
+	 * A loader reading batches of values.
+	 */
+	@FunctionalInterface
+	public interface BatchLoader {
+
+		/**
+		 * Reads a batch of values.
+		 *
+		 * @param chunkKeys the keys
+		 * @param length the number of keys in the batch
+		 * @return the values in the same order as the keys
+		 */
+		long @NotNull [] load(long @NotNull [] chunkKeys, int length);
+
+	}
+
+	/**
+	 * A linear probing hash table segment. All access must be synchronized on the segment.
+	 */
+	private static final class Segment {
+
+		private long[] keys;
+		private long[] values;
+		private int[] accessed;
+		private long[] dirty;
+		// Entries currently queued for writing. Only set for dirty entries.
+		private long[] writing;
+		private int size;
+		private int dirtyCount;
+		// Lower bound of the oldest access tick. Touching entries only ever raises ticks.
+		private int oldestTick = Integer.MAX_VALUE;
+		// Number of entries to remove from the wheel slot at the eviction threshold.
+		private int evictionBudget;
+
+		private Segment() {
+			allocate(INITIAL_CAPACITY);
+		}
+
+		private void allocate(int capacity) {
+			keys = new long[capacity];
+			Arrays.fill(keys, EMPTY);
+			values = new long[capacity];
+			accessed = new int[capacity];
+			dirty = new long[(capacity + Long.SIZE - 1) / Long.SIZE];
+			writing = new long[dirty.length];
+		}
+
+		private int find(long key, int hash) {
+			int mask = keys.length - 1;
+			for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+				long existing = keys[slot];
+				if (existing == key) {
+					return slot;
+				}
+				if (existing == EMPTY) {
+					return -1;
+				}
+			}
+		}
+
+		private int insert(long key, int hash, long value, int now, boolean dirty) {
+			// Keep load factor at or below 0.75.
+			if ((size + 1) * 4L > keys.length * 3L) {
+				resize();
+			}
+
+			int mask = keys.length - 1;
+			int slot = hash & mask;
+			while (keys[slot] != EMPTY) {
+				slot = (slot + 1) & mask;
+			}
+
+			keys[slot] = key;
+			values[slot] = value;
+			accessed[slot] = now;
+			setDirty(slot, dirty);
+			oldestTick = Math.min(oldestTick, now);
+			++size;
+			return slot;
+		}
+
+		private long set(int slot, long value, int now) {
+			accessed[slot] = now;
+			if (values[slot] != value) {
+				values[slot] = value;
+				setDirty(slot, true);
+			}
+			return value;
+		}
+
+		private void resize() {
+			long[] oldKeys = keys;
+			long[] oldValues = values;
+			int[] oldAccessed = accessed;
+			long[] oldDirty = dirty;
+			long[] oldWriting = writing;
+
+			allocate(oldKeys.length * 2);
+			size = 0;
+			dirtyCount = 0;
+
+			for (int i = 0; i < oldKeys.length; ++i) {
+				if (oldKeys[i] != EMPTY) {
+					boolean wasDirty = (oldDirty[i >>> 6] & 1L << i) != 0;
+					int slot = insert(oldKeys[i], hash(oldKeys[i]), oldValues[i], oldAccessed[i], wasDirty);
+					setWriting(slot, (oldWriting[i >>> 6] & 1L << i) != 0);
+				}
+			}
+		}
+
+		private void remove(int slot) {
+			setDirty(slot, false);
+			setWriting(slot, false);
+			int mask = keys.length - 1;
+			int gap = slot;
+
+			// Shift following entries back so that probe sequences remain unbroken.
+			for (int next = (gap + 1) & mask; keys[next] != EMPTY; next = (next + 1) & mask) {
+				int ideal = hash(keys[next]) & mask;
+				if (((next - ideal) & mask) >= ((next - gap) & mask)) {
+					keys[gap] = keys[next];
+					values[gap] = values[next];
+					accessed[gap] = accessed[next];
+					// Move dirty bit without altering the dirty count.
+					if (isDirty(next)) {
+						dirty[gap >>> 6] |= 1L << gap;
+					} else {
+						dirty[gap >>> 6] &= ~(1L << gap);
+					}
+					setWriting(gap, isWriting(next));
+					gap = next;
+				}
+			}
+
+			keys[gap] = EMPTY;
+			dirty[gap >>> 6] &= ~(1L << gap);
+			setWriting(gap, false);
+			--size;
+		}
+
+		private boolean isDirty(int slot) {
+			return (dirty[slot >>> 6] & 1L << slot) != 0;
+		}
+
+		private void setDirty(int slot, boolean value) {
+			if (value == isDirty(slot)) {
+				return;
+			}
+			if (value) {
+				dirty[slot >>> 6] |= 1L << slot;
+				++dirtyCount;
+			} else {
+				dirty[slot >>> 6] &= ~(1L << slot);
+				--dirtyCount;
+			}
+		}
+
+		private boolean isWriting(int slot) {
+			return (writing[slot >>> 6] & 1L << slot) != 0;
+		}
+
+		private void setWriting(int slot, boolean value) {
+			if (value) {
+				writing[slot >>> 6] |= 1L << slot;
+			} else {
+				writing[slot >>> 6] &= ~(1L << slot);
+			}
+		}
+
+		/**
+		 * Gets the access tick at or before which entries must be removed to expire entries and bring the segment
+		 * within capacity. Only {@link #evictionBudget} entries accessed at the threshold tick should be removed.
+		 *
+		 * @param max the maximum segment size
+		 * @param cutoff the tick at or before which entries are expired
+		 * @param now the current tick
+		 * @param histogram a reusable array with a wheel slot for every unexpired tick
+		 * @return the eviction threshold
+		 */
+		private int getEvictionThreshold(int max, int cutoff, int now, int @NotNull [] histogram) {
+			evictionBudget = Integer.MAX_VALUE;
+			if (size <= max) {
+				return cutoff;
+			}
+
+			Arrays.fill(histogram, 0);
+			int excess = size - max;
+			for (int slot = 0; slot < keys.length; ++slot) {
+				if (keys[slot] != EMPTY) {
+					int tick = accessed[slot];
+					if (tick <= cutoff) {
+						--excess;
+					} else {
+						++histogram[Math.min(tick, now) - cutoff - 1];
+					}
+				}
+			}
+
+			// Walk wheel slots from oldest until enough entries are covered.
+			for (int i = 0; excess > 0 && i < histogram.length; ++i) {
+				if (excess <= histogram[i]) {
+					evictionBudget = excess;
+					return cutoff + 1 + i;
+				}
+				excess -= histogram[i];
+			}
+			return cutoff;
+		}
+
+	}
+
+	/**
+	 * A growable buffer of values awaiting write, bounded to a maximum number of unwritten values.
+	 */
+	private static final class Pending {
+
+		private final int capacity;
+		private long[] keys = new long[INITIAL_CAPACITY];
+		private long[] values = new long[INITIAL_CAPACITY];
+		private int[] expireAt = new int[INITIAL_CAPACITY];
+		private int start;
+		private int size;
+
+		private Pending(int capacity) {
+			this.capacity = capacity;
+		}
+
+		private boolean isFull() {
+			return size - start >= capacity;
+		}
+
+		private void add(long key, long value, int expireAt) {
+			if (size == keys.length) {
+				keys = Arrays.copyOf(keys, size * 2);
+				values = Arrays.copyOf(values, size * 2);
+				this.expireAt = Arrays.copyOf(this.expireAt, size * 2);
+			}
+			keys[size] = key;
+			values[size] = value;
+			this.expireAt[size] = expireAt;
+			++size;
+		}
+
+		private void compact() {
+			if (start == 0) {
+				return;
+			}
+			int remaining = size - start;
+			System.arraycopy(keys, start, keys, 0, remaining);
+			System.arraycopy(values, start, values, 0, remaining);
+			System.arraycopy(expireAt, start, expireAt, 0, remaining);
+			start = 0;
+			size = remaining;
+		}
+
+	}
+
+	/**
+	 * Keys gathered for a single read and the futures awaiting them.
+	 */
+	private static final class LoadBatch {
+
+		private final long[] keys;
+		private final CompletableFuture<Long>[] futures;
+		private int size;
+		// Guarded by the load lock.
+		private boolean claimed;
+
+		@SuppressWarnings("unchecked")
+		private LoadBatch(int capacity) {
+			keys = new long[capacity];
+			futures = new CompletableFuture[capacity];
+		}
+
+		private void add(long key, @NotNull CompletableFuture<Long> future) {
+			keys[size] = key;
+			futures[size] = future;
+			++size;
+		}
+
+	}
+
+	/**
+	 * A builder for a {@link ChunkFlagCache}.
+	 */
+	public static class Builder {
+		private long retention = 600_000L;
+		private int cacheMax = 640_000;
+		private long frequency = 10_000L;
+		private int batchMax = 1_024;
+		private long maxLatency = 500L;
+		private int queueMax = 16_384;
+		private @NotNull Executor loader = Runnable::run;
+		private int loadBatchMax = 256;
+		private long loadBatchDelay = 5L;
+
+		/**
+		 * Construct a {@link ChunkFlagCache} loading values individually.
+		 *
+		 * @param load the loading function
+		 * @param writer the writer of modified values
+		 * @return the constructed cache
+		 */
+		public @NotNull ChunkFlagCache build(@NotNull LongUnaryOperator load, @NotNull BatchWriter writer) {
+			return build((chunkKeys, length) -> {
+				long[] values = new long[length];
+				for (int i = 0; i < length; ++i) {
+					values[i] = load.applyAsLong(chunkKeys[i]);
+				}
+				return values;
+			}, writer);
+		}
+
+		/**
+		 * Construct a {@link ChunkFlagCache}.
+		 *
+		 * @param load the batch loading function
+		 * @param writer the writer of modified values
+		 * @return the constructed cache
+		 */
+		public @NotNull ChunkFlagCache build(@NotNull BatchLoader load, @NotNull BatchWriter writer) {
+			return new ChunkFlagCache(load, loader, loadBatchMax, loadBatchDelay, writer, retention, cacheMax,
+					frequency, batchMax, maxLatency, queueMax);
+		}
+
+		/**
+		 * Set the retention of the cache in milliseconds.
+		 *
+		 * <p>Defaults to 600,000 (10 minutes).
+		 *
+		 * @param retention the retention duration
+		 * @return the builder
+		 */
+		public @NotNull Builder setRetention(long retention) {
+			this.retention = retention;
+			return this;
+		}
+
+		/**
+		 * Set the maximum size of the cache.
+		 *
+		 * <p>Defaults to 640,000 - roughly 525 (25x25) regions.
+		 *
+		 * @param cacheMax the maximum cache size
+		 * @return the builder
+		 */
+		public @NotNull Builder setCacheMax(int cacheMax) {
+			this.cacheMax = cacheMax;
+			return this;
+		}
+
+		/**
+		 * Set the duration between cache expiration checks in milliseconds.
+		 *
+		 * <p>Defaults to 10,000 (10 seconds).
+		 *
+		 * @param frequency the maximum frequency of expiration checks
+		 * @return the builder
+		 */
+		public @NotNull Builder setFrequency(long frequency) {
+			this.frequency = frequency;
+			return this;
+		}
+
+		/**
+		 * Set the maximum number of values in a single batch update.
+		 *
+		 * <p>Defaults to 1024 (one region worth of chunks).
+		 *
+		 * @param batchMax the maximum batch size
+		 * @return the builder
+		 */
+		public @NotNull Builder setBatchMax(int batchMax) {
+			this.batchMax = batchMax;
+			return this;
+		}
+
+		/**
+		 * Set the executor used to load values requested asynchronously.
+		 *
+		 * <p>Defaults to loading on the requesting thread.
+		 *
+		 * @param loader the loader executor
+		 * @return the builder
+		 */
+		public @NotNull Builder setLoader(@NotNull Executor loader) {
+			this.loader = loader;
+			return this;
+		}
+
+		/**
+		 * Set the maximum number of asynchronous loads read in a single batch.
+		 *
+		 * <p>Defaults to 256.
+		 *
+		 * @param loadBatchMax the maximum load batch size
+		 * @return the builder
+		 */
+		public @NotNull Builder setLoadBatchMax(int loadBatchMax) {
+			this.loadBatchMax = loadBatchMax;
+			return this;
+		}
+
+		/**
+		 * Set the duration in milliseconds that asynchronous loads are gathered before reading a partial batch.
+		 *
+		 * <p>Defaults to 5.
+		 *
+		 * @param loadBatchDelay the load batch delay
+		 * @return the builder
+		 */
+		public @NotNull Builder setLoadBatchDelay(long loadBatchDelay) {
+			this.loadBatchDelay = loadBatchDelay;
+			return this;
+		}
+
+		/**
+		 * Set the maximum duration in milliseconds that queued values wait for a full batch before being written.
+		 *
+		 * <p>Defaults to 500.
+		 *
+		 * @param maxLatency the maximum write latency
+		 * @return the builder
+		 */
+		public @NotNull Builder setMaxLatency(long maxLatency) {
+			this.maxLatency = maxLatency;
+			return this;
+		}
+
+		/**
+		 * Set the maximum number of values queued for writing. Once full, modified values remain cached until the
+		 * writer catches up. Must be at least the maximum batch size.
+		 *
+		 * <p>Defaults to 16,384.
+		 *
+		 * @param queueMax the maximum write queue size
+		 * @return the builder
+		 */
+		public @NotNull Builder setQueueMax(int queueMax) {
+			this.queueMax = queueMax;
+			return this;
+		}
+	}
+
+}
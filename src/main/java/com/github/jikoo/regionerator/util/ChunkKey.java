@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2015-2021 by Jikoo.
+ *
+ * Regionerator is licensed under a Creative Commons
+ * Attribution-ShareAlike 4.0 International License.
+ *
+ * You should have received a copy of the license along with this
+ * work. If not, see <http://creativecommons.org/licenses/by-sa/4.0/>.
+ */
+
+package com.github.jikoo.regionerator.util;
+
+import org.jetbrains.annotations.Contract;
+
+/**
+ * Utility for packing a world identifier and chunk coordinates into a single {@code long}.
+ *
+ * <p>Keys consist of 16 bits of world identifier followed by 24 bits each of chunk X and chunk Z.
+ * 24 signed bits comfortably cover the vanilla 30 million block world border. The sign bit of the
+ * world identifier is always unset, so no valid key is ever negative.
+ */
+public final class ChunkKey {
+
+	/** The maximum world identifier that may be packed into a key. */
+	public static final int MAX_WORLD_ID = Short.MAX_VALUE;
+
+	private static final int COORD_BITS = 24;
+	private static final long COORD_MASK = (1L << COORD_BITS) - 1;
+	private static final int WORLD_SHIFT = COORD_BITS * 2;
+
+	/**
+	 * Packs a world identifier and chunk coordinates into a key.
+	 *
+	 * @param worldId the world identifier
+	 * @param chunkX the chunk X coordinate
+	 * @param chunkZ the chunk Z coordinate
+	 * @return the packed key
+	 */
+	@Contract(pure = true)
+	public static long of(int worldId, int chunkX, int chunkZ) {
+		return (long) worldId << WORLD_SHIFT | (chunkX & COORD_MASK) << COORD_BITS | chunkZ & COORD_MASK;
+	}
+
+	/**
+	 * Gets the world identifier from a key.
+	 *
+	 * @param key the packed key
+	 * @return the world identifier
+	 */
+	@Contract(pure = true)
+	public static int getWorldId(long key) {
+		return (int) (key >>> WORLD_SHIFT);
+	}
+
+	/**
+	 * Gets the chunk X coordinate from a key.
+	 *
+	 * @param key the packed key
+	 * @return the chunk X coordinate
+	 */
+	@Contract(pure = true)
+	public static int getChunkX(long key) {
+		// Shift off world bits, then shift back down to sign-extend.
+		return (int) (key << (Long.SIZE - WORLD_SHIFT) >> (Long.SIZE - COORD_BITS));
+	}
+
+	/**
+	 * Gets the chunk Z coordinate from a key.
+	 *
+	 * @param key the packed key
+	 * @return the chunk Z coordinate
+	 */
+	@Contract(pure = true)
+	public static int getChunkZ(long key) {
+		return (int) (key << (Long.SIZE - COORD_BITS) >> (Long.SIZE - COORD_BITS));
+	}
+
+	private ChunkKey() {}
+
+}
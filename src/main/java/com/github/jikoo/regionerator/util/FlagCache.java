@@ -0,0 +1,160 @@
+/*
+ * Copyright (c) 2015-2021 by Jikoo.
+ *
+ * Regionerator is licensed under a Creative Commons
+ * Attribution-ShareAlike 4.0 International License.
+ *
+ * You should have received a copy of the license along with this
+ * work. If not, see <http://creativecommons.org/licenses/by-sa/4.0/>.
+ */
+
+package com.github.jikoo.regionerator.util;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.function.LongBinaryOperator;
+import java.util.function.LongUnaryOperator;
+
+/**
+ * A write-behind cache of chunk flags keyed by packed chunk keys.
+ *
+ * @see ChunkKey
+ */
+public interface FlagCache {
+
+	/** The value returned for keys that are not present. Never a valid flag. */
+	long ABSENT = Long.MIN_VALUE;
+
+	/**
+	 * Gets the value for the specified key, loading it if necessary. Loading blocks the calling thread.
+	 *
+	 * @param chunkKey the key
+	 * @return the value
+	 */
+	long get(long chunkKey);
+
+	/**
+	 * Gets the value for the specified key, loading it asynchronously if necessary.
+	 *
+	 * @param chunkKey the key
+	 * @return a future supplying the value
+	 */
+	@NotNull CompletableFuture<Long> getAsync(long chunkKey);
+
+	/**
+	 * Gets the value for the specified key or {@link #ABSENT} if it is not present in the cache.
+	 *
+	 * @param chunkKey the key
+	 * @return the value or {@link #ABSENT}
+	 */
+	long getIfPresent(long chunkKey);
+
+	/**
+	 * Inserts an unmodified value into the cache if no value is already present.
+	 *
+	 * @param chunkKey the key
+	 * @param value the value
+	 * @return the value present in the cache after insertion
+	 */
+	long putIfAbsent(long chunkKey, long value);
+
+	/**
+	 * Combines a value with the cached value without loading. If no value is cached, the new value is inserted as-is.
+	 * The entry is marked for saving if its value changes.
+	 *
+	 * @param chunkKey the key
+	 * @param value the new value
+	 * @param remapping the function combining the existing and new values
+	 * @return the value present in the cache after the operation
+	 */
+	long merge(long chunkKey, long value, @NotNull LongBinaryOperator remapping);
+
+	/**
+	 * Updates the value for the specified key, loading it if necessary. Loading blocks the calling thread.
+	 * The entry is marked for saving if its value changes.
+	 *
+	 * @param chunkKey the key
+	 * @param function the function computing the new value from the existing value
+	 * @return the new value
+	 */
+	long update(long chunkKey, @NotNull LongUnaryOperator function);
+
+	/**
+	 * Replaces the value for the specified key only if it is present and currently set to the expected value.
+	 *
+	 * @param chunkKey the key
+	 * @param expected the expected value
+	 * @param value the new value
+	 * @return true if the value was replaced
+	 */
+	boolean replace(long chunkKey, long expected, long value);
+
+	/**
+	 * Loads every chunk in a region if the cache is able to do so in a single operation.
+	 *
+	 * @param lowestChunkKey the key of the lowest chunk contained within the region
+	 * @return true if the region's values are now cached
+	 */
+	default boolean loadRegion(long lowestChunkKey) {
+		return false;
+	}
+
+	/**
+	 * Save all modified values and remove expired values in the background.
+	 */
+	void lazyExpireAll();
+
+	/**
+	 * Stop background work, then save all modified values and remove all values immediately.
+	 */
+	void expireAll();
+
+	/**
+	 * Save all modified values on the calling thread. Unlike {@link #expireAll()}, background work continues and
+	 * values remain cached. Values already queued for saving are left to the background writer.
+	 *
+	 * @return true if all collected values were saved successfully
+	 */
+	boolean flush();
+
+	/**
+	 * Get the current number of values in the cache.
+	 *
+	 * @return the cache size
+	 */
+	int getCached();
+
+	/**
+	 * Get the current number of values in the process of being saved.
+	 *
+	 * @return the save queue size
+	 */
+	int getQueued();
+
+	/**
+	 * Get the maximum number of values that may be queued for saving.
+	 *
+	 * @return the save queue capacity
+	 */
+	int getQueueCapacity();
+
+	/**
+	 * A writer accepting batches of modified values.
+	 */
+	@FunctionalInterface
+	interface BatchWriter {
+
+		/**
+		 * Writes a batch of values.
+		 *
+		 * @param chunkKeys the keys
+		 * @param values the values
+		 * @param length the number of entries in the batch
+		 * @return true if the values were written successfully
+		 */
+		boolean write(long @NotNull [] chunkKeys, long @NotNull [] values, int length);
+
+	}
+
+}
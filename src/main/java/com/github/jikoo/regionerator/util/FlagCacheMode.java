@@ -0,0 +1,21 @@
+/*
+ * Copyright (c) 2015-2021 by Jikoo.
+ *
+ * Regionerator is licensed under a Creative Commons
+ * Attribution-ShareAlike 4.0 International License.
+ *
+ * You should have received a copy of the license along with this
+ * work. If not, see <http://creativecommons.org/licenses/by-sa/4.0/>.
+ */
+
+package com.github.jikoo.regionerator.util;
+
+/**
+ * Available units of caching for chunk flags.
+ */
+public enum FlagCacheMode {
+	/** Flags are cached, loaded and expired per chunk. */
+	CHUNK,
+	/** Flags are cached, loaded and expired per region. */
+	REGION
+}
@@ -0,0 +1,692 @@
+/*
+ * Copyright (c) 2015-2021 by Jikoo.
+ *
+ * Regionerator is licensed under a Creative Commons
+ * Attribution-ShareAlike 4.0 International License.
+ *
+ * You should have received a copy of the license along with this
+ * work. If not, see <http://creativecommons.org/licenses/by-sa/4.0/>.
+ */
+
+package com.github.jikoo.regionerator.util;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongBinaryOperator;
+import java.util.function.LongUnaryOperator;
+
+/**
+ * A cache of chunk flags stored in region-sized blocks.
+ *
+ * <p>Each cached region is a single block holding a flag for each of its 1024 chunks alongside bitmaps of which
+ * chunks are present and which are modified. Loading, access times and expiration are tracked per region, so a
+ * region's chunks are read from the database in a single operation and expire together.
+ *
+ * <p>Blocks may be partially present: flags may be set without loading, and missing chunks are filled in from the
+ * database without replacing cached values. A single long-lived flusher thread writes modified chunks in batches and
+ * removes regions that have not been accessed within the retention period or are least recently used when the cache
+ * is over capacity.
+ *
+ * @see ChunkKey
+ */
+public class RegionFlagCache implements FlagCache {
+
+	private static final int CHUNKS_PER_AXIS = 32;
+	private static final int TOTAL_CHUNKS = CHUNKS_PER_AXIS * CHUNKS_PER_AXIS;
+	private static final int WORDS = TOTAL_CHUNKS / Long.SIZE;
+
+	private final Map<Long, Block> blocks = new ConcurrentHashMap<>();
+	private final Map<Long, CompletableFuture<Void>> loading = new ConcurrentHashMap<>();
+	private final AtomicInteger cached = new AtomicInteger();
+	private final AtomicInteger queued = new AtomicInteger();
+	private final AtomicBoolean saveRequested = new AtomicBoolean();
+	private final Object signal = new Object();
+	private final @NotNull RegionLoader load;
+	private final @NotNull Executor loader;
+	private final @NotNull BatchWriter writer;
+	private final long retention;
+	private final int maxRegions;
+	private final long frequency;
+	private final int maxBatchSize;
+	private final int queueMax;
+	private final @NotNull Thread flusher;
+	private volatile boolean running = true;
+
+	/**
+	 * Construct a new {@link RegionFlagCache}. For builder use.
+	 *
+	 * @param load the region loading function
+	 * @param loader the executor for asynchronous loads
+	 * @param writer the writer for batches of changed values
+	 * @param retention the retention duration in milliseconds
+	 * @param cacheMax the maximum number of cached chunks
+	 * @param frequency the duration between expiration checks in milliseconds
+	 * @param maxBatchSize the maximum batch size to write simultaneously
+	 * @param queueMax the maximum number of values collected for writing at once
+	 */
+	private RegionFlagCache(
+			@NotNull RegionLoader load,
+			@NotNull Executor loader,
+			@NotNull BatchWriter writer,
+			long retention,
+			int cacheMax,
+			long frequency,
+			int maxBatchSize,
+			int queueMax) {
+		if (maxBatchSize < 1) {
+			throw new IllegalArgumentException("Max batch size cannot be smaller than 1");
+		}
+		if (queueMax < maxBatchSize) {
+			throw new IllegalArgumentException("Queue size cannot be smaller than max batch size");
+		}
+		this.load = load;
+		this.loader = loader;
+		this.writer = writer;
+		this.retention = retention;
+		this.maxRegions = Math.max(1, cacheMax / TOTAL_CHUNKS);
+		this.frequency = frequency;
+		this.maxBatchSize = maxBatchSize;
+		this.queueMax = queueMax;
+
+		this.flusher = new Thread(this::runFlusher, "BatchExpiration");
+		this.flusher.setDaemon(true);
+		this.flusher.start();
+	}
+
+	@Override
+	public long get(long chunkKey) {
+		long value;
+		while ((value = getIfPresent(chunkKey)) == ABSENT) {
+			long regionKey = getRegionKey(chunkKey);
+			CompletableFuture<Void> future = new CompletableFuture<>();
+			CompletableFuture<Void> existing = loading.putIfAbsent(regionKey, future);
+			if (existing != null) {
+				existing.join();
+			} else {
+				load(regionKey, future);
+			}
+		}
+		return value;
+	}
+
+	@Override
+	public @NotNull CompletableFuture<Long> getAsync(long chunkKey) {
+		long value = getIfPresent(chunkKey);
+		if (value != ABSENT) {
+			return CompletableFuture.completedFuture(value);
+		}
+
+		long regionKey = getRegionKey(chunkKey);
+		CompletableFuture<Void> future = new CompletableFuture<>();
+		CompletableFuture<Void> existing = loading.putIfAbsent(regionKey, future);
+		if (existing != null) {
+			return existing.thenApply(ignored -> get(chunkKey));
+		}
+
+		try {
+			loader.execute(() -> load(regionKey, future));
+		} catch (RejectedExecutionException e) {
+			// Loader is shut down, load on the calling thread.
+			load(regionKey, future);
+		}
+		return future.thenApply(ignored -> get(chunkKey));
+	}
+
+	@Override
+	public boolean loadRegion(long lowestChunkKey) {
+		long regionKey = getRegionKey(lowestChunkKey);
+		Block block = blocks.get(regionKey);
+		if (block != null) {
+			synchronized (block) {
+				if (!block.removed && block.presentCount == TOTAL_CHUNKS) {
+					block.accessed = System.currentTimeMillis();
+					return true;
+				}
+			}
+		}
+
+		CompletableFuture<Void> future = new CompletableFuture<>();
+		CompletableFuture<Void> existing = loading.putIfAbsent(regionKey, future);
+		if (existing != null) {
+			existing.join();
+		} else {
+			load(regionKey, future);
+		}
+		return true;
+	}
+
+	/**
+	 * Loads a region and completes the in-flight future registered for it.
+	 *
+	 * @param regionKey the key of the lowest chunk in the region
+	 * @param future the future registered for the region
+	 */
+	private void load(long regionKey, @NotNull CompletableFuture<Void> future) {
+		try {
+			long[] values = load.load(regionKey);
+			while (true) {
+				Block block = blocks.computeIfAbsent(regionKey, key -> new Block());
+				synchronized (block) {
+					if (block.removed) {
+						continue;
+					}
+					// Cached values take precedence over stored values.
+					for (int index = 0; index < TOTAL_CHUNKS; ++index) {
+						if (!block.isPresent(index)) {
+							block.insert(index, values[index], false);
+						}
+					}
+					block.accessed = System.currentTimeMillis();
+					break;
+				}
+			}
+			future.complete(null);
+		} catch (RuntimeException | Error e) {
+			future.completeExceptionally(e);
+			throw e;
+		} finally {
+			loading.remove(regionKey, future);
+		}
+	}
+
+	@Override
+	public long getIfPresent(long chunkKey) {
+		return apply(chunkKey, false, (block, index) -> block.isPresent(index) ? block.values[index] : ABSENT);
+	}
+
+	@Override
+	public long putIfAbsent(long chunkKey, long value) {
+		return apply(chunkKey, true, (block, index) -> {
+			if (!block.isPresent(index)) {
+				block.insert(index, value, false);
+			}
+			return block.values[index];
+		});
+	}
+
+	@Override
+	public long merge(long chunkKey, long value, @NotNull LongBinaryOperator remapping) {
+		return apply(chunkKey, true, (block, index) -> {
+			if (!block.isPresent(index)) {
+				block.insert(index, value, true);
+				return value;
+			}
+			return block.set(index, remapping.applyAsLong(block.values[index], value));
+		});
+	}
+
+	@Override
+	public long update(long chunkKey, @NotNull LongUnaryOperator function) {
+		long result;
+		while ((result = apply(chunkKey, false, (block, index) -> block.isPresent(index)
+				? block.set(index, function.applyAsLong(block.values[index])) : ABSENT)) == ABSENT) {
+			get(chunkKey);
+		}
+		return result;
+	}
+
+	@Override
+	public boolean replace(long chunkKey, long expected, long value) {
+		return apply(chunkKey, false, (block, index) -> {
+			if (!block.isPresent(index) || block.values[index] != expected) {
+				return 0;
+			}
+			block.set(index, value);
+			return 1;
+		}) == 1;
+	}
+
+	/**
+	 * Applies an operation to the block containing a chunk while holding the block's lock.
+	 *
+	 * @param chunkKey the key
+	 * @param create whether to create the block if it is not cached
+	 * @param operation the operation
+	 * @return the result of the operation or {@link #ABSENT} if the block is not cached
+	 */
+	private long apply(long chunkKey, boolean create, @NotNull BlockOperation operation) {
+		long regionKey = getRegionKey(chunkKey);
+		int index = getIndex(chunkKey);
+		while (true) {
+			Block block = create ? blocks.computeIfAbsent(regionKey, key -> new Block()) : blocks.get(regionKey);
+			if (block == null) {
+				return ABSENT;
+			}
+			synchronized (block) {
+				// Block was expired after lookup, retry with its replacement.
+				if (block.removed) {
+					continue;
+				}
+				block.accessed = System.currentTimeMillis();
+				return operation.apply(block, index);
+			}
+		}
+	}
+
+	@Override
+	public void lazyExpireAll() {
+		saveRequested.set(true);
+		synchronized (signal) {
+			signal.notifyAll();
+		}
+	}
+
+	@Override
+	public void expireAll() {
+		running = false;
+		synchronized (signal) {
+			signal.notifyAll();
+		}
+		try {
+			flusher.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		// Flusher has stopped, save everything on this thread.
+		expire(true, true);
+	}
+
+	@Override
+	public boolean flush() {
+		return expire(true, false);
+	}
+
+	@Override
+	public int getCached() {
+		return cached.get();
+	}
+
+	@Override
+	public int getQueued() {
+		return queued.get();
+	}
+
+	@Override
+	public int getQueueCapacity() {
+		return queueMax;
+	}
+
+	private void runFlusher() {
+		long nextSweep = System.currentTimeMillis();
+
+		while (running) {
+			synchronized (signal) {
+				long now;
+				while (running && !saveRequested.get() && (now = System.currentTimeMillis()) < nextSweep) {
+					try {
+						signal.wait(nextSweep - now);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						return;
+					}
+				}
+			}
+
+			if (!running) {
+				return;
+			}
+
+			long now = System.currentTimeMillis();
+			expire(saveRequested.getAndSet(false), false);
+			nextSweep = frequency > Long.MAX_VALUE - now ? Long.MAX_VALUE : now + frequency;
+		}
+	}
+
+	/**
+	 * Write modified values and remove expired regions. Sweeps are serialized so that the flusher and a flush never
+	 * collect the same values.
+	 *
+	 * @param saveAll whether to write modified values in regions that are not yet expired
+	 * @param removeAll whether to remove all regions rather than only expired regions
+	 * @return true if all collected values were written successfully
+	 */
+	private synchronized boolean expire(boolean saveAll, boolean removeAll) {
+		boolean success = true;
+		long evictAt = getEvictionThreshold();
+		Pending pending = new Pending();
+		List<Long> expired = new ArrayList<>();
+
+		for (Map.Entry<Long, Block> entry : blocks.entrySet()) {
+			long regionKey = entry.getKey();
+			Block block = entry.getValue();
+			synchronized (block) {
+				if (block.removed) {
+					continue;
+				}
+				boolean due = removeAll || block.accessed <= evictAt;
+				if (block.dirtyCount == 0) {
+					if (due) {
+						block.remove(regionKey);
+					}
+					continue;
+				}
+				if (!due && !saveAll) {
+					continue;
+				}
+				if (due) {
+					expired.add(regionKey);
+				}
+				pending.collect(regionKey, block);
+			}
+
+			// Write outside the block lock once another region might not fit.
+			if (pending.size + TOTAL_CHUNKS > queueMax) {
+				success &= write(pending);
+			}
+		}
+
+		success &= write(pending);
+
+		// Remove expired regions whose changes have all been written and that have not been used since.
+		for (long regionKey : expired) {
+			Block block = blocks.get(regionKey);
+			if (block == null) {
+				continue;
+			}
+			synchronized (block) {
+				if (!block.removed && block.dirtyCount == 0 && (removeAll || block.accessed <= evictAt)) {
+					block.remove(regionKey);
+				}
+			}
+		}
+
+		return success;
+	}
+
+	/**
+	 * Gets the access time at or before which regions must be removed to expire regions and bring the cache within
+	 * capacity.
+	 *
+	 * @return the eviction threshold
+	 */
+	private long getEvictionThreshold() {
+		long cutoff = System.currentTimeMillis() - retention;
+		int excess = blocks.size() - maxRegions;
+		if (excess <= 0) {
+			return cutoff;
+		}
+
+		long[] accessed = blocks.values().stream().mapToLong(block -> block.accessed).toArray();
+		Arrays.sort(accessed);
+		return Math.max(cutoff, accessed[Math.min(excess, accessed.length) - 1]);
+	}
+
+	/**
+	 * Write pending values in batches.
+	 *
+	 * @param pending the pending values
+	 * @return true if all values were written successfully
+	 */
+	private boolean write(@NotNull Pending pending) {
+		boolean success = true;
+		queued.set(pending.size);
+		for (int start = 0; start < pending.size; start += maxBatchSize) {
+			int length = Math.min(maxBatchSize, pending.size - start);
+			long[] keys = Arrays.copyOfRange(pending.keys, start, start + length);
+			long[] values = Arrays.copyOfRange(pending.values, start, start + length);
+
+			if (writer.write(keys, values, length)) {
+				for (int i = 0; i < length; ++i) {
+					wash(keys[i], values[i]);
+				}
+			} else {
+				success = false;
+			}
+
+			queued.addAndGet(-length);
+		}
+		pending.size = 0;
+		return success;
+	}
+
+	private void wash(long chunkKey, long written) {
+		Block block = blocks.get(getRegionKey(chunkKey));
+		if (block == null) {
+			return;
+		}
+		int index = getIndex(chunkKey);
+		synchronized (block) {
+			// If value changed while writing, it is still dirty.
+			if (!block.removed && block.isPresent(index) && block.values[index] == written) {
+				block.setDirty(index, false);
+			}
+		}
+	}
+
+	private static long getRegionKey(long chunkKey) {
+		// Clear local coordinate bits to key by region.
+		return ChunkKey.of(ChunkKey.getWorldId(chunkKey), ChunkKey.getChunkX(chunkKey) & ~(CHUNKS_PER_AXIS - 1),
+				ChunkKey.getChunkZ(chunkKey) & ~(CHUNKS_PER_AXIS - 1));
+	}
+
+	private static int getIndex(long chunkKey) {
+		return (ChunkKey.getChunkZ(chunkKey) & (CHUNKS_PER_AXIS - 1)) << 5 | (ChunkKey.getChunkX(chunkKey) & (CHUNKS_PER_AXIS - 1));
+	}
+
+	/**
+	 * A loader reading every flag in a region.
+	 */
+	@FunctionalInterface
+	public interface RegionLoader {
+
+		/**
+		 * Reads the flags of a region.
+		 *
+		 * @param lowestChunkKey the key of the lowest chunk contained within the region
+		 * @return the region's values indexed by {@code localChunkZ << 5 | localChunkX}
+		 */
+		long @NotNull [] load(long lowestChunkKey);
+
+	}
+
+	@FunctionalInterface
+	private interface BlockOperation {
+
+		long apply(@NotNull Block block, int index);
+
+	}
+
+	/**
+	 * A region of cached values. All access must be synchronized on the block.
+	 */
+	private final class Block {
+
+		private final long[] values = new long[TOTAL_CHUNKS];
+		private final long[] present = new long[WORDS];
+		private final long[] dirty = new long[WORDS];
+		private int presentCount;
+		private int dirtyCount;
+		// Read without locking when selecting regions to evict.
+		private volatile long accessed = System.currentTimeMillis();
+		private boolean removed;
+
+		private boolean isPresent(int index) {
+			return (present[index >>> 6] & 1L << index) != 0;
+		}
+
+		private void insert(int index, long value, boolean dirty) {
+			present[index >>> 6] |= 1L << index;
+			++presentCount;
+			cached.incrementAndGet();
+			values[index] = value;
+			setDirty(index, dirty);
+		}
+
+		private long set(int index, long value) {
+			if (values[index] != value) {
+				values[index] = value;
+				setDirty(index, true);
+			}
+			return value;
+		}
+
+		private boolean isDirty(int index) {
+			return (dirty[index >>> 6] & 1L << index) != 0;
+		}
+
+		private void setDirty(int index, boolean value) {
+			if (value == isDirty(index)) {
+				return;
+			}
+			if (value) {
+				dirty[index >>> 6] |= 1L << index;
+				++dirtyCount;
+			} else {
+				dirty[index >>> 6] &= ~(1L << index);
+				--dirtyCount;
+			}
+		}
+
+		private void remove(long regionKey) {
+			removed = true;
+			blocks.remove(regionKey, this);
+			cached.addAndGet(-presentCount);
+		}
+
+	}
+
+	/**
+	 * A growable buffer of values awaiting write.
+	 */
+	private static final class Pending {
+
+		private long[] keys = new long[TOTAL_CHUNKS];
+		private long[] values = new long[TOTAL_CHUNKS];
+		private int size;
+
+		private void collect(long regionKey, @NotNull Block block) {
+			if (size + block.dirtyCount > keys.length) {
+				int capacity = Math.max(keys.length * 2, size + block.dirtyCount);
+				keys = Arrays.copyOf(keys, capacity);
+				values = Arrays.copyOf(values, capacity);
+			}
+
+			int worldId = ChunkKey.getWorldId(regionKey);
+			int lowestChunkX = ChunkKey.getChunkX(regionKey);
+			int lowestChunkZ = ChunkKey.getChunkZ(regionKey);
+			for (int word = 0; word < WORDS; ++word) {
+				for (long bits = block.dirty[word]; bits != 0; bits &= bits - 1) {
+					int index = word << 6 | Long.numberOfTrailingZeros(bits);
+					keys[size] = ChunkKey.of(worldId, lowestChunkX + (index & (CHUNKS_PER_AXIS - 1)), lowestChunkZ + (index >>> 5));
+					values[size] = block.values[index];
+					++size;
+				}
+			}
+		}
+
+	}
+
+	/**
+	 * A builder for a {@link RegionFlagCache}.
+	 */
+	public static class Builder {
+		private long retention = 600_000L;
+		private int cacheMax = 640_000;
+		private long frequency = 10_000L;
+		private int batchMax = 1_024;
+		private int queueMax = 16_384;
+		private @NotNull Executor loader = Runnable::run;
+
+		/**
+		 * Construct a {@link RegionFlagCache}.
+		 *
+		 * @param load the region loading function
+		 * @param writer the writer of modified values
+		 * @return the constructed cache
+		 */
+		public @NotNull RegionFlagCache build(@NotNull RegionLoader load, @NotNull BatchWriter writer) {
+			return new RegionFlagCache(load, loader, writer, retention, cacheMax, frequency, batchMax, queueMax);
+		}
+
+		/**
+		 * Set the retention of the cache in milliseconds.
+		 *
+		 * <p>Defaults to 600,000 (10 minutes).
+		 *
+		 * @param retention the retention duration
+		 * @return the builder
+		 */
+		public @NotNull Builder setRetention(long retention) {
+			this.retention = retention;
+			return this;
+		}
+
+		/**
+		 * Set the maximum number of cached chunks. Regions are cached whole, so the cache holds at most this many
+		 * chunks divided by 1024 regions.
+		 *
+		 * <p>Defaults to 640,000 - 625 regions.
+		 *
+		 * @param cacheMax the maximum cache size
+		 * @return the builder
+		 */
+		public @NotNull Builder setCacheMax(int cacheMax) {
+			this.cacheMax = cacheMax;
+			return this;
+		}
+
+		/**
+		 * Set the duration between cache expiration checks in milliseconds.
+		 *
+		 * <p>Defaults to 10,000 (10 seconds).
+		 *
+		 * @param frequency the frequency of expiration checks
+		 * @return the builder
+		 */
+		public @NotNull Builder setFrequency(long frequency) {
+			this.frequency = frequency;
+			return this;
+		}
+
+		/**
+		 * Set the maximum number of values in a single batch update.
+		 *
+		 * <p>Defaults to 1024 (one region worth of chunks).
+		 *
+		 * @param batchMax the maximum batch size
+		 * @return the builder
+		 */
+		public @NotNull Builder setBatchMax(int batchMax) {
+			this.batchMax = batchMax;
+			return this;
+		}
+
+		/**
+		 * Set the maximum number of values collected for writing before they are written.
+		 *
+		 * <p>Defaults to 16,384.
+		 *
+		 * @param queueMax the maximum write queue size
+		 * @return the builder
+		 */
+		public @NotNull Builder setQueueMax(int queueMax) {
+			this.queueMax = queueMax;
+			return this;
+		}
+
+		/**
+		 * Set the executor used to load regions requested asynchronously.
+		 *
+		 * <p>Defaults to loading on the requesting thread.
+		 *
+		 * @param loader the loader executor
+		 * @return the builder
+		 */
+		public @NotNull Builder setLoader(@NotNull Executor loader) {
+			this.loader = loader;
+			return this;
+		}
+	}
+
+}
@@ -27,6 +27,7 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
 
 public class VisitStatusCache extends CachingSupplier<VisitStatus> {
 
@@ -39,14 +40,16 @@ public class VisitStatusCache extends CachingSupplier<VisitStatus> {
 
 			long now = System.currentTimeMillis();
 			final World bukkitWorld = chunkInfo.getWorld();
-			ChunkFlagger.FlagData flagData = plugin.getFlagger()
-					.getChunkFlag(bukkitWorld, chunkInfo.getChunkX(), chunkInfo.getChunkZ()).join();
+			int chunkX = chunkInfo.getChunkX();
+			int chunkZ = chunkInfo.getChunkZ();
+			Supplier<String> chunkId = () -> bukkitWorld.getName() + '_' + chunkX + '_' + chunkZ;
+			ChunkFlagger.FlagData flagData = plugin.getFlagger().getChunkFlag(bukkitWorld, chunkX, chunkZ).join();
 			long lastVisit = flagData.getLastVisit();
 			boolean isFresh = !plugin.config().isDeleteFreshChunks(bukkitWorld) && lastVisit == plugin.config().getFlagGenerated(bukkitWorld);
 
 			// If chunk is visited, don't waste time processing hooks.
 			if (!isFresh && now <= lastVisit) {
-				plugin.debug(DebugLevel.HIGH, () -> String.format("Chunk %s is visited until %s", flagData.getChunkId(), lastVisit));
+				plugin.debug(DebugLevel.HIGH, () -> String.format("Chunk %s is visited until %s", chunkId.get(), lastVisit));
 
 				// Handle visit status magic values.
 				if (lastVisit == Config.FLAG_ETERNAL) {
@@ -60,14 +63,12 @@ public class VisitStatusCache extends CachingSupplier<VisitStatus> {
 
 			// If chunk is recently modified, prioritize that over protections for the sake of speed/calculation load.
 			if (!isFresh && now - plugin.config().getFlagDuration(bukkitWorld) <= chunkInfo.getLastModified()) {
-				plugin.debug(DebugLevel.HIGH, () -> String.format("Chunk %s is modified until %s", flagData.getChunkId(), lastVisit));
+				plugin.debug(DebugLevel.HIGH, () -> String.format("Chunk %s is modified until %s", chunkId.get(), lastVisit));
 				return VisitStatus.VISITED;
 			}
 
 			Collection<Hook> syncHooks = Bukkit.isPrimaryThread() ? null : new ArrayList<>();
 			WorldInfo world = chunkInfo.getRegionInfo().getWorldInfo();
-			int chunkX = chunkInfo.getChunkX();
-			int chunkZ = chunkInfo.getChunkZ();
 
 			// Check available hooks.
 			for (Hook hook : plugin.getProtectionHooks()) {
@@ -80,7 +81,7 @@ public class VisitStatusCache extends CachingSupplier<VisitStatus> {
 				// Otherwise query the hook immediately.
 				if (hook.isChunkProtected(world.getWorld(), chunkX, chunkZ)) {
 					plugin.debug(DebugLevel.HIGH, () -> String.format("Chunk %s contains protections by %s",
-							flagData.getChunkId(), hook.getProtectionName()));
+							chunkId.get(), hook.getProtectionName()));
 					return VisitStatus.PROTECTED;
 				}
 			}
@@ -99,7 +100,7 @@ public class VisitStatusCache extends CachingSupplier<VisitStatus> {
                     for (Hook hook : syncHooks) {
                         if (hook.isChunkProtected(world.getWorld(), chunkX, chunkZ)) {
                             plugin.debug(DebugLevel.HIGH, () -> String.format("Chunk %s contains protections by %s",
-                                    flagData.getChunkId(), hook.getProtectionName()));
+                                    chunkId.get(), hook.getProtectionName()));
                             visitStatus.set(VisitStatus.PROTECTED);
                         }
                     }
@@ -112,11 +113,11 @@ public class VisitStatusCache extends CachingSupplier<VisitStatus> {
 
 			// If chunk is fresh and nothing else overwrote status, fall through to generated status.
 			if (isFresh) {
-				plugin.debug(DebugLevel.HIGH, () -> "Chunk " + flagData.getChunkId() + " has not been visited since it was generated.");
+				plugin.debug(DebugLevel.HIGH, () -> "Chunk " + chunkId.get() + " has not been visited since it was generated.");
 				return VisitStatus.GENERATED;
 			}
 
-			plugin.debug(DebugLevel.HIGH, () -> "Chunk " + flagData.getChunkId() + " has not been visited.");
+			plugin.debug(DebugLevel.HIGH, () -> "Chunk " + chunkId.get() + " has not been visited.");
 			return VisitStatus.UNVISITED;
 		}, calcCacheDuration(plugin), TimeUnit.MINUTES);
 	}
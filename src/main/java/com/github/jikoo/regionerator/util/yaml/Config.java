@@ -12,6 +12,7 @@ package com.github.jikoo.regionerator.util.yaml;
 
 import com.github.jikoo.regionerator.DebugLevel;
 import com.github.jikoo.regionerator.Regionerator;
+import com.github.jikoo.regionerator.util.FlagCacheMode;
 import com.google.common.collect.ImmutableMap;
 import org.bukkit.Bukkit;
 import org.bukkit.World;
@@ -42,14 +43,35 @@ public class Config extends ConfigYamlData {
 	private final AtomicLong millisBetweenCycles = new AtomicLong();
 	private final AtomicLong deletionRecovery = new AtomicLong();
 	private final AtomicInteger flaggingRadius = new AtomicInteger();
+	private final AtomicLong flagGranularity = new AtomicLong();
 	private final AtomicInteger deletionChunkCount = new AtomicInteger();
+	private final AtomicInteger deletionParallelism = new AtomicInteger();
+	private final AtomicInteger deletionPrefetch = new AtomicInteger();
+	private final AtomicInteger deletionWriteQueue = new AtomicInteger();
 	private final AtomicBoolean rememberCycleDelay = new AtomicBoolean();
 	private final AtomicBoolean deleteFreshChunks = new AtomicBoolean();
+	private FlagCacheMode cacheMode;
 	private long cacheExpirationFrequency;
 	private long cacheRetention;
 	private int cacheBatchMax;
 	private long cacheBatchDelay;
+	private int cacheQueueSize;
+	private int cacheLoaderThreads;
+	private int cacheLoadBatchMax;
+	private long cacheLoadBatchDelay;
 	private int cacheMaxSize;
+	private long flagCleanupInterval;
+	private long flagCleanupRetention;
+	private int flagCleanupBatchSize;
+	private long flagCleanupBatchDelay;
+	private long flagSnapshotInterval;
+	private boolean deletionThrottled;
+	private double throttleTickMillis;
+	private double throttleRegionTps;
+	private double throttleIoMillis;
+	private double throttleMinRate;
+	private double throttleMaxRate;
+	private int flagSnapshotsKept;
 
 	public Config(@NotNull Regionerator plugin) {
 		super(plugin);
@@ -70,6 +92,7 @@ public class Config extends ConfigYamlData {
 
 		deleteFreshChunks.set(!getBoolean("flagging.flag-generated-chunks-until-visited"));
 		flaggingRadius.set(Math.max(0, getInt("flagging.chunk-flag-radius")));
+		flagGranularity.set(TimeUnit.MINUTES.toMillis(Math.max(0, getInt("flagging.flag-granularity-minutes"))));
 
 		int secondsPerFlag = getInt("flagging.seconds-per-flag");
 		if (secondsPerFlag < 1) {
@@ -80,15 +103,45 @@ public class Config extends ConfigYamlData {
 
 		deletionRecovery.set(Math.max(0, getLong("deletion.recovery-time")));
 		deletionChunkCount.set(Math.max(1, getInt("deletion.expensive-checks-between-recovery")));
+		deletionParallelism.set(Math.max(1, getInt("deletion.parallel-regions")));
+		deletionPrefetch.set(Math.max(0, getInt("deletion.prefetch-regions")));
+		deletionWriteQueue.set(Math.max(1, getInt("deletion.write-queue")));
+		deletionThrottled = getBoolean("deletion.throttle.enabled");
+		throttleTickMillis = Math.max(1, getDouble("deletion.throttle.target-tick-millis"));
+		throttleRegionTps = Math.max(0, getDouble("deletion.throttle.minimum-region-tps"));
+		throttleIoMillis = Math.max(1, getDouble("deletion.throttle.target-io-millis"));
+		throttleMinRate = Math.max(0.01, getDouble("deletion.throttle.minimum-rate"));
+		throttleMaxRate = Math.max(throttleMinRate, getDouble("deletion.throttle.maximum-rate"));
 		millisBetweenCycles.set(TimeUnit.HOURS.toMillis(Math.max(0, getInt("deletion.hours-between-cycles"))));
 		rememberCycleDelay.set(getBoolean("deletion.remember-next-cycle-time"));
 
+		String cacheModeName = getString("cache.mode");
+		cacheMode = FlagCacheMode.CHUNK;
+		if (cacheModeName != null) {
+			try {
+				cacheMode = FlagCacheMode.valueOf(cacheModeName.toUpperCase());
+			} catch (IllegalArgumentException e) {
+				plugin.getLogger().warning("Unknown cache mode " + cacheModeName + ", using CHUNK! Available options: CHUNK, REGION");
+			}
+		}
 		cacheExpirationFrequency = TimeUnit.MILLISECONDS.convert(Math.max(0, getInt("cache.minimum-expiration-frequency")), TimeUnit.SECONDS);
 		cacheRetention = TimeUnit.MILLISECONDS.convert(Math.max(1, getInt("cache.retention")), TimeUnit.MINUTES);
 		cacheBatchMax = Math.max(1, getInt("cache.maximum-batch-size"));
 		cacheBatchDelay = Math.max(0L, getLong("cache.batch-delay"));
+		cacheQueueSize = Math.max(cacheBatchMax, getInt("cache.write-queue-size"));
+		cacheLoaderThreads = Math.max(1, getInt("cache.loader-threads"));
+		cacheLoadBatchMax = Math.max(1, getInt("cache.maximum-load-batch-size"));
+		cacheLoadBatchDelay = Math.max(0L, getLong("cache.load-batch-delay"));
 		cacheMaxSize = Math.max(50_000, getInt("cache.max-cache-size"));
 
+		flagCleanupInterval = TimeUnit.HOURS.toMillis(Math.max(0, getInt("flag-cleanup.hours-between-cleanups")));
+		flagCleanupRetention = TimeUnit.DAYS.toMillis(Math.max(0, getInt("flag-cleanup.days-kept-after-expiry")));
+		flagCleanupBatchSize = Math.max(1, getInt("flag-cleanup.batch-size"));
+		flagCleanupBatchDelay = Math.max(0L, getLong("flag-cleanup.batch-delay"));
+
+		flagSnapshotInterval = TimeUnit.HOURS.toMillis(Math.max(0, getInt("flag-snapshot.hours-between-snapshots")));
+		flagSnapshotsKept = Math.max(1, getInt("flag-snapshot.snapshots-kept"));
+
 	}
 
 	public void reconsiderWorldValidity() {
@@ -156,6 +209,62 @@ public class Config extends ConfigYamlData {
 		return deletionRecovery.get();
 	}
 
+	/**
+	 * Gets the maximum number of regions checked at once in each world.
+	 *
+	 * @return the number of regions checked in parallel
+	 */
+	public int getDeletionParallelism() {
+		return deletionParallelism.get();
+	}
+
+	/**
+	 * Gets the maximum number of regions read ahead of the regions being checked in each world.
+	 *
+	 * @return the number of regions read ahead
+	 */
+	public int getDeletionPrefetch() {
+		return deletionPrefetch.get();
+	}
+
+	/**
+	 * Gets the maximum number of checked regions waiting to be written in each world.
+	 *
+	 * @return the number of regions waiting to be written
+	 */
+	public int getDeletionWriteQueue() {
+		return deletionWriteQueue.get();
+	}
+
+	/**
+	 * Gets whether recovery time is scaled according to server load.
+	 *
+	 * @return true if deletion is throttled
+	 */
+	public boolean isDeletionThrottled() {
+		return deletionThrottled;
+	}
+
+	public double getThrottleTickMillis() {
+		return throttleTickMillis;
+	}
+
+	public double getThrottleRegionTps() {
+		return throttleRegionTps;
+	}
+
+	public double getThrottleIoMillis() {
+		return throttleIoMillis;
+	}
+
+	public double getThrottleMinRate() {
+		return throttleMinRate;
+	}
+
+	public double getThrottleMaxRate() {
+		return throttleMaxRate;
+	}
+
 	public long getCycleDelayMillis() {
 		return millisBetweenCycles.get();
 	}
@@ -195,7 +304,23 @@ public class Config extends ConfigYamlData {
 	}
 
 	public long getFlagVisit(String worldName) {
-		return System.currentTimeMillis() + getFlagDuration(worldName);
+		long flagTil = System.currentTimeMillis() + getFlagDuration(worldName);
+		long granularity = getFlagGranularity();
+		if (granularity <= 0) {
+			return flagTil;
+		}
+		// Round up so that flags never expire earlier than configured.
+		return Math.floorDiv(flagTil + granularity - 1, granularity) * granularity;
+	}
+
+	/**
+	 * Gets the granularity of visit flags in milliseconds. Visits that would extend an existing flag by less than the
+	 * granularity do not modify the flag.
+	 *
+	 * @return the flag granularity or 0 if flags are exact
+	 */
+	public long getFlagGranularity() {
+		return flagGranularity.get();
 	}
 
 	public long getFlaggingInterval() {
@@ -214,6 +339,10 @@ public class Config extends ConfigYamlData {
 		return plugin.getServer().getWorlds().stream().map(World::getName).filter(this::isEnabled).collect(Collectors.toUnmodifiableSet());
 	}
 
+	public FlagCacheMode getCacheMode() {
+		return cacheMode;
+	}
+
 	public long getCacheExpirationFrequency() {
 		return cacheExpirationFrequency;
 	}
@@ -230,10 +359,60 @@ public class Config extends ConfigYamlData {
 		return cacheBatchDelay;
 	}
 
+	public int getCacheQueueSize() {
+		return cacheQueueSize;
+	}
+
+	public int getCacheLoaderThreads() {
+		return cacheLoaderThreads;
+	}
+
+	public int getCacheLoadBatchMax() {
+		return cacheLoadBatchMax;
+	}
+
+	public long getCacheLoadBatchDelay() {
+		return cacheLoadBatchDelay;
+	}
+
 	public int getCacheMaxSize() {
 		return cacheMaxSize;
 	}
 
+	/**
+	 * Gets the interval between removals of stale flags from storage in milliseconds.
+	 *
+	 * @return the cleanup interval or 0 if cleanup is disabled
+	 */
+	public long getFlagCleanupInterval() {
+		return flagCleanupInterval;
+	}
+
+	public long getFlagCleanupRetention() {
+		return flagCleanupRetention;
+	}
+
+	public int getFlagCleanupBatchSize() {
+		return flagCleanupBatchSize;
+	}
+
+	public long getFlagCleanupBatchDelay() {
+		return flagCleanupBatchDelay;
+	}
+
+	/**
+	 * Gets the interval between scheduled snapshots of the flag database in milliseconds.
+	 *
+	 * @return the snapshot interval or 0 if scheduled snapshots are disabled
+	 */
+	public long getFlagSnapshotInterval() {
+		return flagSnapshotInterval;
+	}
+
+	public int getFlagSnapshotsKept() {
+		return flagSnapshotsKept;
+	}
+
 	public boolean startPaused() {
 		return getBoolean("deletion.start-paused");
 	}
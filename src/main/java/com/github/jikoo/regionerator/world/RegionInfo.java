@@ -16,6 +16,8 @@ import org.bukkit.World;
 import org.jetbrains.annotations.NotNull;
 
 import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Collection;
 import java.util.stream.Stream;
 
 /**
@@ -93,6 +95,13 @@ public abstract class RegionInfo {
 	 */
 	public abstract boolean exists();
 
+	/**
+	 * Gets the files the region is stored in. Files may not exist.
+	 *
+	 * @return the region's files
+	 */
+	public abstract @NotNull Collection<Path> getFiles();
+
 	/**
 	 * Gets the lowest chunk X coordinate contained within the region.
 	 *
@@ -14,11 +14,12 @@ import com.github.jikoo.regionerator.Regionerator;
 import org.bukkit.Bukkit;
 import org.bukkit.World;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.File;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.stream.Stream;
 
 /**
  * A container used to generate {@link RegionInfo} for a {@link World}.
@@ -54,11 +55,20 @@ public abstract class WorldInfo {
 	public abstract @NotNull RegionInfo getRegion(int regionX, int regionZ);
 
 	/**
-	 * Gets a {@link Stream<RegionInfo>} requesting every {@link RegionInfo} contained by the WorldInfo.
+	 * Gets {@link RegionInfo} for a file name returned by {@link #getRegionFileNames()}.
 	 *
-	 * @return a {@link Stream<RegionInfo>}
+	 * @param fileName the name of the region file
+	 * @return the {@link RegionInfo} or null if the file is not a region of the world
 	 */
-	public abstract @NotNull Stream<RegionInfo> getRegions();
+	public abstract @Nullable RegionInfo getRegion(@NotNull String fileName);
+
+	/**
+	 * Gets the names of the files of every region contained by the WorldInfo. Regions stored in several files may
+	 * appear more than once.
+	 *
+	 * @return the region file names
+	 */
+	public abstract @NotNull List<String> getRegionFileNames();
 
 	/**
 	 * Gets the instance of Regionerator loading the WorldInfo.
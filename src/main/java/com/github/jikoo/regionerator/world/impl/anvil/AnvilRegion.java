@@ -24,6 +24,7 @@ import java.nio.IntBuffer;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.concurrent.TimeUnit;
 import java.util.stream.IntStream;
 import java.util.stream.Stream;
@@ -237,6 +238,11 @@ public class AnvilRegion extends RegionInfo {
 		return false;
 	}
 
+	@Override
+	public @NotNull Collection<Path> getFiles() {
+		return Arrays.stream(DATA_SUBDIRS).map(this::getRegionPath).toList();
+	}
+
 	@Override
 	public @NotNull ChunkInfo getLocalChunk(int localChunkX, int localChunkZ) {
 		Preconditions.checkArgument(localChunkX >= 0 && localChunkX < 32 && localChunkZ >= 0 && localChunkZ < 32,
@@ -20,12 +20,8 @@ import org.jetbrains.annotations.Nullable;
 import java.io.File;
 import java.nio.file.Path;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
-import java.util.Objects;
-import java.util.concurrent.ThreadLocalRandom;
 import java.util.regex.Matcher;
-import java.util.stream.Stream;
 
 public class AnvilWorld extends WorldInfo {
 
@@ -40,7 +36,17 @@ public class AnvilWorld extends WorldInfo {
 	}
 
 	@Override
-	public @NotNull Stream<RegionInfo> getRegions() {
+	public @Nullable RegionInfo getRegion(@NotNull String fileName) {
+		Matcher matcher = RegionFile.FILE_NAME_PATTERN.matcher(fileName);
+		if (!matcher.matches() || !getPlugin().isEnabled()) {
+			return null;
+		}
+		Path dataFolder = findWorldDataFolder().toPath();
+		return new AnvilRegion(this, dataFolder, Integer.parseInt(matcher.group(1)), Integer.parseInt(matcher.group(2)), "r.%s.%s" + matcher.group(3));
+	}
+
+	@Override
+	public @NotNull List<String> getRegionFileNames() {
 		Path dataFolder = findWorldDataFolder().toPath();
 
 		List<String> fileNames = new ArrayList<>();
@@ -55,22 +61,7 @@ public class AnvilWorld extends WorldInfo {
 			}
 		}
 
-		// Some servers may use settings that cause runs to never complete prior to server restarts.
-		// Randomize order to improve eventual-correctness.
-		Collections.shuffle(fileNames, ThreadLocalRandom.current());
-
-		return fileNames.stream()
-				.distinct()
-				.map(fileName -> parseRegion(dataFolder, fileName))
-				.filter(Objects::nonNull);
-	}
-
-	private @Nullable RegionInfo parseRegion(Path dataFolder, String fileName) {
-		Matcher matcher = RegionFile.FILE_NAME_PATTERN.matcher(fileName);
-		if (!matcher.matches() || !getPlugin().isEnabled()) {
-			return null;
-		}
-		return new AnvilRegion(this, dataFolder, Integer.parseInt(matcher.group(1)), Integer.parseInt(matcher.group(2)), "r.%s.%s" + matcher.group(3));
+		return fileNames;
 	}
 
 }
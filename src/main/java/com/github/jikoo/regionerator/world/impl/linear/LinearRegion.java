@@ -24,6 +24,8 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
 import java.time.Clock;
+import java.util.Collection;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.LockSupport;
 import java.util.stream.IntStream;
@@ -556,6 +558,11 @@ public class LinearRegion extends RegionInfo {
         return Files.isRegularFile(regionFile);
     }
 
+    @Override
+    public @NotNull Collection<Path> getFiles() {
+        return List.of(regionFile);
+    }
+
     @Override
     public @NotNull ChunkInfo getLocalChunk(int localChunkX, int localChunkZ) {
         return new LinearChunk(this, localChunkX, localChunkZ);
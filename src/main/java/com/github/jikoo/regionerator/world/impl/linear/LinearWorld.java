@@ -11,13 +11,9 @@ import org.jetbrains.annotations.Nullable;
 import java.io.File;
 import java.nio.file.Path;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
-import java.util.Objects;
-import java.util.concurrent.ThreadLocalRandom;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
-import java.util.stream.Stream;
 
 public class LinearWorld extends WorldInfo {
     private static final Pattern FILE_NAME_PATTERN = Pattern.compile("^r\\.(-?\\d+)\\.(-?\\d+)(\\.linear)$");
@@ -32,7 +28,17 @@ public class LinearWorld extends WorldInfo {
     }
 
     @Override
-    public @NotNull Stream<RegionInfo> getRegions() {
+    public @Nullable RegionInfo getRegion(@NotNull String fileName) {
+        Matcher matcher = FILE_NAME_PATTERN.matcher(fileName);
+        if (!matcher.matches() || !getPlugin().isEnabled()) {
+            return null;
+        }
+
+        return createRegionFile(Integer.parseInt(matcher.group(1)), Integer.parseInt(matcher.group(2)));
+    }
+
+    @Override
+    public @NotNull List<String> getRegionFileNames() {
         Path dataFolder = findWorldDataFolder().toPath();
         List<String> fileNames = new ArrayList<>();
         for (String folderName : AnvilRegion.DATA_SUBDIRS) {
@@ -46,23 +52,7 @@ public class LinearWorld extends WorldInfo {
             }
         }
 
-        // Some servers may use settings that cause runs to never complete prior to server restarts.
-        // Randomize order to improve eventual-correctness.
-        Collections.shuffle(fileNames, ThreadLocalRandom.current());
-
-        return fileNames.stream()
-                .distinct()
-                .map(this::parseRegion)
-                .filter(Objects::nonNull);
-    }
-
-    private @Nullable RegionInfo parseRegion(String fileName) {
-        Matcher matcher = FILE_NAME_PATTERN.matcher(fileName);
-        if (!matcher.matches() || !getPlugin().isEnabled()) {
-            return null;
-        }
-
-        return createRegionFile(Integer.parseInt(matcher.group(1)), Integer.parseInt(matcher.group(2)));
+        return fileNames;
     }
 
     private LinearRegion createRegionFile(int chunkX, int chunkZ) {
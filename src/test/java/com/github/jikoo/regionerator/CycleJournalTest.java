@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2015-2023 by Jikoo.
+ *
+ * Regionerator is licensed under a Creative Commons
+ * Attribution-ShareAlike 4.0 International License.
+ *
+ * You should have received a copy of the license along with this
+ * work. If not, see <http://creativecommons.org/licenses/by-sa/4.0/>.
+ */
+
+package com.github.jikoo.regionerator;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CycleJournalTest {
+
+  private static final Logger LOGGER = Logger.getLogger(CycleJournalTest.class.getName());
+  private static final List<String> REGIONS = List.of(
+      "r.0.0.mca", "r.0.1.mca", "r.1.0.mca", "r.-1.0.mca", "r.0.-1.mca",
+      "r.1.1.mca", "r.2.0.mca", "r.0.2.mca", "r.-2.-2.mca", "r.3.3.mca");
+
+  @TempDir
+  Path tempDir;
+
+  @Test
+  void testNewCycle() {
+    Path file = tempDir.resolve("cycles").resolve("world.cycle");
+    // Regions stored in several files are visited once.
+    List<String> regionFileNames = new ArrayList<>(REGIONS);
+    regionFileNames.addAll(REGIONS.subList(0, 3));
+
+    CycleJournal journal = CycleJournal.open(LOGGER, file, "world", regionFileNames);
+    try {
+      assertTrue(Files.isRegularFile(file), "Journal must be written when the cycle starts");
+      assertEquals(Set.copyOf(REGIONS), Set.copyOf(getFileNames(journal)));
+      assertEquals(REGIONS.size(), journal.size());
+      for (int i = 0; i < journal.size(); ++i) {
+        assertFalse(journal.isComplete(i));
+      }
+    } finally {
+      journal.close();
+    }
+  }
+
+  @Test
+  void testResume() {
+    Path file = tempDir.resolve("world.cycle");
+    CycleJournal journal = CycleJournal.open(LOGGER, file, "world", REGIONS);
+    List<String> order = getFileNames(journal);
+    // Bits sharing a byte must not overwrite each other.
+    journal.complete(0);
+    journal.complete(3);
+    journal.complete(9);
+    journal.close();
+    assertTrue(Files.isRegularFile(file), "Closing must keep the journal");
+
+    // Region files created since the cycle started are left for the next cycle.
+    List<String> changed = new ArrayList<>(REGIONS);
+    changed.add("r.4.4.mca");
+    journal = CycleJournal.open(LOGGER, file, "world", changed);
+    assertEquals(order, getFileNames(journal), "Order must be preserved on resume");
+    journal.complete(1);
+    journal.close();
+
+    journal = CycleJournal.open(LOGGER, file, "world", REGIONS);
+    try {
+      for (int i = 0; i < journal.size(); ++i) {
+        assertEquals(i == 0 || i == 1 || i == 3 || i == 9, journal.isComplete(i), "Completion of region " + i);
+      }
+    } finally {
+      journal.close();
+    }
+  }
+
+  @Test
+  void testDelete() {
+    Path file = tempDir.resolve("world.cycle");
+    CycleJournal journal = CycleJournal.open(LOGGER, file, "world", REGIONS);
+    journal.complete(2);
+    journal.delete();
+    assertFalse(Files.exists(file), "Completed cycle must be deleted");
+
+    journal = CycleJournal.open(LOGGER, file, "world", REGIONS);
+    try {
+      assertFalse(journal.isComplete(2), "Deleted cycle must not be resumed");
+    } finally {
+      journal.close();
+    }
+  }
+
+  @Test
+  void testCorruptStartsOver() throws IOException {
+    Path file = tempDir.resolve("world.cycle");
+    Files.write(file, new byte[] { 1, 2, 3, 4, 5, 6 });
+
+    CycleJournal journal = CycleJournal.open(LOGGER, file, "world", REGIONS);
+    try {
+      assertEquals(Set.copyOf(REGIONS), Set.copyOf(getFileNames(journal)));
+    } finally {
+      journal.close();
+    }
+  }
+
+  @Test
+  void testTruncatedStartsOver() throws IOException {
+    Path file = tempDir.resolve("world.cycle");
+    CycleJournal journal = CycleJournal.open(LOGGER, file, "world", REGIONS);
+    for (int i = 0; i < journal.size(); ++i) {
+      journal.complete(i);
+    }
+    journal.close();
+
+    // Cutting off the last byte of the bitmap must not shift the bitmap into the names.
+    byte[] content = Files.readAllBytes(file);
+    Files.write(file, Arrays.copyOf(content, content.length - 1));
+
+    journal = CycleJournal.open(LOGGER, file, "world", REGIONS);
+    try {
+      for (int i = 0; i < journal.size(); ++i) {
+        assertFalse(journal.isComplete(i), "Truncated cycle must not be resumed");
+      }
+    } finally {
+      journal.close();
+    }
+  }
+
+  private static @NotNull List<String> getFileNames(@NotNull CycleJournal journal) {
+    List<String> fileNames = new ArrayList<>();
+    for (int i = 0; i < journal.size(); ++i) {
+      fileNames.add(journal.getFileName(i));
+    }
+    return fileNames;
+  }
+
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) 2015-2023 by Jikoo.
+ *
+ * Regionerator is licensed under a Creative Commons
+ * Attribution-ShareAlike 4.0 International License.
+ *
+ * You should have received a copy of the license along with this
+ * work. If not, see <http://creativecommons.org/licenses/by-sa/4.0/>.
+ */
+
+package com.github.jikoo.regionerator;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RegionIndexTest {
+
+  private static final Logger LOGGER = Logger.getLogger(RegionIndexTest.class.getName());
+
+  @TempDir
+  Path tempDir;
+  private List<Path> files;
+  private RegionIndex.WorldIndex index;
+
+  @BeforeEach
+  void beforeEach() throws IOException {
+    Path region = tempDir.resolve("r.-1.-1.mca");
+    Files.write(region, new byte[8192]);
+    // Missing files are part of the fingerprint as well.
+    files = List.of(region, tempDir.resolve("r.-1.-1.mcc"));
+    index = new RegionIndex.WorldIndex(0);
+  }
+
+  @Test
+  void testUnchangedSkipped() {
+    assertFalse(begin().isUnchanged(), "Unknown region must be checked");
+    record();
+    assertTrue(begin().isUnchanged(), "Unchanged region must be skipped");
+  }
+
+  @Test
+  void testSizeChanged() throws IOException {
+    record();
+    FileTime modified = Files.getLastModifiedTime(files.get(0));
+    Files.write(files.get(0), new byte[4096], StandardOpenOption.APPEND);
+    Files.setLastModifiedTime(files.get(0), modified);
+    assertFalse(begin().isUnchanged(), "Region with a changed file size must be checked");
+  }
+
+  @Test
+  void testModifiedTimeChanged() throws IOException {
+    record();
+    FileTime modified = Files.getLastModifiedTime(files.get(0));
+    Files.setLastModifiedTime(files.get(0), FileTime.fromMillis(modified.toMillis() + 10_000));
+    assertFalse(begin().isUnchanged(), "Region with a changed modification time must be checked");
+  }
+
+  @Test
+  void testFileCreated() throws IOException {
+    record();
+    Files.write(files.get(1), new byte[1]);
+    assertFalse(begin().isUnchanged(), "Region with a new file must be checked");
+  }
+
+  @Test
+  void testEligibleAnytimeNotRecorded() {
+    RegionIndex.Check check = begin();
+    check.eligibleAt(System.currentTimeMillis() + TimeUnit.HOURS.toMillis(1));
+    check.eligibleAnytime();
+    check.complete();
+    assertFalse(begin().isUnchanged(), "Region with chunks that may be deleted at any time must be checked");
+  }
+
+  @Test
+  void testPastRecheckNotRecorded() {
+    RegionIndex.Check check = begin();
+    check.eligibleAt(System.currentTimeMillis() - 1);
+    check.complete();
+    assertFalse(begin().isUnchanged(), "Region with chunks that are already eligible must be checked");
+  }
+
+  @Test
+  void testAbandonNotRecorded() {
+    begin().abandon();
+    assertFalse(begin().isUnchanged(), "Abandoned region must be checked");
+  }
+
+  @Test
+  void testInvalidateDuringCheck() {
+    RegionIndex.Check check = begin();
+    check.eligibleAt(System.currentTimeMillis() + TimeUnit.HOURS.toMillis(1));
+    index.invalidate(-1, -32);
+    check.complete();
+    assertFalse(begin().isUnchanged(), "Check must not be recorded if flags changed while it was in progress");
+  }
+
+  @Test
+  void testInvalidateAfterCheck() {
+    record();
+    // Chunks in neighbouring regions do not affect the region.
+    index.invalidate(0, -1);
+    index.invalidate(-1, 0);
+    index.invalidate(-33, -1);
+    assertTrue(begin().isUnchanged(), "Flag changes in other regions must not invalidate the region");
+
+    index.invalidate(-32, -1);
+    assertFalse(begin().isUnchanged(), "Flag changes in the region must invalidate the region");
+  }
+
+  @Test
+  void testWorldIndexRetained() {
+    RegionIndex regionIndex = new RegionIndex(LOGGER, tempDir.resolve("cycles"));
+    long flagDuration = TimeUnit.DAYS.toMillis(30);
+    // With fresh chunks deleted, the flag for generated chunks moves with the current time.
+    index = regionIndex.getWorld("world", flagDuration, true);
+    record();
+
+    index = regionIndex.getWorld("world", flagDuration, true);
+    assertTrue(begin().isUnchanged(), "Index must survive repeated lookups with the same settings");
+
+    index = regionIndex.getWorld("world", flagDuration, false);
+    assertFalse(begin().isUnchanged(), "Index must be cleared when settings change");
+  }
+
+  private @NotNull RegionIndex.Check begin() {
+    return index.begin(-32, -32, files);
+  }
+
+  private void record() {
+    RegionIndex.Check check = begin();
+    check.eligibleAt(System.currentTimeMillis() + TimeUnit.HOURS.toMillis(1));
+    check.complete();
+  }
+
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 2015-2023 by Jikoo.
+ *
+ * Regionerator is licensed under a Creative Commons
+ * Attribution-ShareAlike 4.0 International License.
+ *
+ * You should have received a copy of the license along with this
+ * work. If not, see <http://creativecommons.org/licenses/by-sa/4.0/>.
+ */
+
+package com.github.jikoo.regionerator.database;
+
+import com.github.jikoo.regionerator.util.ChunkKey;
+import com.github.jikoo.regionerator.util.yaml.Config;
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class FlagArchiveTest {
+
+  private static final Logger LOGGER = Logger.getLogger(FlagArchiveTest.class.getName());
+
+  // Chunk coordinates spanning several regions, including negative regions and repeated regions out of order.
+  private static final int[][] CHUNKS = {
+      { 0, 0 }, { 31, 31 }, { 32, 0 }, { -1, -1 }, { -33, 5 }, { 5, -33 }, { 0, 1 }, { 1_000, -1_000 }
+  };
+  private static final long[] FLAGS = {
+      100, Config.FLAG_ETERNAL, Config.FLAG_OH_NO, Config.FLAG_DEFAULT, 1_700_000_000_000L, 5, Config.FLAG_ETERNAL, 7
+  };
+  private static final long[] LAST_DELETE_TIMES = {
+      Config.FLAG_DEFAULT, 50, Config.FLAG_DEFAULT, 1_600_000_000_000L, Config.FLAG_DEFAULT, Config.FLAG_ETERNAL, 3, 6
+  };
+
+  @TempDir
+  Path tempDir;
+
+  @Test
+  void testRoundTrip() throws Exception {
+    Path archive = tempDir.resolve("flags.archive");
+    MemoryAdapter source = new MemoryAdapter(LOGGER, tempDir.resolve("source"), 1_000, 64);
+    long written;
+    try {
+      populate(source);
+      written = FlagArchive.write(source, archive);
+    } finally {
+      source.close();
+    }
+    assertEquals(CHUNKS.length * 2L, written);
+
+    MemoryAdapter target = new MemoryAdapter(LOGGER, tempDir.resolve("target"), 1_000, 64);
+    try {
+      // Register worlds in a different order so that identifiers must be mapped by name.
+      int netherId = target.getWorldId("world_nether");
+      int worldId = target.getWorldId("world");
+
+      assertEquals(written, FlagArchive.read(archive, target, target::importFlags, 3));
+
+      for (int i = 0; i < CHUNKS.length; ++i) {
+        for (int id : new int[] { worldId, netherId }) {
+          long chunkKey = ChunkKey.of(id, CHUNKS[i][0], CHUNKS[i][1]);
+          String message = Arrays.toString(CHUNKS[i]) + " in " + id;
+          assertEquals(expectedFlag(id == netherId, i), target.get(chunkKey), message);
+          assertEquals(LAST_DELETE_TIMES[i], target.getPrevious(chunkKey), message);
+        }
+      }
+    } finally {
+      target.close();
+    }
+  }
+
+  @Test
+  void testTruncatedArchive() throws Exception {
+    Path archive = tempDir.resolve("flags.archive");
+    MemoryAdapter source = new MemoryAdapter(LOGGER, tempDir.resolve("source"), 1_000, 64);
+    try {
+      populate(source);
+      FlagArchive.write(source, archive);
+    } finally {
+      source.close();
+    }
+
+    // Drop the end section from a complete gzip stream so that only the archive itself can detect the truncation.
+    byte[] content;
+    try (InputStream in = new GZIPInputStream(Files.newInputStream(archive))) {
+      content = in.readAllBytes();
+    }
+    ByteArrayOutputStream truncated = new ByteArrayOutputStream();
+    try (OutputStream out = new GZIPOutputStream(truncated)) {
+      out.write(content, 0, content.length - 2);
+    }
+    Files.write(archive, truncated.toByteArray());
+
+    MemoryAdapter target = new MemoryAdapter(LOGGER, tempDir.resolve("target"), 1_000, 64);
+    try {
+      assertThrows(IOException.class, () -> FlagArchive.read(archive, target, target::importFlags, 3));
+    } finally {
+      target.close();
+    }
+  }
+
+  private static void populate(@NotNull MemoryAdapter adapter) throws IOException {
+    int worldId = adapter.getWorldId("world");
+    int netherId = adapter.getWorldId("world_nether");
+    for (int i = 0; i < CHUNKS.length; ++i) {
+      for (int id : new int[] { worldId, netherId }) {
+        long[] chunkKey = { ChunkKey.of(id, CHUNKS[i][0], CHUNKS[i][1]) };
+        if (LAST_DELETE_TIMES[i] != Config.FLAG_DEFAULT) {
+          // Deleting a flagged chunk retains its flag as the flag as of last deletion.
+          adapter.update(chunkKey, new long[] { LAST_DELETE_TIMES[i] }, 1);
+          adapter.update(chunkKey, new long[] { Config.FLAG_DEFAULT }, 1);
+        }
+        adapter.update(chunkKey, new long[] { expectedFlag(id == netherId, i) }, 1);
+      }
+    }
+  }
+
+  private static long expectedFlag(boolean nether, int index) {
+    // Distinct flags per world so that mixed up worlds are detected.
+    return nether && FLAGS[index] > 0 && FLAGS[index] < Config.FLAG_OH_NO ? FLAGS[index] + 1 : FLAGS[index];
+  }
+
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2015-2023 by Jikoo.
+ *
+ * Regionerator is licensed under a Creative Commons
+ * Attribution-ShareAlike 4.0 International License.
+ *
+ * You should have received a copy of the license along with this
+ * work. If not, see <http://creativecommons.org/licenses/by-sa/4.0/>.
+ */
+
+package com.github.jikoo.regionerator.database;
+
+import com.github.jikoo.regionerator.util.ChunkKey;
+import com.github.jikoo.regionerator.util.yaml.Config;
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class JournalAdapterTest {
+
+  private static final Logger LOGGER = Logger.getLogger(JournalAdapterTest.class.getName());
+
+  @TempDir
+  Path tempDir;
+
+  @Test
+  void testReplaySegments() throws IOException {
+    long now = System.currentTimeMillis();
+    JournalAdapter adapter = new JournalAdapter(LOGGER, tempDir, -1);
+    int worldId = adapter.getWorldId("world");
+    long first = ChunkKey.of(worldId, 1, 2);
+    long second = ChunkKey.of(worldId, -40, 7);
+    adapter.update(new long[] { first, second }, new long[] { now, now }, 2);
+    adapter.update(new long[] { first, second }, new long[] { Config.FLAG_DEFAULT, now + 1_000 }, 2);
+    adapter.close();
+
+    // Active segments are resumed after replay.
+    adapter = new JournalAdapter(LOGGER, tempDir, -1);
+    long third = ChunkKey.of(adapter.getWorldId("world_nether"), 5, -5);
+    adapter.update(new long[] { third }, new long[] { now }, 1);
+    adapter.close();
+
+    JournalAdapter replayed = new JournalAdapter(LOGGER, tempDir, -1);
+    try {
+      assertEquals(worldId, replayed.getWorldIds().get("world"));
+      assertEquals(Config.FLAG_DEFAULT, replayed.get(first));
+      assertEquals(now, replayed.getPrevious(first), "Deleted flag must be retained as flag as of last deletion");
+      assertEquals(now + 1_000, replayed.get(second), "Latest record must win");
+      assertEquals(now, replayed.get(third));
+    } finally {
+      replayed.close();
+    }
+  }
+
+  @Test
+  void testTornRecordTruncated() throws IOException {
+    long now = System.currentTimeMillis();
+    JournalAdapter adapter = new JournalAdapter(LOGGER, tempDir, -1);
+    long chunkKey = ChunkKey.of(adapter.getWorldId("world"), 3, 4);
+    adapter.update(new long[] { chunkKey }, new long[] { now }, 1);
+    adapter.close();
+
+    Path segment = getSegments().get(0);
+    long validSize = Files.size(segment);
+    // Part of a record interrupted by a crash.
+    Files.write(segment, new byte[10], StandardOpenOption.APPEND);
+
+    JournalAdapter replayed = new JournalAdapter(LOGGER, tempDir, -1);
+    try {
+      assertEquals(now, replayed.get(chunkKey), "Complete records must be replayed");
+      assertEquals(validSize, Files.size(segment), "Torn record must be truncated");
+    } finally {
+      replayed.close();
+    }
+  }
+
+  @Test
+  void testExpiredPartitionsDropped() throws IOException, InterruptedException {
+    long now = System.currentTimeMillis();
+    long expired = now - TimeUnit.DAYS.toMillis(30);
+    JournalAdapter adapter = new JournalAdapter(LOGGER, tempDir, -1);
+    int worldId = adapter.getWorldId("world");
+    long oldChunk = ChunkKey.of(worldId, 1, 1);
+    long newChunk = ChunkKey.of(worldId, 2, 2);
+    adapter.update(new long[] { oldChunk, newChunk }, new long[] { expired, now }, 2);
+    adapter.close();
+    assertEquals(2, getSegments().size(), "Flags expiring in different weeks must be in separate segments");
+
+    // Expired partitions are dropped by the compactor once it starts.
+    JournalAdapter expiring = new JournalAdapter(LOGGER, tempDir, TimeUnit.DAYS.toMillis(1));
+    try {
+      long deadline = System.currentTimeMillis() + 5_000;
+      while (expiring.get(oldChunk) != Config.FLAG_DEFAULT && System.currentTimeMillis() < deadline) {
+        Thread.sleep(10);
+      }
+      assertEquals(Config.FLAG_DEFAULT, expiring.get(oldChunk), "Expired flag must be dropped");
+      assertEquals(now, expiring.get(newChunk), "Unexpired flag must be retained");
+      assertEquals(1, getSegments().size(), "Expired segment must be deleted");
+    } finally {
+      expiring.close();
+    }
+
+    JournalAdapter replayed = new JournalAdapter(LOGGER, tempDir, -1);
+    try {
+      assertEquals(Config.FLAG_DEFAULT, replayed.get(oldChunk), "Dropped flag must not resurface");
+      assertEquals(now, replayed.get(newChunk));
+    } finally {
+      replayed.close();
+    }
+  }
+
+  private @NotNull List<Path> getSegments() throws IOException {
+    try (Stream<Path> files = Files.list(tempDir)) {
+      return files.filter(file -> file.getFileName().toString().endsWith(".dat")).sorted().toList();
+    }
+  }
+
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (c) 2015-2023 by Jikoo.
+ *
+ * Regionerator is licensed under a Creative Commons
+ * Attribution-ShareAlike 4.0 International License.
+ *
+ * You should have received a copy of the license along with this
+ * work. If not, see <http://creativecommons.org/licenses/by-sa/4.0/>.
+ */
+
+package com.github.jikoo.regionerator.database;
+
+import com.github.jikoo.regionerator.util.ChunkKey;
+import com.github.jikoo.regionerator.util.yaml.Config;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.logging.Logger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class MappedRegionAdapterTest {
+
+  private static final Logger LOGGER = Logger.getLogger(MappedRegionAdapterTest.class.getName());
+
+  @TempDir
+  Path tempDir;
+
+  @Test
+  void testDeleteRegionRetainsPrevious() throws IOException {
+    MappedRegionAdapter adapter = new MappedRegionAdapter(LOGGER, tempDir);
+    try {
+      int worldId = adapter.getWorldId("world");
+      long deleted = ChunkKey.of(worldId, -32, -32);
+      long flagged = ChunkKey.of(worldId, -1, -1);
+      long untouched = ChunkKey.of(worldId, -2, -1);
+
+      // Deleting a single chunk retains its flag.
+      adapter.update(new long[] { deleted }, new long[] { 100 }, 1);
+      adapter.update(new long[] { deleted }, new long[] { Config.FLAG_DEFAULT }, 1);
+      adapter.update(new long[] { flagged }, new long[] { 200 }, 1);
+
+      adapter.deleteRegion(worldId, -32, -32);
+
+      assertEquals(Config.FLAG_DEFAULT, adapter.get(deleted));
+      assertEquals(100, adapter.getPrevious(deleted), "Unflagged chunk must keep its flag as of last deletion");
+      assertEquals(Config.FLAG_DEFAULT, adapter.get(flagged));
+      assertEquals(200, adapter.getPrevious(flagged), "Flagged chunk must retain its flag as of deletion");
+      assertEquals(Config.FLAG_DEFAULT, adapter.getPrevious(untouched));
+    } finally {
+      adapter.close();
+    }
+  }
+
+  @Test
+  void testMissingRegionCreated() throws IOException {
+    MappedRegionAdapter adapter = new MappedRegionAdapter(LOGGER, tempDir);
+    try {
+      long chunkKey = ChunkKey.of(adapter.getWorldId("world"), 40, -40);
+      assertEquals(Config.FLAG_DEFAULT, adapter.get(chunkKey));
+      assertEquals(Config.FLAG_DEFAULT, adapter.getPrevious(chunkKey));
+
+      // Regions previously looked up while missing must be found once created.
+      adapter.update(new long[] { chunkKey }, new long[] { 100 }, 1);
+      assertEquals(100, adapter.get(chunkKey));
+      adapter.update(new long[] { chunkKey }, new long[] { Config.FLAG_DEFAULT }, 1);
+      assertEquals(100, adapter.getPrevious(chunkKey));
+    } finally {
+      adapter.close();
+    }
+
+    MappedRegionAdapter reopened = new MappedRegionAdapter(LOGGER, tempDir);
+    try {
+      long chunkKey = ChunkKey.of(reopened.getWorldId("world"), 40, -40);
+      assertEquals(Config.FLAG_DEFAULT, reopened.get(chunkKey));
+      assertEquals(100, reopened.getPrevious(chunkKey));
+    } finally {
+      reopened.close();
+    }
+  }
+
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2015-2023 by Jikoo.
+ *
+ * Regionerator is licensed under a Creative Commons
+ * Attribution-ShareAlike 4.0 International License.
+ *
+ * You should have received a copy of the license along with this
+ * work. If not, see <http://creativecommons.org/licenses/by-sa/4.0/>.
+ */
+
+package com.github.jikoo.regionerator.database;
+
+import com.github.jikoo.regionerator.util.ChunkKey;
+import com.github.jikoo.regionerator.util.yaml.Config;
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MemoryAdapterTest {
+
+  private static final Logger LOGGER = Logger.getLogger(MemoryAdapterTest.class.getName());
+
+  @TempDir
+  Path tempDir;
+
+  @Test
+  void testRecoverSnapshotAndLog() throws IOException {
+    Path live = tempDir.resolve("live");
+    long first;
+    long second;
+    long third;
+
+    // Closing writes a snapshot.
+    MemoryAdapter adapter = new MemoryAdapter(LOGGER, live, 1_000, 64);
+    int worldId = adapter.getWorldId("world");
+    first = ChunkKey.of(worldId, 1, 2);
+    second = ChunkKey.of(worldId, -40, 7);
+    adapter.update(new long[] { first, second }, new long[] { 100, 200 }, 2);
+    adapter.close();
+    assertTrue(Files.isRegularFile(live.resolve("flags.snapshot")), "Snapshot must be written on close");
+
+    // Changes after loading the snapshot are only in the log.
+    adapter = new MemoryAdapter(LOGGER, live, 1_000, 64);
+    int otherId = adapter.getWorldId("world_nether");
+    third = ChunkKey.of(otherId, 5, -5);
+    adapter.update(new long[] { first, third }, new long[] { Config.FLAG_DEFAULT, 300 }, 2);
+    Path crashed = copyOf(live, tempDir.resolve("crashed"));
+    adapter.close();
+
+    MemoryAdapter recovered = new MemoryAdapter(LOGGER, crashed, 1_000, 64);
+    try {
+      assertEquals(worldId, recovered.getWorldIds().get("world"));
+      assertEquals(otherId, recovered.getWorldIds().get("world_nether"));
+      assertEquals(Config.FLAG_DEFAULT, recovered.get(first));
+      assertEquals(100, recovered.getPrevious(first), "Deleted flag must be retained as flag as of last deletion");
+      assertEquals(200, recovered.get(second));
+      assertEquals(300, recovered.get(third));
+    } finally {
+      recovered.close();
+    }
+  }
+
+  @Test
+  void testTornFrameDiscarded() throws IOException {
+    Path live = tempDir.resolve("live");
+    MemoryAdapter adapter = new MemoryAdapter(LOGGER, live, 1_000, 64);
+    long chunkKey = ChunkKey.of(adapter.getWorldId("world"), 3, 4);
+    adapter.update(new long[] { chunkKey }, new long[] { 100 }, 1);
+    Path crashed = copyOf(live, tempDir.resolve("crashed"));
+    adapter.close();
+
+    Path log = findLog(crashed);
+    long validSize = Files.size(log);
+    // Frame header promising more content than was written before the crash.
+    ByteBuffer torn = ByteBuffer.allocate(Integer.BYTES * 2 + 5).putInt(17).putInt(0).put(new byte[5]).flip();
+    Files.write(log, torn.array(), StandardOpenOption.APPEND);
+
+    MemoryAdapter recovered = new MemoryAdapter(LOGGER, crashed, 1_000, 64);
+    try {
+      assertEquals(100, recovered.get(chunkKey), "Complete frames must be replayed");
+      assertEquals(validSize, Files.size(log), "Torn frame must be truncated");
+    } finally {
+      recovered.close();
+    }
+  }
+
+  @Test
+  void testCorruptFrameDiscarded() throws IOException {
+    Path live = tempDir.resolve("live");
+    MemoryAdapter adapter = new MemoryAdapter(LOGGER, live, 1_000, 64);
+    long chunkKey = ChunkKey.of(adapter.getWorldId("world"), 3, 4);
+    adapter.update(new long[] { chunkKey }, new long[] { 100 }, 1);
+    long validSize = Files.size(findLog(live));
+    adapter.update(new long[] { chunkKey }, new long[] { 200 }, 1);
+    Path crashed = copyOf(live, tempDir.resolve("crashed"));
+    adapter.close();
+
+    // Flip the last byte of the final frame's payload so that its checksum no longer matches.
+    Path log = findLog(crashed);
+    byte[] bytes = Files.readAllBytes(log);
+    bytes[bytes.length - 1] ^= 1;
+    Files.write(log, bytes);
+
+    MemoryAdapter recovered = new MemoryAdapter(LOGGER, crashed, 1_000, 64);
+    try {
+      assertEquals(100, recovered.get(chunkKey), "Frame with a bad checksum must not be replayed");
+      assertEquals(validSize, Files.size(log), "Frame with a bad checksum must be truncated");
+    } finally {
+      recovered.close();
+    }
+  }
+
+  /**
+   * Copies the files of a running adapter, producing the state left behind by a crash.
+   */
+  private static @NotNull Path copyOf(@NotNull Path source, @NotNull Path target) throws IOException {
+    Files.createDirectories(target);
+    try (Stream<Path> files = Files.list(source)) {
+      for (Path file : (Iterable<Path>) files::iterator) {
+        Files.copy(file, target.resolve(file.getFileName()));
+      }
+    }
+    return target;
+  }
+
+  private static @NotNull Path findLog(@NotNull Path directory) throws IOException {
+    try (Stream<Path> files = Files.list(directory)) {
+      return files.filter(file -> file.getFileName().toString().endsWith(".log")).findFirst().orElseThrow();
+    }
+  }
+
+}
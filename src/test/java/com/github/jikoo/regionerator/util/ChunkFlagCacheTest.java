@@ -0,0 +1,177 @@
+/*
+ * Copyright (c) 2015-2023 by Jikoo.
+ *
+ * Regionerator is licensed under a Creative Commons
+ * Attribution-ShareAlike 4.0 International License.
+ *
+ * You should have received a copy of the license along with this
+ * work. If not, see <http://creativecommons.org/licenses/by-sa/4.0/>.
+ */
+
+package com.github.jikoo.regionerator.util;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ChunkFlagCacheTest {
+
+  private Map<Long, Long> database;
+  private ChunkFlagCache cache;
+
+  @BeforeEach
+  void beforeEach() {
+    database = new HashMap<>();
+    cache = new ChunkFlagCache.Builder()
+        .setFrequency(Long.MAX_VALUE)
+        .build(key -> database.getOrDefault(key, -1L), (keys, values, length) -> {
+          for (int i = 0; i < length; ++i) {
+            database.put(keys[i], values[i]);
+          }
+          return true;
+        });
+  }
+
+  @Test
+  void testLoadAndMerge() {
+    long key = ChunkKey.of(1, -5, 12);
+    database.put(key, 10L);
+
+    assertEquals(ChunkFlagCache.ABSENT, cache.getIfPresent(key));
+    assertEquals(10L, cache.get(key));
+    assertEquals(20L, cache.merge(key, 20L, Math::max));
+    assertEquals(20L, cache.merge(key, 15L, Math::max));
+    assertEquals(10L, database.get(key));
+
+    cache.expireAll();
+    assertEquals(20L, database.get(key));
+    assertEquals(0, cache.getCached());
+  }
+
+  @Test
+  void testManyEntries() {
+    int count = 50_000;
+    for (int i = 0; i < count; ++i) {
+      cache.merge(ChunkKey.of(1, i % 300, i / 300), i, (current, value) -> value);
+    }
+    assertEquals(count, cache.getCached());
+
+    for (int i = 0; i < count; i += 2) {
+      assertTrue(cache.replace(ChunkKey.of(1, i % 300, i / 300), i, -i));
+    }
+
+    cache.expireAll();
+    assertEquals(0, cache.getCached());
+    assertEquals(count, database.size());
+    for (int i = 0; i < count; ++i) {
+      assertEquals(i % 2 == 0 ? -i : i, database.get(ChunkKey.of(1, i % 300, i / 300)));
+    }
+  }
+
+  @Test
+  void testFlushKeepsValues() {
+    long key = ChunkKey.of(1, 3, -7);
+    cache.merge(key, 20L, Math::max);
+
+    assertTrue(cache.flush());
+    assertEquals(20L, database.get(key));
+    assertEquals(1, cache.getCached());
+    assertEquals(20L, cache.getIfPresent(key));
+
+    // Saved values are no longer modified and are not written again.
+    database.remove(key);
+    assertTrue(cache.flush());
+    assertFalse(database.containsKey(key));
+    cache.expireAll();
+  }
+
+  @Test
+  void testConcurrentLoadsCoalesce() throws InterruptedException {
+    AtomicInteger loads = new AtomicInteger();
+    CountDownLatch release = new CountDownLatch(1);
+    ExecutorService loader = Executors.newFixedThreadPool(2);
+    ChunkFlagCache blockingCache = new ChunkFlagCache.Builder()
+        .setFrequency(Long.MAX_VALUE)
+        .setLoader(loader)
+        .build(key -> {
+          loads.incrementAndGet();
+          try {
+            release.await();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+          return 5L;
+        }, (keys, values, length) -> true);
+
+    long key = ChunkKey.of(1, 0, 0);
+    CompletableFuture<Long> first = blockingCache.getAsync(key);
+    CompletableFuture<Long> second = blockingCache.getAsync(key);
+    assertFalse(first.isDone());
+    release.countDown();
+
+    assertEquals(5L, first.join());
+    assertEquals(5L, second.join());
+    assertEquals(5L, blockingCache.get(key));
+    assertEquals(1, loads.get());
+
+    loader.shutdown();
+    blockingCache.expireAll();
+  }
+
+  @Test
+  void testBatchFilledBeforeDelayLoadsOnce() throws InterruptedException {
+    AtomicInteger loads = new AtomicInteger();
+    CountDownLatch release = new CountDownLatch(1);
+    ExecutorService loader = Executors.newFixedThreadPool(2);
+    ChunkFlagCache batchingCache = new ChunkFlagCache.Builder()
+        .setFrequency(Long.MAX_VALUE)
+        .setLoader(loader)
+        .setLoadBatchMax(4)
+        .setLoadBatchDelay(100)
+        .build((ChunkFlagCache.BatchLoader) (keys, length) -> {
+          loads.incrementAndGet();
+          try {
+            release.await();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+          long[] values = new long[length];
+          for (int i = 0; i < length; ++i) {
+            values[i] = ChunkKey.getChunkX(keys[i]) * 10L;
+          }
+          return values;
+        }, (keys, values, length) -> true);
+
+    // Filling the batch submits it while its delayed flush is still pending.
+    List<CompletableFuture<Long>> futures = new ArrayList<>();
+    for (int i = 0; i < 4; ++i) {
+      futures.add(batchingCache.getAsync(ChunkKey.of(1, i, 0)));
+    }
+    // Let the delayed flush run while the full batch is still loading.
+    Thread.sleep(300);
+    release.countDown();
+
+    for (int i = 0; i < 4; ++i) {
+      assertEquals(i * 10L, futures.get(i).join());
+      assertEquals(i * 10L, batchingCache.getIfPresent(ChunkKey.of(1, i, 0)));
+    }
+    assertEquals(1, loads.get());
+
+    loader.shutdown();
+    batchingCache.expireAll();
+  }
+
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2015-2023 by Jikoo.
+ *
+ * Regionerator is licensed under a Creative Commons
+ * Attribution-ShareAlike 4.0 International License.
+ *
+ * You should have received a copy of the license along with this
+ * work. If not, see <http://creativecommons.org/licenses/by-sa/4.0/>.
+ */
+
+package com.github.jikoo.regionerator.util;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RegionFlagCacheTest {
+
+  private Map<Long, Long> database;
+  private int regionLoads;
+  private RegionFlagCache cache;
+
+  @BeforeEach
+  void beforeEach() {
+    database = new HashMap<>();
+    regionLoads = 0;
+    cache = new RegionFlagCache.Builder()
+        .setFrequency(Long.MAX_VALUE)
+        .build(lowestKey -> {
+          ++regionLoads;
+          long[] values = new long[1024];
+          int worldId = ChunkKey.getWorldId(lowestKey);
+          for (int index = 0; index < values.length; ++index) {
+            long key = ChunkKey.of(worldId, ChunkKey.getChunkX(lowestKey) + (index & 31), ChunkKey.getChunkZ(lowestKey) + (index >>> 5));
+            values[index] = database.getOrDefault(key, -1L);
+          }
+          return values;
+        }, (keys, values, length) -> {
+          for (int i = 0; i < length; ++i) {
+            database.put(keys[i], values[i]);
+          }
+          return true;
+        });
+  }
+
+  @Test
+  void testRegionLoadedOnce() {
+    database.put(ChunkKey.of(1, -32, 0), 10L);
+    database.put(ChunkKey.of(1, -1, 31), 20L);
+
+    assertEquals(10L, cache.get(ChunkKey.of(1, -32, 0)));
+    assertEquals(20L, cache.get(ChunkKey.of(1, -1, 31)));
+    assertEquals(-1L, cache.get(ChunkKey.of(1, -16, 16)));
+    assertEquals(1, regionLoads);
+    assertEquals(1024, cache.getCached());
+  }
+
+  @Test
+  void testMergeBeforeLoad() {
+    long key = ChunkKey.of(1, 5, 5);
+    long other = ChunkKey.of(1, 6, 5);
+    database.put(key, 10L);
+    database.put(other, 30L);
+
+    assertEquals(20L, cache.merge(key, 20L, Math::max));
+    assertTrue(cache.loadRegion(ChunkKey.of(1, 0, 0)));
+    // Cached values are not replaced by stored values.
+    assertEquals(20L, cache.get(key));
+    assertEquals(30L, cache.get(other));
+    assertEquals(1, regionLoads);
+
+    cache.expireAll();
+    assertEquals(20L, database.get(key));
+    assertEquals(0, cache.getCached());
+  }
+
+}